@@ -0,0 +1,76 @@
+/*
+Copyright 2016 Eric Karge <e.karge@struction.de>
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+  http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+*/
+package org.tinyj.test.servlet.benchmark;
+
+import org.openjdk.jmh.annotations.*;
+import org.tinyj.test.servlet.support.CookieFormatter;
+import org.tinyj.test.servlet.support.HttpStatus;
+import org.tinyj.test.servlet.support.QueryStringFormatter;
+
+import javax.servlet.http.Cookie;
+import java.util.HashMap;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class FormatterBenchmark {
+
+  private String queryString;
+  private HashMap<String, List<String>> parameters;
+  private String cookieString;
+  private Cookie cookie;
+
+  @Param({"200", "418", "299"})
+  public int status;
+
+  @Setup
+  public void setUp() {
+    queryString = "q=servlet+mock&page=2&sort=name&filter=a%3Db&filter=c%3Dd&empty=&flag";
+    parameters = QueryStringFormatter.parseQueryString(queryString, "UTF-8");
+    cookieString = "session=0123456789abcdef; Domain=example.org; Path=/; Max-Age=3600; Secure; HttpOnly";
+    cookie = CookieFormatter.parseCookie(cookieString);
+  }
+
+  @Benchmark
+  public HashMap<String, List<String>> parseQueryString() {
+    return QueryStringFormatter.parseQueryString(queryString, "UTF-8");
+  }
+
+  @Benchmark
+  public String formatQueryString() {
+    return QueryStringFormatter.formatQueryString(parameters, "UTF-8");
+  }
+
+  @Benchmark
+  public Cookie parseCookie() {
+    return CookieFormatter.parseCookie(cookieString);
+  }
+
+  @Benchmark
+  public String formatCookie() {
+    return CookieFormatter.formatCookie(cookie);
+  }
+
+  @Benchmark
+  public String getMessageFor() {
+    return HttpStatus.getMessageFor(status);
+  }
+}
@@ -0,0 +1,65 @@
+/*
+Copyright 2016 Eric Karge <e.karge@struction.de>
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+  http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+*/
+package org.tinyj.test.servlet.benchmark;
+
+import org.openjdk.jmh.annotations.*;
+import org.tinyj.test.servlet.HttpServletRequestMock;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import static java.util.Collections.singletonList;
+
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class RequestBenchmark {
+
+  @Param({"4", "32"})
+  public int headerCount;
+
+  private HttpServletRequestMock request;
+
+  @Setup
+  public void setUp() {
+    HashMap<String, List<String>> headers = new HashMap<>();
+    for (int i = 0; i < headerCount - 2; i++) {
+      headers.put("x-header-" + i, singletonList("value " + i));
+    }
+    headers.put("content-type", singletonList("text/plain; charset=UTF-8"));
+    headers.put("content-length", singletonList("1234"));
+    request = new HttpServletRequestMock().withHeaders(headers);
+  }
+
+  @Benchmark
+  public String getHeader() {
+    return request.getHeader("Content-Type");
+  }
+
+  @Benchmark
+  public String getMissingHeader() {
+    return request.getHeader("If-None-Match");
+  }
+
+  @Benchmark
+  public int getIntHeader() {
+    return request.getIntHeader("Content-Length");
+  }
+}
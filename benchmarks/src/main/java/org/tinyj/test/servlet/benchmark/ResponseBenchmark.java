@@ -0,0 +1,108 @@
+/*
+Copyright 2016 Eric Karge <e.karge@struction.de>
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+  http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+*/
+package org.tinyj.test.servlet.benchmark;
+
+import org.openjdk.jmh.annotations.*;
+import org.tinyj.test.servlet.HttpServletResponseMock;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintWriter;
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Full response lifecycle: headers, body through writer or stream, flush and
+ * close, for a small and a large body.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ResponseBenchmark {
+
+  @Param({"128", "1048576"})
+  public int bodySize;
+
+  private byte[] bytes;
+  private char[] chars;
+
+  @Setup
+  public void setUp() {
+    bytes = new byte[bodySize];
+    Arrays.fill(bytes, (byte) 'x');
+    chars = new char[bodySize];
+    Arrays.fill(chars, 'x');
+  }
+
+  private HttpServletResponseMock response() {
+    HttpServletResponseMock response = new HttpServletResponseMock();
+    response.setContentType("text/plain");
+    response.setHeader("Cache-Control", "no-cache");
+    return response;
+  }
+
+  @Benchmark
+  public HttpServletResponseMock commit() throws IOException {
+    HttpServletResponseMock response = response();
+    response.commit();
+    return response;
+  }
+
+  @Benchmark
+  public HttpServletResponseMock streamCloseOnly() throws IOException {
+    HttpServletResponseMock response = response();
+    OutputStream out = response.getOutputStream();
+    out.write(bytes);
+    out.close();
+    return response;
+  }
+
+  @Benchmark
+  public HttpServletResponseMock streamFlushAndClose() throws IOException {
+    HttpServletResponseMock response = response();
+    OutputStream out = response.getOutputStream();
+    int half = bytes.length / 2;
+    out.write(bytes, 0, half);
+    out.flush();
+    out.write(bytes, half, bytes.length - half);
+    out.close();
+    return response;
+  }
+
+  @Benchmark
+  public HttpServletResponseMock writerCloseOnly() throws IOException {
+    HttpServletResponseMock response = response();
+    PrintWriter writer = response.getWriter();
+    writer.write(chars);
+    writer.close();
+    return response;
+  }
+
+  @Benchmark
+  public HttpServletResponseMock writerFlushAndClose() throws IOException {
+    HttpServletResponseMock response = response();
+    PrintWriter writer = response.getWriter();
+    int half = chars.length / 2;
+    writer.write(chars, 0, half);
+    writer.flush();
+    writer.write(chars, half, chars.length - half);
+    writer.close();
+    return response;
+  }
+}
@@ -0,0 +1,73 @@
+/*
+Copyright 2016 Eric Karge <e.karge@struction.de>
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+  http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+*/
+package org.tinyj.test.servlet.benchmark;
+
+import org.openjdk.jmh.annotations.*;
+import org.tinyj.test.servlet.ServletMapping;
+
+import javax.servlet.GenericServlet;
+import javax.servlet.Servlet;
+import javax.servlet.ServletRequest;
+import javax.servlet.ServletResponse;
+import java.util.concurrent.TimeUnit;
+
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class RouterBenchmark {
+
+  @Param({"10", "500"})
+  public int mappingCount;
+
+  private ServletMapping mapping;
+
+  @Setup
+  public void setUp() {
+    Servlet servlet = new GenericServlet() {
+      @Override
+      public void service(ServletRequest req, ServletResponse res) {
+      }
+    };
+    mapping = new ServletMapping("/app").map("*.jsp", servlet).map("/", servlet);
+    for (int i = 0; i < mappingCount; i++) {
+      mapping.map("/api/v" + (i % 3) + "/resource" + i, servlet);
+      mapping.map("/api/v" + (i % 3) + "/resource" + i + "/*", servlet);
+    }
+  }
+
+  @Benchmark
+  public ServletMapping.Match exact() {
+    return mapping.match("/app/api/v1/resource7");
+  }
+
+  @Benchmark
+  public ServletMapping.Match prefix() {
+    return mapping.match("/app/api/v1/resource7/items/42?expand=true");
+  }
+
+  @Benchmark
+  public ServletMapping.Match extension() {
+    return mapping.match("/app/views/orders/list.jsp");
+  }
+
+  @Benchmark
+  public ServletMapping.Match fallback() {
+    return mapping.match("/app/static/css/site.css");
+  }
+}
@@ -0,0 +1,185 @@
+/*
+Copyright 2016 Eric Karge <e.karge@struction.de>
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+  http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+*/
+package org.tinyj.test.servlet;
+
+import org.tinyj.test.servlet.support.ThreadAllocation;
+
+import javax.servlet.GenericServlet;
+import javax.servlet.Servlet;
+import javax.servlet.ServletRequest;
+import javax.servlet.ServletResponse;
+import javax.servlet.ServletException;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.function.Supplier;
+
+/**
+ * Invokes a servlet on mock request/response pairs and measures the bytes the
+ * calling thread allocates inside {@code service()}, using the per-thread
+ * allocation counter of HotSpot's {@code com.sun.management.ThreadMXBean}.
+ * <p>
+ * The cost of reading the counter is calibrated once and subtracted. Mocks are
+ * created and the response is closed outside the measured region; use
+ * responses without body recording (the default for {@link #measure}) so the
+ * mock's copy of the body isn't charged to the servlet.
+ * <p>
+ * What the mocks allocate inside {@code service()} is subtracted by running a
+ * baseline servlet through the same request/response setup and taking off its
+ * median. The default baseline does nothing, which removes the fixed cost of an
+ * invocation; allocations the mocks make because the servlet called them
+ * (writer and encoder, buffer growth, header maps) are still included unless
+ * {@link #withBaseline} is given a servlet making the same calls.
+ */
+public class AllocationMeter {
+
+  private final Servlet servlet;
+  private long budget = Long.MAX_VALUE;
+  private int warmup = 0;
+  private int iterations = 1;
+  private Servlet baseline = new GenericServlet() {
+    private static final long serialVersionUID = 1L;
+
+    @Override
+    public void service(ServletRequest req, ServletResponse res) {
+    }
+  };
+
+  public AllocationMeter(Servlet servlet) {
+    this.servlet = servlet;
+    if (!ThreadAllocation.isSupported()) {
+      throw new IllegalStateException("per-thread allocation accounting is not supported by this JVM");
+    }
+  }
+
+  /** Fail with an {@link AssertionError} if a request allocates more than this. */
+  public AllocationMeter withBudget(long bytesPerRequest) {
+    this.budget = bytesPerRequest;
+    return this;
+  }
+
+  /** Unmeasured invocations run by {@link #measure} first, to get past class loading and JIT. */
+  public AllocationMeter withWarmup(int warmup) {
+    this.warmup = warmup;
+    return this;
+  }
+
+  public AllocationMeter withIterations(int iterations) {
+    if (iterations < 1) {
+      throw new IllegalArgumentException("iterations must be positive");
+    }
+    this.iterations = iterations;
+    return this;
+  }
+
+  /**
+   * Reference servlet whose allocations are subtracted, e.g. one writing a body
+   * of the same size to take the response mock's own buffers out of the figure.
+   */
+  public AllocationMeter withBaseline(Servlet baseline) {
+    this.baseline = baseline;
+    return this;
+  }
+
+  /** Measures a single invocation on the given pair; the baseline runs on fresh default mocks. */
+  public Result service(HttpServletRequestMock request, HttpServletResponseMock response)
+      throws ServletException, IOException {
+    long base = invoke(baseline, new HttpServletRequestMock(), new HttpServletResponseMock().withBodyRecording(false));
+    Result result = new Result(new long[]{invoke(servlet, request, response)}, base);
+    check(result);
+    return result;
+  }
+
+  public Result measure(Supplier<HttpServletRequestMock> requests) throws ServletException, IOException {
+    return measure(requests, () -> new HttpServletResponseMock().withBodyRecording(false));
+  }
+
+  public Result measure(Supplier<HttpServletRequestMock> requests, Supplier<HttpServletResponseMock> responses)
+      throws ServletException, IOException {
+    long[] base = new long[iterations];
+    long[] samples = new long[iterations];
+    for (int i = 0; i < warmup; i++) {
+      invoke(baseline, requests.get(), responses.get());
+      invoke(servlet, requests.get(), responses.get());
+    }
+    for (int i = 0; i < iterations; i++) {
+      base[i] = invoke(baseline, requests.get(), responses.get());
+      samples[i] = invoke(servlet, requests.get(), responses.get());
+    }
+    Arrays.sort(base);
+    Result result = new Result(samples, base[iterations / 2]);
+    check(result);
+    return result;
+  }
+
+  protected long invoke(Servlet servlet, HttpServletRequestMock request, HttpServletResponseMock response)
+      throws ServletException, IOException {
+    long overhead = ThreadAllocation.counterOverhead();
+    long before = ThreadAllocation.currentThread();
+    servlet.service(request, response);
+    long after = ThreadAllocation.currentThread();
+    response.close();
+    return Math.max(0, after - before - overhead);
+  }
+
+  protected void check(Result result) {
+    if (result.getAllocatedBytes() > budget) {
+      throw new AssertionError("service() allocated " + result.getAllocatedBytes()
+                               + " bytes per request, budget is " + budget + " bytes; " + result);
+    }
+  }
+
+  public static class Result {
+    private final long[] samples;
+    private final long baseline;
+
+    Result(long[] samples, long baseline) {
+      this.samples = new long[samples.length];
+      for (int i = 0; i < samples.length; i++) {
+        this.samples[i] = Math.max(0, samples[i] - baseline);
+      }
+      Arrays.sort(this.samples);
+      this.baseline = baseline;
+    }
+
+    /** Median allocation per request, in bytes; the figure budgets are checked against. */
+    public long getAllocatedBytes() {
+      return samples[samples.length / 2];
+    }
+
+    public long getMinAllocatedBytes() {
+      return samples[0];
+    }
+
+    public long getMaxAllocatedBytes() {
+      return samples[samples.length - 1];
+    }
+
+    /** Median allocation of the baseline servlet, already subtracted from the samples. */
+    public long getBaselineBytes() {
+      return baseline;
+    }
+
+    public long[] getSamples() {
+      return samples.clone();
+    }
+
+    @Override
+    public String toString() {
+      return "allocated " + getAllocatedBytes() + " bytes (min " + getMinAllocatedBytes()
+             + ", max " + getMaxAllocatedBytes() + ", " + samples.length + " samples, baseline " + baseline + ")";
+    }
+  }
+}
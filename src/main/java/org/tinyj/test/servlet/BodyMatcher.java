@@ -0,0 +1,63 @@
+/*
+Copyright 2016 Eric Karge <e.karge@struction.de>
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+  http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+*/
+package org.tinyj.test.servlet;
+
+/**
+ * Incremental assertion on the response body. Register it with
+ * {@link HttpServletResponseMock#withListener(ResponseListener)} before the
+ * servlet runs and {@link #verify()} it afterwards.
+ */
+public abstract class BodyMatcher implements ResponseListener {
+
+  protected long offset = 0;
+
+  @Override
+  public void onWrite(int b) {
+    consume((byte) b);
+    offset++;
+  }
+
+  @Override
+  public void onWrite(byte[] b, int off, int len) {
+    for (int i = off; i < off + len; i++) {
+      consume(b[i]);
+      offset++;
+    }
+  }
+
+  /** The body written so far was discarded, start over. */
+  @Override
+  public void onReset() {
+    offset = 0;
+    restart();
+  }
+
+  protected abstract void consume(byte b);
+
+  /** Returns to the state before the first byte; matchers keeping state beyond {@code offset} override it. */
+  protected void restart() {
+  }
+
+  public abstract boolean matches();
+
+  public abstract String describe();
+
+  public void verify() {
+    if (!matches()) {
+      throw new AssertionError(describe());
+    }
+  }
+}
@@ -0,0 +1,509 @@
+/*
+Copyright 2016 Eric Karge <e.karge@struction.de>
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+  http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+*/
+package org.tinyj.test.servlet;
+
+import java.nio.charset.Charset;
+import java.util.Arrays;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+public class BodyMatchers {
+
+  public static Prefix startsWith(String prefix) {
+    return new Prefix(prefix.getBytes(UTF_8));
+  }
+
+  public static Prefix startsWith(byte[] prefix) {
+    return new Prefix(prefix);
+  }
+
+  public static Contains contains(String needle) {
+    return contains(needle, UTF_8);
+  }
+
+  public static Contains contains(String needle, Charset charset) {
+    return new Contains(needle.getBytes(charset));
+  }
+
+  public static Contains contains(byte[] needle) {
+    return new Contains(needle);
+  }
+
+  public static LineCount lineCount() {
+    return new LineCount(-1);
+  }
+
+  public static LineCount lineCount(long expected) {
+    return new LineCount(expected);
+  }
+
+  public static Json json() {
+    return new Json();
+  }
+
+  public static class Prefix extends BodyMatcher {
+
+    protected final byte[] prefix;
+    protected long mismatch = -1;
+
+    public Prefix(byte[] prefix) {
+      this.prefix = prefix;
+    }
+
+    @Override
+    protected void consume(byte b) {
+      if (mismatch < 0 && offset < prefix.length && prefix[(int) offset] != b) {
+        mismatch = offset;
+      }
+    }
+
+    @Override
+    protected void restart() {
+      mismatch = -1;
+    }
+
+    @Override
+    public boolean matches() {
+      return mismatch < 0 && offset >= prefix.length;
+    }
+
+    @Override
+    public String describe() {
+      if (mismatch >= 0) {
+        return "body differs from expected prefix at offset " + mismatch;
+      }
+      return offset < prefix.length
+             ? "body ended after " + offset + " bytes, expected prefix of " + prefix.length + " bytes"
+             : "body starts with expected prefix";
+    }
+  }
+
+  /**
+   * Knuth-Morris-Pratt search, constant memory regardless of body size.
+   */
+  public static class Contains extends BodyMatcher {
+
+    protected final byte[] needle;
+    protected final int[] failure;
+    protected int matched = 0;
+    protected long found = -1;
+
+    public Contains(byte[] needle) {
+      this.needle = needle;
+      this.failure = new int[needle.length];
+      for (int i = 1, k = 0; i < needle.length; i++) {
+        while (k > 0 && needle[i] != needle[k]) {
+          k = failure[k - 1];
+        }
+        if (needle[i] == needle[k]) {
+          k++;
+        }
+        failure[i] = k;
+      }
+      if (needle.length == 0) {
+        found = 0;
+      }
+    }
+
+    @Override
+    protected void consume(byte b) {
+      if (found >= 0) {
+        return;
+      }
+      while (matched > 0 && needle[matched] != b) {
+        matched = failure[matched - 1];
+      }
+      if (needle[matched] == b) {
+        matched++;
+      }
+      if (matched == needle.length) {
+        found = offset - needle.length + 1;
+      }
+    }
+
+    @Override
+    protected void restart() {
+      matched = 0;
+      found = needle.length == 0 ? 0 : -1;
+    }
+
+    public long getOffset() {
+      return found;
+    }
+
+    @Override
+    public boolean matches() {
+      return found >= 0;
+    }
+
+    @Override
+    public String describe() {
+      return found >= 0
+             ? "body contains expected sequence at offset " + found
+             : "body of " + offset + " bytes does not contain expected sequence of " + needle.length + " bytes";
+    }
+  }
+
+  public static class LineCount extends BodyMatcher {
+
+    protected final long expected;
+    protected long lines = 0;
+    protected boolean pending = false;
+
+    public LineCount(long expected) {
+      this.expected = expected;
+    }
+
+    @Override
+    protected void consume(byte b) {
+      if (b == '\n') {
+        lines++;
+        pending = false;
+      } else {
+        pending = true;
+      }
+    }
+
+    @Override
+    protected void restart() {
+      lines = 0;
+      pending = false;
+    }
+
+    /**
+     * Number of lines, a last line without terminating newline is counted.
+     */
+    public long getLines() {
+      return lines + (pending ? 1 : 0);
+    }
+
+    @Override
+    public boolean matches() {
+      return expected < 0 || getLines() == expected;
+    }
+
+    @Override
+    public String describe() {
+      return "body has " + getLines() + " lines" + (expected >= 0 ? ", expected " + expected : "");
+    }
+  }
+
+  /**
+   * Incremental syntax check of a single JSON text. Memory is bounded by the
+   * nesting depth.
+   */
+  public static class Json extends BodyMatcher {
+
+    private static final int VALUE = 0;
+    private static final int FIRST_VALUE = 1;
+    private static final int KEY = 2;
+    private static final int FIRST_KEY = 3;
+    private static final int COLON = 4;
+    private static final int AFTER = 5;
+    private static final int STRING = 6;
+    private static final int ESCAPE = 7;
+    private static final int UNICODE = 8;
+    private static final int NUMBER = 9;
+    private static final int LITERAL = 10;
+
+    private static final byte[] TRUE = {'t', 'r', 'u', 'e'};
+    private static final byte[] FALSE = {'f', 'a', 'l', 's', 'e'};
+    private static final byte[] NULL = {'n', 'u', 'l', 'l'};
+
+    // number sub states
+    private static final int N_MINUS = 0;
+    private static final int N_ZERO = 1;
+    private static final int N_INT = 2;
+    private static final int N_DOT = 3;
+    private static final int N_FRAC = 4;
+    private static final int N_E = 5;
+    private static final int N_ESIGN = 6;
+    private static final int N_EXP = 7;
+
+    protected byte[] stack = new byte[16];
+    protected int depth = 0;
+    protected int state = VALUE;
+    protected int sub = 0;
+    protected boolean key = false;
+    protected byte[] literal;
+    protected boolean started = false;
+    protected long tokens = 0;
+    protected String error;
+    protected long errorOffset = -1;
+
+    @Override
+    protected void restart() {
+      depth = 0;
+      state = VALUE;
+      sub = 0;
+      key = false;
+      literal = null;
+      started = false;
+      tokens = 0;
+      error = null;
+      errorOffset = -1;
+    }
+
+    @Override
+    protected void consume(byte b) {
+      if (error != null) {
+        return;
+      }
+      switch (state) {
+        case STRING:
+          if (b == '"') {
+            endString();
+          } else if (b == '\\') {
+            state = ESCAPE;
+          } else if ((b & 0xff) < 0x20) {
+            fail("control character in string");
+          }
+          return;
+        case ESCAPE:
+          if (b == 'u') {
+            state = UNICODE;
+            sub = 4;
+          } else if ("\"\\/bfnrt".indexOf(b) >= 0) {
+            state = STRING;
+          } else {
+            fail("invalid escape");
+          }
+          return;
+        case UNICODE:
+          if (Character.digit(b, 16) < 0) {
+            fail("invalid unicode escape");
+          } else if (--sub == 0) {
+            state = STRING;
+          }
+          return;
+        case LITERAL:
+          if (b != literal[sub]) {
+            fail("invalid literal");
+          } else if (++sub == literal.length) {
+            endValue();
+          }
+          return;
+        case NUMBER:
+          if (number(b)) {
+            return;
+          }
+          if (sub == N_MINUS || sub == N_DOT || sub == N_E || sub == N_ESIGN) {
+            fail("incomplete number");
+            return;
+          }
+          endValue();
+          break;
+        default:
+      }
+      if (b == ' ' || b == '\t' || b == '\r' || b == '\n') {
+        return;
+      }
+      switch (state) {
+        case VALUE:
+        case FIRST_VALUE:
+          if (b == ']' && state == FIRST_VALUE) {
+            close('[');
+          } else {
+            value(b);
+          }
+          break;
+        case KEY:
+        case FIRST_KEY:
+          if (b == '"') {
+            started = true;
+            state = STRING;
+            key = true;
+          } else if (b == '}' && state == FIRST_KEY) {
+            close('{');
+          } else {
+            fail("expected object key");
+          }
+          break;
+        case COLON:
+          if (b == ':') {
+            state = VALUE;
+          } else {
+            fail("expected ':'");
+          }
+          break;
+        case AFTER:
+          if (depth == 0) {
+            fail("trailing content after JSON value");
+          } else if (b == ',') {
+            state = stack[depth - 1] == '{' ? KEY : VALUE;
+          } else if (b == ']' || b == '}') {
+            close(b == ']' ? '[' : '{');
+          } else {
+            fail("expected ',' or closing bracket");
+          }
+          break;
+        default:
+          fail("unexpected character");
+      }
+    }
+
+    private void value(byte b) {
+      started = true;
+      tokens++;
+      switch (b) {
+        case '{':
+        case '[':
+          if (depth == stack.length) {
+            stack = Arrays.copyOf(stack, depth * 2);
+          }
+          stack[depth++] = b;
+          state = b == '{' ? FIRST_KEY : FIRST_VALUE;
+          break;
+        case '"':
+          state = STRING;
+          key = false;
+          break;
+        case 't':
+          literal(TRUE);
+          break;
+        case 'f':
+          literal(FALSE);
+          break;
+        case 'n':
+          literal(NULL);
+          break;
+        default:
+          if (b == '-' || (b >= '0' && b <= '9')) {
+            state = NUMBER;
+            sub = b == '-' ? N_MINUS : b == '0' ? N_ZERO : N_INT;
+          } else {
+            fail("expected value");
+          }
+      }
+    }
+
+    private void literal(byte[] literal) {
+      this.literal = literal;
+      state = LITERAL;
+      sub = 1;
+    }
+
+    private boolean number(byte b) {
+      boolean digit = b >= '0' && b <= '9';
+      switch (sub) {
+        case N_MINUS:
+          if (digit) {
+            sub = b == '0' ? N_ZERO : N_INT;
+            return true;
+          }
+          return false;
+        case N_ZERO:
+        case N_INT:
+          if (digit && sub == N_INT) {
+            return true;
+          }
+          if (b == '.') {
+            sub = N_DOT;
+            return true;
+          }
+          if (b == 'e' || b == 'E') {
+            sub = N_E;
+            return true;
+          }
+          return false;
+        case N_DOT:
+        case N_FRAC:
+          if (digit) {
+            sub = N_FRAC;
+            return true;
+          }
+          if (sub == N_FRAC && (b == 'e' || b == 'E')) {
+            sub = N_E;
+            return true;
+          }
+          return false;
+        case N_E:
+          if (b == '+' || b == '-') {
+            sub = N_ESIGN;
+            return true;
+          }
+          if (digit) {
+            sub = N_EXP;
+            return true;
+          }
+          return false;
+        case N_ESIGN:
+        case N_EXP:
+          if (digit) {
+            sub = N_EXP;
+            return true;
+          }
+          return false;
+        default:
+          return false;
+      }
+    }
+
+    private void endString() {
+      if (key) {
+        state = COLON;
+      } else {
+        endValue();
+      }
+    }
+
+    private void endValue() {
+      state = AFTER;
+    }
+
+    private void close(int open) {
+      if (depth == 0 || stack[depth - 1] != open) {
+        fail("unbalanced bracket");
+        return;
+      }
+      depth--;
+      endValue();
+    }
+
+    private void fail(String message) {
+      error = message;
+      errorOffset = offset;
+    }
+
+    public long getTokens() {
+      return tokens;
+    }
+
+    public boolean isComplete() {
+      if (error != null || !started || depth > 0) {
+        return false;
+      }
+      return state == AFTER
+             || (state == NUMBER && (sub == N_ZERO || sub == N_INT || sub == N_FRAC || sub == N_EXP));
+    }
+
+    @Override
+    public boolean matches() {
+      return isComplete();
+    }
+
+    @Override
+    public String describe() {
+      if (error != null) {
+        return "invalid JSON at offset " + errorOffset + ": " + error;
+      }
+      if (!isComplete()) {
+        return "incomplete JSON after " + offset + " bytes" + (depth > 0 ? ", " + depth + " unclosed brackets" : "");
+      }
+      return "valid JSON with " + tokens + " values";
+    }
+  }
+}
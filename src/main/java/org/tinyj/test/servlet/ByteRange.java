@@ -0,0 +1,131 @@
+/*
+Copyright 2016 Eric Karge <e.karge@struction.de>
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+  http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+*/
+package org.tinyj.test.servlet;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Satisfiable byte range of a resource, both ends inclusive (RFC 7233).
+ */
+public final class ByteRange {
+
+  private final long first;
+  private final long last;
+
+  public ByteRange(long first, long last) {
+    if (first < 0 || last < first) {
+      throw new IllegalArgumentException("invalid byte range " + first + "-" + last);
+    }
+    this.first = first;
+    this.last = last;
+  }
+
+  /**
+   * Parses a {@code Range} header against a resource of {@code length} bytes.
+   * Suffix ranges are resolved and open or overlong ranges cut to the end of
+   * the resource; unsatisfiable specs are dropped.
+   *
+   * @return null if the header is absent or malformed and must be ignored,
+   *     an empty list if no range is satisfiable (416)
+   */
+  public static List<ByteRange> parse(String header, long length) {
+    if (header == null || !header.regionMatches(true, 0, "bytes=", 0, 6)) {
+      return null;
+    }
+    List<ByteRange> ranges = new ArrayList<>();
+    for (String spec : header.substring(6).split(",")) {
+      spec = spec.trim();
+      int dash = spec.indexOf('-');
+      if (dash < 0) {
+        return null;
+      }
+      if (dash == 0) {
+        long suffix = digits(spec.substring(1));
+        if (suffix < 0) {
+          return null;
+        }
+        if (suffix > 0 && length > 0) {
+          ranges.add(new ByteRange(Math.max(0, length - suffix), length - 1));
+        }
+        continue;
+      }
+      long first = digits(spec.substring(0, dash));
+      long last = dash == spec.length() - 1 ? Long.MAX_VALUE : digits(spec.substring(dash + 1));
+      if (first < 0 || last < first) {
+        return null;
+      }
+      if (first < length) {
+        ranges.add(new ByteRange(first, Math.min(last, length - 1)));
+      }
+    }
+    return ranges;
+  }
+
+  /** Value of a position made of decimal digits only, -1 for anything else. */
+  private static long digits(String position) {
+    if (position.isEmpty()) {
+      return -1;
+    }
+    for (int i = 0; i < position.length(); i++) {
+      char c = position.charAt(i);
+      if (c < '0' || c > '9') {
+        return -1;
+      }
+    }
+    try {
+      return Long.parseLong(position);
+    } catch (NumberFormatException e) {
+      return -1;
+    }
+  }
+
+  public long getFirst() {
+    return first;
+  }
+
+  public long getLast() {
+    return last;
+  }
+
+  public long length() {
+    return last - first + 1;
+  }
+
+  public boolean contains(ByteRange other) {
+    return first <= other.first && other.last <= last;
+  }
+
+  /** Value of the {@code Content-Range} header for this range. */
+  public String toContentRange(long length) {
+    return "bytes " + first + "-" + last + "/" + length;
+  }
+
+  @Override
+  public boolean equals(Object o) {
+    return o instanceof ByteRange && ((ByteRange) o).first == first && ((ByteRange) o).last == last;
+  }
+
+  @Override
+  public int hashCode() {
+    return Long.hashCode(first) * 31 + Long.hashCode(last);
+  }
+
+  @Override
+  public String toString() {
+    return first + "-" + last;
+  }
+}
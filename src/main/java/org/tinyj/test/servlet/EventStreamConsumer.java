@@ -0,0 +1,300 @@
+/*
+Copyright 2016 Eric Karge <e.karge@struction.de>
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+  http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+*/
+package org.tinyj.test.servlet;
+
+import java.io.ByteArrayOutputStream;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static java.util.Collections.unmodifiableList;
+
+/**
+ * Records the flushed segments of a streaming response and parses them as
+ * server-sent events. An event counts as delivered when the flush (or close)
+ * that sends its terminating blank line happens. It counts as written when
+ * the servlet writes that blank line: to the writer, not when the writer's
+ * encoder eventually passes the bytes on, or else to the output stream.
+ */
+public class EventStreamConsumer implements ResponseListener {
+
+  protected final long startNanos;
+  protected final List<Segment> segments = new ArrayList<>();
+  protected final List<Event> events = new ArrayList<>();
+  protected final List<Event> pending = new ArrayList<>();
+  /** times of the blank lines written to the writer whose bytes haven't arrived yet */
+  protected final ArrayDeque<Long> writtenBlankLines = new ArrayDeque<>();
+
+  protected long written = 0;
+  protected long segmentStart = 0;
+
+  private final ByteArrayOutputStream line = new ByteArrayOutputStream();
+  private boolean skipLineFeed = false;
+  private StringBuilder data;
+  private String type;
+  private String id;
+  private String lastId;
+  private long retry = -1;
+  private boolean writerLineEmpty = true;
+  private boolean writerSkipLineFeed = false;
+
+  public EventStreamConsumer() {
+    this(System.nanoTime());
+  }
+
+  public EventStreamConsumer(long startNanos) {
+    this.startNanos = startNanos;
+  }
+
+  @Override
+  public void onWrite(int b) {
+    consume((byte) b);
+    written++;
+  }
+
+  @Override
+  public void onWrite(byte[] b, int off, int len) {
+    for (int i = off; i < off + len; i++) {
+      consume(b[i]);
+    }
+    written += len;
+  }
+
+  @Override
+  public void onWriterWrite(CharSequence chars) {
+    long now = System.nanoTime();
+    for (int i = 0; i < chars.length(); i++) {
+      char c = chars.charAt(i);
+      if (writerSkipLineFeed) {
+        writerSkipLineFeed = false;
+        if (c == '\n') {
+          continue;
+        }
+      }
+      if (c == '\r' || c == '\n') {
+        writerSkipLineFeed = c == '\r';
+        if (writerLineEmpty) {
+          writtenBlankLines.add(now);
+        }
+        writerLineEmpty = true;
+      } else {
+        writerLineEmpty = false;
+      }
+    }
+  }
+
+  @Override
+  public void onFlush() {
+    deliver(System.nanoTime());
+  }
+
+  @Override
+  public void onClose() {
+    deliver(System.nanoTime());
+  }
+
+  /** Only possible before the first flush, so nothing parsed so far was sent. */
+  @Override
+  public void onReset() {
+    pending.clear();
+    writtenBlankLines.clear();
+    written = segmentStart;
+    line.reset();
+    skipLineFeed = false;
+    writerLineEmpty = true;
+    writerSkipLineFeed = false;
+    data = null;
+    type = null;
+    id = null;
+    lastId = null;
+    retry = -1;
+  }
+
+  protected void deliver(long nanos) {
+    if (written == segmentStart && pending.isEmpty()) {
+      return;
+    }
+    segments.add(new Segment(segmentStart, (int) (written - segmentStart), nanos, pending.size()));
+    segmentStart = written;
+    for (Event event : pending) {
+      event.deliveredNanos = nanos;
+      events.add(event);
+    }
+    pending.clear();
+  }
+
+  protected void consume(byte b) {
+    if (skipLineFeed) {
+      skipLineFeed = false;
+      if (b == '\n') {
+        return;
+      }
+    }
+    if (b == '\r' || b == '\n') {
+      skipLineFeed = b == '\r';
+      processLine(new String(line.toByteArray(), UTF_8));
+      line.reset();
+    } else {
+      line.write(b);
+    }
+  }
+
+  protected void processLine(String line) {
+    if (line.isEmpty()) {
+      dispatch();
+      return;
+    }
+    if (line.charAt(0) == ':') {
+      return;
+    }
+    int colon = line.indexOf(':');
+    String field = colon < 0 ? line : line.substring(0, colon);
+    String value = colon < 0 ? "" : line.substring(line.startsWith(" ", colon + 1) ? colon + 2 : colon + 1);
+    switch (field) {
+      case "data":
+        if (data == null) {
+          data = new StringBuilder();
+        }
+        data.append(value).append('\n');
+        break;
+      case "event":
+        type = value;
+        break;
+      case "id":
+        if (value.indexOf('\0') < 0) {
+          id = value;
+        }
+        break;
+      case "retry":
+        try {
+          retry = Long.parseLong(value);
+        } catch (NumberFormatException e) {
+          // ignored as required by the spec
+        }
+        break;
+      default:
+    }
+  }
+
+  protected void dispatch() {
+    Long writtenNanos = writtenBlankLines.poll();
+    if (id != null) {
+      lastId = id;
+      id = null;
+    }
+    if (data == null) {
+      type = null;
+      return;
+    }
+    data.setLength(data.length() - 1);
+    pending.add(new Event(type == null ? "message" : type, data.toString(), lastId,
+                          writtenNanos != null ? writtenNanos : System.nanoTime()));
+    data = null;
+    type = null;
+  }
+
+  public List<Segment> getSegments() {
+    return unmodifiableList(segments);
+  }
+
+  public List<Event> getEvents() {
+    return unmodifiableList(events);
+  }
+
+  public long getRetry() {
+    return retry;
+  }
+
+  public long getTimeToFirstEventNanos() {
+    return events.isEmpty() ? -1 : events.get(0).deliveredNanos - startNanos;
+  }
+
+  public long[] getInterEventLatenciesNanos() {
+    long[] latencies = new long[Math.max(0, events.size() - 1)];
+    for (int i = 0; i < latencies.length; i++) {
+      latencies[i] = events.get(i + 1).deliveredNanos - events.get(i).deliveredNanos;
+    }
+    return latencies;
+  }
+
+  public long getMaxInterEventLatencyNanos() {
+    long max = 0;
+    for (long latency : getInterEventLatenciesNanos()) {
+      max = Math.max(max, latency);
+    }
+    return max;
+  }
+
+  /**
+   * Largest number of events sent by a single flush, anything above 1 means
+   * the servlet held back events instead of streaming them.
+   */
+  public int getMaxEventsPerSegment() {
+    int max = 0;
+    for (Segment segment : segments) {
+      max = Math.max(max, segment.events);
+    }
+    return max;
+  }
+
+  /**
+   * Longest time an event waited between being written by the servlet and
+   * being flushed.
+   */
+  public long getMaxDeliveryDelayNanos() {
+    long max = 0;
+    for (Event event : events) {
+      max = Math.max(max, event.deliveredNanos - event.writtenNanos);
+    }
+    return max;
+  }
+
+  public static class Segment {
+
+    public final long offset;
+    public final int length;
+    public final long nanos;
+    public final int events;
+
+    Segment(long offset, int length, long nanos, int events) {
+      this.offset = offset;
+      this.length = length;
+      this.nanos = nanos;
+      this.events = events;
+    }
+  }
+
+  public static class Event {
+
+    public final String type;
+    public final String data;
+    public final String id;
+    public final long writtenNanos;
+    long deliveredNanos;
+
+    Event(String type, String data, String id, long writtenNanos) {
+      this.type = type;
+      this.data = data;
+      this.id = id;
+      this.writtenNanos = writtenNanos;
+    }
+
+    public long getDeliveredNanos() {
+      return deliveredNanos;
+    }
+  }
+}
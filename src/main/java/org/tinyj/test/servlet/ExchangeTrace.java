@@ -0,0 +1,202 @@
+/*
+Copyright 2016 Eric Karge <e.karge@struction.de>
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+  http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+*/
+package org.tinyj.test.servlet;
+
+import java.io.IOException;
+import java.io.StringWriter;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Timeline of what happened during one exchange, shared by the request and
+ * response mock it is attached to. Events go into a fixed size ring buffer
+ * without locking; once it wraps the oldest events are overwritten. The
+ * timeline exports to the Chrome trace event format, which chrome://tracing
+ * and ui.perfetto.dev open directly.
+ */
+public class ExchangeTrace {
+
+  public static final int DEFAULT_CAPACITY = 4096;
+
+  private final long originNanos = System.nanoTime();
+  private final int mask;
+  private final AtomicLong cursor = new AtomicLong();
+  private final AtomicLongArray published;
+  private final String[] names;
+  private final String[] details;
+  private final long[] starts;
+  private final long[] durations;
+  private final long[] sizes;
+  private final long[] threads;
+
+  public ExchangeTrace() {
+    this(DEFAULT_CAPACITY);
+  }
+
+  /** @param capacity number of events kept, rounded up to a power of two */
+  public ExchangeTrace(int capacity) {
+    int size = Integer.highestOneBit(Math.max(2, capacity - 1)) << 1;
+    mask = size - 1;
+    published = new AtomicLongArray(size);
+    names = new String[size];
+    details = new String[size];
+    starts = new long[size];
+    durations = new long[size];
+    sizes = new long[size];
+    threads = new long[size];
+  }
+
+  public long now() {
+    return System.nanoTime() - originNanos;
+  }
+
+  public void instant(String name, String detail) {
+    record(name, detail, now(), -1, -1);
+  }
+
+  /** Records an event that started at {@code start} (from {@link #now()}) and ends now. */
+  public void span(String name, long start, long size) {
+    record(name, null, start, now() - start, size);
+  }
+
+  protected void record(String name, String detail, long start, long duration, long size) {
+    long seq = cursor.getAndIncrement();
+    int i = (int) (seq & mask);
+    published.set(i, 0);
+    names[i] = name;
+    details[i] = detail;
+    starts[i] = start;
+    durations[i] = duration;
+    sizes[i] = size;
+    threads[i] = Thread.currentThread().getId();
+    published.lazySet(i, seq + 1);
+  }
+
+  /** Number of events recorded, including overwritten ones. */
+  public long getRecordedCount() {
+    return cursor.get();
+  }
+
+  /** Events still in the buffer, oldest first. Events overwritten while reading are skipped. */
+  public List<Event> getEvents() {
+    long end = cursor.get();
+    List<Event> events = new ArrayList<>();
+    for (long seq = Math.max(0, end - mask - 1); seq < end; seq++) {
+      int i = (int) (seq & mask);
+      if (published.get(i) != seq + 1) {
+        continue;
+      }
+      Event event = new Event(names[i], details[i], starts[i], durations[i], sizes[i], threads[i]);
+      if (published.get(i) == seq + 1) {
+        events.add(event);
+      }
+    }
+    return events;
+  }
+
+  public void writeChromeTrace(Writer out) throws IOException {
+    out.write("{\"traceEvents\":[");
+    out.write("{\"name\":\"process_name\",\"ph\":\"M\",\"pid\":1,\"args\":{\"name\":\"servlet exchange\"}}");
+    for (Event event : getEvents()) {
+      out.write(",\n{\"name\":");
+      quote(out, event.name);
+      out.write(",\"cat\":\"exchange\",\"ph\":\"");
+      out.write(event.durationNanos < 0 ? "i\",\"s\":\"t" : "X");
+      out.write("\",\"ts\":");
+      out.write(micros(event.startNanos));
+      if (event.durationNanos >= 0) {
+        out.write(",\"dur\":");
+        out.write(micros(event.durationNanos));
+      }
+      out.write(",\"pid\":1,\"tid\":");
+      out.write(Long.toString(event.threadId));
+      if (event.detail != null || event.size >= 0) {
+        out.write(",\"args\":{");
+        if (event.detail != null) {
+          out.write("\"detail\":");
+          quote(out, event.detail);
+        }
+        if (event.size >= 0) {
+          out.write(event.detail != null ? ",\"size\":" : "\"size\":");
+          out.write(Long.toString(event.size));
+        }
+        out.write('}');
+      }
+      out.write('}');
+    }
+    out.write("]}\n");
+  }
+
+  public String toChromeTrace() {
+    StringWriter out = new StringWriter();
+    try {
+      writeChromeTrace(out);
+    } catch (IOException e) {
+      throw new RuntimeException(e);
+    }
+    return out.toString();
+  }
+
+  private static String micros(long nanos) {
+    return String.format(Locale.ROOT, "%.3f", nanos / 1000.0);
+  }
+
+  private static void quote(Writer out, String text) throws IOException {
+    out.write('"');
+    for (int i = 0; i < text.length(); i++) {
+      char c = text.charAt(i);
+      if (c == '"' || c == '\\') {
+        out.write('\\');
+        out.write(c);
+      } else if (c < 0x20) {
+        out.write(String.format("\\u%04x", (int) c));
+      } else {
+        out.write(c);
+      }
+    }
+    out.write('"');
+  }
+
+  public static class Event {
+    public final String name;
+    public final String detail;
+    public final long startNanos;
+    /** -1 for instant events */
+    public final long durationNanos;
+    /** bytes or characters written, -1 if not applicable */
+    public final long size;
+    public final long threadId;
+
+    Event(String name, String detail, long startNanos, long durationNanos, long size, long threadId) {
+      this.name = name;
+      this.detail = detail;
+      this.startNanos = startNanos;
+      this.durationNanos = durationNanos;
+      this.size = size;
+      this.threadId = threadId;
+    }
+
+    @Override
+    public String toString() {
+      return name + (detail != null ? "(" + detail + ")" : "") + "@" + startNanos
+             + (durationNanos >= 0 ? "+" + durationNanos : "") + (size >= 0 ? " size=" + size : "");
+    }
+  }
+}
@@ -0,0 +1,515 @@
+/*
+Copyright 2016 Eric Karge <e.karge@struction.de>
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+  http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+*/
+package org.tinyj.test.servlet;
+
+import org.tinyj.test.servlet.support.ThreadAllocation;
+
+import javax.servlet.*;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletRequestWrapper;
+import javax.servlet.http.HttpServletResponse;
+import javax.servlet.http.HttpServletResponseWrapper;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.io.Writer;
+import java.util.*;
+
+import static java.util.Collections.enumeration;
+import static java.util.Collections.unmodifiableList;
+import static org.tinyj.test.servlet.support.QueryStringFormatter.parseQueryString;
+
+/**
+ * Runs a request through a chain of {@link Filter}s into a {@link Servlet}
+ * without a container. Filters may wrap the request and response; the next
+ * element gets whatever they pass on. Requests see a
+ * {@link RequestDispatcher} for every registered dispatch target, and
+ * forward/include run the filters registered for that dispatcher type.
+ * <p>
+ * Each filter's time and allocation are split into self (excluding the rest of
+ * the chain) and total. Filters are used as given, {@code init} is not called.
+ */
+public class FilterChainRunner {
+
+  protected final List<Element> elements = new ArrayList<>();
+  protected final Element servlet;
+  protected final Map<String, Servlet> targets = new HashMap<>();
+
+  public FilterChainRunner(Servlet servlet) {
+    this.servlet = new Element(servlet.getClass().getSimpleName(), null, servlet, EnumSet.allOf(DispatcherType.class));
+  }
+
+  /** Adds a filter for {@code REQUEST} dispatches, or the given types. */
+  public FilterChainRunner withFilter(String name, Filter filter, DispatcherType... types) {
+    EnumSet<DispatcherType> dispatcherTypes = types.length == 0
+                                              ? EnumSet.of(DispatcherType.REQUEST)
+                                              : EnumSet.copyOf(Arrays.asList(types));
+    elements.add(new Element(name, filter, null, dispatcherTypes));
+    return this;
+  }
+
+  /** Makes {@code request.getRequestDispatcher(path)} resolve to {@code target}. */
+  public FilterChainRunner withDispatchTarget(String path, Servlet target) {
+    targets.put(path, target);
+    return this;
+  }
+
+  /** Runs the chain and closes the response, as a container would. */
+  public void run(HttpServletRequestMock request, HttpServletResponseMock response)
+      throws IOException, ServletException {
+    request.withRequestDispatchers(this::getRequestDispatcher);
+    new Chain(DispatcherType.REQUEST, servlet.servlet).doFilter(request, response);
+    response.close();
+  }
+
+  public RequestDispatcher getRequestDispatcher(String path) {
+    String target = path.split("\\?", 2)[0];
+    Servlet servlet = targets.get(target);
+    return servlet != null ? new Dispatcher(path, servlet) : null;
+  }
+
+  /** Per filter statistics in chain order, the servlet last. */
+  public List<Stats> getStats() {
+    List<Stats> stats = new ArrayList<>();
+    for (Element element : elements) {
+      stats.add(element.stats);
+    }
+    stats.add(servlet.stats);
+    return unmodifiableList(stats);
+  }
+
+  public void resetStats() {
+    for (Element element : elements) {
+      element.stats.reset();
+    }
+    servlet.stats.reset();
+  }
+
+  @Override
+  public String toString() {
+    StringBuilder out = new StringBuilder();
+    for (Stats stats : getStats()) {
+      out.append(stats).append('\n');
+    }
+    return out.toString();
+  }
+
+  protected static class Element {
+    final Filter filter;
+    final Servlet servlet;
+    final EnumSet<DispatcherType> types;
+    final Stats stats;
+
+    Element(String name, Filter filter, Servlet servlet, EnumSet<DispatcherType> types) {
+      this.filter = filter;
+      this.servlet = servlet;
+      this.types = types;
+      this.stats = new Stats(name);
+    }
+  }
+
+  public static class Stats {
+    private final String name;
+    private long calls;
+    private long totalNanos;
+    private long selfNanos;
+    private long totalBytes;
+    private long selfBytes;
+
+    Stats(String name) {
+      this.name = name;
+    }
+
+    synchronized void record(long nanos, long downstreamNanos, long bytes, long downstreamBytes) {
+      calls++;
+      totalNanos += nanos;
+      selfNanos += nanos - downstreamNanos;
+      totalBytes += bytes;
+      selfBytes += bytes - downstreamBytes;
+    }
+
+    synchronized void reset() {
+      calls = totalNanos = selfNanos = totalBytes = selfBytes = 0;
+    }
+
+    public String getName() {
+      return name;
+    }
+
+    public synchronized long getCalls() {
+      return calls;
+    }
+
+    /** Time including the rest of the chain. */
+    public synchronized long getTotalNanos() {
+      return totalNanos;
+    }
+
+    /** Time spent in this element, excluding the rest of the chain. */
+    public synchronized long getSelfNanos() {
+      return selfNanos;
+    }
+
+    /** Bytes allocated including the rest of the chain, -1 per call if the JVM can't tell. */
+    public synchronized long getTotalAllocatedBytes() {
+      return totalBytes;
+    }
+
+    public synchronized long getSelfAllocatedBytes() {
+      return selfBytes;
+    }
+
+    @Override
+    public synchronized String toString() {
+      return String.format("%-24s calls=%d self=%dus total=%dus self alloc=%dB total alloc=%dB",
+                           name, calls, selfNanos / 1000, totalNanos / 1000, selfBytes, totalBytes);
+    }
+  }
+
+  protected class Chain implements FilterChain {
+    final List<Element> chain = new ArrayList<>();
+    final long[] nanos;
+    final long[] bytes;
+    int position = 0;
+
+    Chain(DispatcherType type, Servlet target) {
+      for (Element element : elements) {
+        if (element.types.contains(type)) {
+          chain.add(element);
+        }
+      }
+      chain.add(target == servlet.servlet
+                ? servlet
+                : new Element(target.getClass().getSimpleName(), null, target, EnumSet.of(type)));
+      nanos = new long[chain.size() + 1];
+      bytes = new long[chain.size() + 1];
+    }
+
+    @Override
+    public void doFilter(ServletRequest request, ServletResponse response) throws IOException, ServletException {
+      if (position >= chain.size()) {
+        throw new IllegalStateException("chain already completed");
+      }
+      int index = position++;
+      Element element = chain.get(index);
+      long overhead = ThreadAllocation.counterOverhead();
+      long startBytes = ThreadAllocation.currentThread();
+      long start = System.nanoTime();
+      try {
+        if (element.filter != null) {
+          element.filter.doFilter(request, response, this);
+        } else {
+          element.servlet.service(request, response);
+        }
+      } finally {
+        long elapsed = System.nanoTime() - start;
+        long allocated = Math.max(0, ThreadAllocation.currentThread() - startBytes - overhead);
+        nanos[index] += elapsed;
+        bytes[index] += allocated;
+        element.stats.record(elapsed, nanos[index + 1], allocated, bytes[index + 1]);
+      }
+    }
+  }
+
+  protected class Dispatcher implements RequestDispatcher {
+    final String path;
+    final Servlet target;
+
+    Dispatcher(String path, Servlet target) {
+      this.path = path;
+      this.target = target;
+    }
+
+    @Override
+    public void forward(ServletRequest request, ServletResponse response) throws ServletException, IOException {
+      if (response.isCommitted()) {
+        throw new IllegalStateException("response already committed");
+      }
+      response.resetBuffer();
+      HttpServletRequest original = (HttpServletRequest) request;
+      request.setAttribute(FORWARD_REQUEST_URI, original.getRequestURI());
+      request.setAttribute(FORWARD_CONTEXT_PATH, original.getContextPath());
+      request.setAttribute(FORWARD_SERVLET_PATH, original.getServletPath());
+      request.setAttribute(FORWARD_PATH_INFO, original.getPathInfo());
+      request.setAttribute(FORWARD_QUERY_STRING, original.getQueryString());
+      new Chain(DispatcherType.FORWARD, target).doFilter(new DispatchedRequest(original, DispatcherType.FORWARD), response);
+      // the forwarded response is complete, close it through any wrappers
+      try {
+        response.getWriter().close();
+      } catch (IllegalStateException e) {
+        response.getOutputStream().close();
+      }
+    }
+
+    @Override
+    public void include(ServletRequest request, ServletResponse response) throws ServletException, IOException {
+      HttpServletRequest original = (HttpServletRequest) request;
+      DispatchedRequest included = new DispatchedRequest(original, DispatcherType.INCLUDE);
+      request.setAttribute(INCLUDE_REQUEST_URI, included.target());
+      request.setAttribute(INCLUDE_CONTEXT_PATH, original.getContextPath());
+      request.setAttribute(INCLUDE_SERVLET_PATH, "");
+      request.setAttribute(INCLUDE_PATH_INFO, included.target());
+      request.setAttribute(INCLUDE_QUERY_STRING, included.query);
+      try {
+        new Chain(DispatcherType.INCLUDE, target).doFilter(included, new IncludedResponse((HttpServletResponse) response));
+      } finally {
+        request.removeAttribute(INCLUDE_REQUEST_URI);
+        request.removeAttribute(INCLUDE_CONTEXT_PATH);
+        request.removeAttribute(INCLUDE_SERVLET_PATH);
+        request.removeAttribute(INCLUDE_PATH_INFO);
+        request.removeAttribute(INCLUDE_QUERY_STRING);
+      }
+    }
+
+    /** The original request seen through the dispatch path; included requests keep the original path. */
+    class DispatchedRequest extends HttpServletRequestWrapper {
+      final DispatcherType type;
+      final String query;
+      final Map<String, String[]> parameters = new LinkedHashMap<>();
+
+      DispatchedRequest(HttpServletRequest request, DispatcherType type) {
+        super(request);
+        this.type = type;
+        String[] parts = path.split("\\?", 2);
+        query = parts.length > 1 ? parts[1] : null;
+        if (query != null) {
+          for (Map.Entry<String, List<String>> entry : parseQueryString(query, "UTF-8").entrySet()) {
+            parameters.put(entry.getKey(), entry.getValue().toArray(new String[0]));
+          }
+        }
+        for (Map.Entry<String, String[]> entry : request.getParameterMap().entrySet()) {
+          parameters.merge(entry.getKey(), entry.getValue(), (added, existing) -> {
+            String[] merged = Arrays.copyOf(added, added.length + existing.length);
+            System.arraycopy(existing, 0, merged, added.length, existing.length);
+            return merged;
+          });
+        }
+      }
+
+      String target() {
+        return path.split("\\?", 2)[0];
+      }
+
+      @Override
+      public DispatcherType getDispatcherType() {
+        return type;
+      }
+
+      @Override
+      public String getRequestURI() {
+        return type == DispatcherType.FORWARD ? getContextPath() + target() : super.getRequestURI();
+      }
+
+      @Override
+      public StringBuffer getRequestURL() {
+        if (type != DispatcherType.FORWARD) {
+          return super.getRequestURL();
+        }
+        return new StringBuffer(getScheme() + "://" + getServerName() + ':' + getServerPort() + getRequestURI());
+      }
+
+      @Override
+      public String getServletPath() {
+        return type == DispatcherType.FORWARD ? "" : super.getServletPath();
+      }
+
+      @Override
+      public String getPathInfo() {
+        return type == DispatcherType.FORWARD ? target() : super.getPathInfo();
+      }
+
+      @Override
+      public String getQueryString() {
+        return type == DispatcherType.FORWARD && query != null ? query : super.getQueryString();
+      }
+
+      @Override
+      public String getParameter(String name) {
+        String[] values = parameters.get(name);
+        return values != null && values.length > 0 ? values[0] : null;
+      }
+
+      @Override
+      public String[] getParameterValues(String name) {
+        return parameters.get(name);
+      }
+
+      @Override
+      public Map<String, String[]> getParameterMap() {
+        return Collections.unmodifiableMap(parameters);
+      }
+
+      @Override
+      public Enumeration<String> getParameterNames() {
+        return enumeration(parameters.keySet());
+      }
+    }
+  }
+
+  /**
+   * Included servlets can't change status or headers, nor commit by flushing,
+   * closing, sending an error or redirecting.
+   */
+  static class IncludedResponse extends HttpServletResponseWrapper {
+
+    private ServletOutputStream stream;
+    private PrintWriter writer;
+
+    IncludedResponse(HttpServletResponse response) {
+      super(response);
+    }
+
+    @Override
+    public ServletOutputStream getOutputStream() throws IOException {
+      if (stream == null) {
+        ServletOutputStream out = super.getOutputStream();
+        stream = new ServletOutputStream() {
+          @Override
+          public boolean isReady() {
+            return out.isReady();
+          }
+
+          @Override
+          public void setWriteListener(WriteListener writeListener) {
+            out.setWriteListener(writeListener);
+          }
+
+          @Override
+          public void write(int b) throws IOException {
+            out.write(b);
+          }
+
+          @Override
+          public void write(byte[] b, int off, int len) throws IOException {
+            out.write(b, off, len);
+          }
+
+          @Override
+          public void flush() {
+          }
+
+          @Override
+          public void close() {
+          }
+        };
+      }
+      return stream;
+    }
+
+    @Override
+    public PrintWriter getWriter() throws IOException {
+      if (writer == null) {
+        PrintWriter out = super.getWriter();
+        writer = new PrintWriter(new Writer() {
+          @Override
+          public void write(char[] cbuf, int off, int len) {
+            out.write(cbuf, off, len);
+          }
+
+          @Override
+          public void write(String str, int off, int len) {
+            out.write(str, off, len);
+          }
+
+          @Override
+          public void flush() {
+          }
+
+          @Override
+          public void close() {
+          }
+        });
+      }
+      return writer;
+    }
+
+    @Override
+    public void flushBuffer() {
+    }
+
+    @Override
+    public void reset() {
+    }
+
+    @Override
+    public void sendError(int sc) {
+    }
+
+    @Override
+    public void sendError(int sc, String msg) {
+    }
+
+    @Override
+    public void sendRedirect(String location) {
+    }
+
+    @Override
+    public void setStatus(int sc) {
+    }
+
+    @Override
+    @SuppressWarnings("deprecation")
+    public void setStatus(int sc, String sm) {
+    }
+
+    @Override
+    public void setHeader(String name, String value) {
+    }
+
+    @Override
+    public void addHeader(String name, String value) {
+    }
+
+    @Override
+    public void setIntHeader(String name, int value) {
+    }
+
+    @Override
+    public void addIntHeader(String name, int value) {
+    }
+
+    @Override
+    public void setDateHeader(String name, long date) {
+    }
+
+    @Override
+    public void addDateHeader(String name, long date) {
+    }
+
+    @Override
+    public void setContentType(String type) {
+    }
+
+    @Override
+    public void setContentLength(int len) {
+    }
+
+    @Override
+    public void setContentLengthLong(long len) {
+    }
+
+    @Override
+    public void setCharacterEncoding(String charset) {
+    }
+
+    @Override
+    public void setLocale(Locale loc) {
+    }
+
+    @Override
+    public void addCookie(javax.servlet.http.Cookie cookie) {
+    }
+  }
+}
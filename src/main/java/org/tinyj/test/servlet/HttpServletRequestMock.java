@@ -15,7 +15,9 @@ limitations under the License.
 */
 package org.tinyj.test.servlet;
 
+import org.tinyj.test.servlet.support.AttributeStore;
 import org.tinyj.test.servlet.support.CookieFormatter;
+import org.tinyj.test.servlet.support.ServletContexts;
 
 import javax.servlet.*;
 import javax.servlet.http.*;
@@ -26,9 +28,12 @@ import java.io.UnsupportedEncodingException;
 import java.net.URI;
 import java.nio.ByteBuffer;
 import java.security.Principal;
+import java.time.Clock;
 import java.time.Instant;
 import java.time.format.DateTimeFormatter;
 import java.util.*;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.function.Function;
 
 import static java.lang.Integer.parseInt;
 import static java.lang.Long.parseLong;
@@ -39,13 +44,24 @@ import static org.tinyj.test.servlet.support.QueryStringFormatter.parseQueryStri
 public class HttpServletRequestMock
     implements HttpServletRequest {
 
+  /** Cookie the requested session id is taken from unless set explicitly. */
+  public static final String SESSION_COOKIE = "JSESSIONID";
+
   private ServletInputStream input;
-  private HashMap<String, Object> attributes;
+  private AttributeStore attributes = AttributeStore.singleThreaded();
+  private HashMap<String, Object> configuredAttributes = new HashMap<>();
+  private final List<ServletRequestAttributeListener> attributeListeners = new CopyOnWriteArrayList<>();
 
   private String authType;
   private Principal userPrincipal;
   private String remoteUser;
   private HttpSessionMock session;
+  private HttpSessionMock configuredSession;
+  private final List<HttpSessionMock> invalidatedSessions = new ArrayList<>();
+  private SessionManager sessionManager;
+  private ExchangeTrace trace;
+  private Clock clock = Clock.systemUTC();
+  private Function<String, RequestDispatcher> dispatchers;
   private String requestedSessionId = null;
 
   private String protocol = "HTTP/1.1";
@@ -53,6 +69,7 @@ public class HttpServletRequestMock
   private String contextPath = "";
   private String servletPath = "";
   private String path = null;
+  private String requestURI = null;
 
   private String queryString;
 
@@ -110,8 +127,8 @@ public class HttpServletRequestMock
 
   @Override
   public Cookie[] getCookies() {
-    Cookie[] cookies = headers.getOrDefault("Cookie", emptyList()).stream()
-        .map(CookieFormatter::parseCookie)
+    Cookie[] cookies = headers.getOrDefault("cookie", emptyList()).stream()
+        .flatMap(header -> CookieFormatter.parseCookieHeader(header).stream())
         .toArray(Cookie[]::new);
     return cookies.length > 0 ? cookies : null;
   }
@@ -171,7 +188,10 @@ public class HttpServletRequestMock
 
   @Override
   public String getRequestURI() {
-    return contextPath + servletPath + Optional.ofNullable(path).orElse("/");
+    if (requestURI == null) {
+      requestURI = contextPath + servletPath + (path != null ? path : servletPath.isEmpty() ? "/" : "");
+    }
+    return requestURI;
   }
 
   @Override
@@ -280,32 +300,78 @@ public class HttpServletRequestMock
 
   @Override
   public HttpSessionMock getSession(boolean create) {
-    return session != null ? session : create ? new HttpSessionMock() : null;
+    dropInvalidatedSession();
+    if (session == null && sessionManager != null) {
+      session = sessionManager.access(getRequestedSessionId());
+    }
+    if (session == null && create) {
+      session = sessionManager != null ? sessionManager.createSession() : new HttpSessionMock(clock);
+    }
+    if (trace != null) {
+      trace.instant("getSession", session != null ? session.getId() : null);
+    }
+    return session;
   }
 
   @Override
   public HttpSessionMock getSession() {
-    return session;
+    return getSession(true);
+  }
+
+  private void dropInvalidatedSession() {
+    if (session != null && !session.isValid()) {
+      invalidatedSessions.add(session);
+      session = null;
+    }
+  }
+
+  /**
+   * Sessions handed out by this request that have been invalidated since,
+   * in the order they were dropped.
+   */
+  List<HttpSessionMock> drainInvalidatedSessions() {
+    dropInvalidatedSession();
+    List<HttpSessionMock> invalidated = new ArrayList<>(invalidatedSessions);
+    invalidatedSessions.clear();
+    return invalidated;
   }
 
   @Override
   public String changeSessionId() {
-    return getSession(true).getId();
+    HttpSessionMock session = getSession(false);
+    if (session == null) {
+      throw new IllegalStateException();
+    }
+    return sessionManager != null ? sessionManager.changeSessionId(session) : session.getId();
   }
 
   @Override
   public String getRequestedSessionId() {
-    return requestedSessionId;
+    return requestedSessionId != null ? requestedSessionId : sessionCookie();
+  }
+
+  private String sessionCookie() {
+    for (String header : headers.getOrDefault("cookie", emptyList())) {
+      for (Cookie cookie : CookieFormatter.parseCookieHeader(header)) {
+        if (cookie.getName().equals(SESSION_COOKIE)) {
+          return cookie.getValue();
+        }
+      }
+    }
+    return null;
   }
 
   @Override
   public boolean isRequestedSessionIdValid() {
-    return requestedSessionId != null;
+    if (sessionManager != null) {
+      return sessionManager.getSession(getRequestedSessionId()) != null;
+    }
+    return getRequestedSessionId() != null;
   }
 
   @Override
   public boolean isRequestedSessionIdFromCookie() {
-    return false;
+    return requestedSessionId == null && sessionCookie() != null;
   }
 
   @Override
@@ -328,17 +394,43 @@ public class HttpServletRequestMock
 
   @Override
   public Enumeration<String> getAttributeNames() {
-    return enumeration(attributes.keySet());
+    return enumeration(new ArrayList<>(attributes.names()));
   }
 
   @Override
   public void setAttribute(String name, Object o) {
-    attributes.put(name, o);
+    if (o == null) {
+      removeAttribute(name);
+      return;
+    }
+    Object old = attributes.put(name, o);
+    if (attributeListeners.isEmpty()) {
+      return;
+    }
+    ServletRequestAttributeEvent event = attributeEvent(name, old != null ? old : o);
+    for (ServletRequestAttributeListener listener : attributeListeners) {
+      if (old != null) {
+        listener.attributeReplaced(event);
+      } else {
+        listener.attributeAdded(event);
+      }
+    }
   }
 
   @Override
   public void removeAttribute(String name) {
-    attributes.remove(name);
+    Object old = attributes.remove(name);
+    if (old == null || attributeListeners.isEmpty()) {
+      return;
+    }
+    ServletRequestAttributeEvent event = attributeEvent(name, old);
+    for (ServletRequestAttributeListener listener : attributeListeners) {
+      listener.attributeRemoved(event);
+    }
+  }
+
+  private ServletRequestAttributeEvent attributeEvent(String name, Object value) {
+    return new ServletRequestAttributeEvent(ServletContexts.detached(), this, name, value);
   }
 
 
@@ -425,7 +517,7 @@ public class HttpServletRequestMock
 
   @Override
   public RequestDispatcher getRequestDispatcher(String path) {
-    return null;
+    return dispatchers != null ? dispatchers.apply(path) : null;
   }
 
   @Override
@@ -440,11 +532,17 @@ public class HttpServletRequestMock
 
   @Override
   public AsyncContext startAsync() throws IllegalStateException {
+    if (trace != null) {
+      trace.instant("startAsync", "unsupported");
+    }
     throw new IllegalStateException();
   }
 
   @Override
   public AsyncContext startAsync(ServletRequest servletRequest, ServletResponse servletResponse) throws IllegalStateException {
+    if (trace != null) {
+      trace.instant("startAsync", "unsupported");
+    }
     throw new IllegalStateException();
   }
 
@@ -484,12 +582,63 @@ public class HttpServletRequestMock
   }
 
   public HttpServletRequestMock withAttributes(HashMap<String, Object> attributes) {
-    this.attributes = attributes;
+    this.attributes = new AttributeStore(attributes);
+    this.configuredAttributes = new HashMap<>(attributes);
+    return this;
+  }
+
+  public HttpServletRequestMock withConcurrentAttributes() {
+    this.attributes = attributes.toConcurrent();
+    return this;
+  }
+
+  public HttpServletRequestMock withAttributeListener(ServletRequestAttributeListener listener) {
+    attributeListeners.add(listener);
     return this;
   }
 
   public HttpServletRequestMock withSession(HttpSessionMock session) {
     this.session = session;
+    this.configuredSession = session;
+    return this;
+  }
+
+  /**
+   * Prepares the request for another exchange: the body is rewound, the
+   * attributes and the session are set back to what {@link #withAttributes}
+   * and {@link #withSession} configured, so a session the servlet obtained
+   * is looked up again through the session manager. Everything else the
+   * {@code with} methods configured is kept as is.
+   */
+  public HttpServletRequestMock recycle() {
+    if (input instanceof BodyStream) {
+      ((BodyStream) input).buffer.rewind();
+    }
+    attributes.clear();
+    configuredAttributes.forEach(attributes::put);
+    session = configuredSession;
+    invalidatedSessions.clear();
+    return this;
+  }
+
+  /** Clock for sessions created without a session manager. */
+  public HttpServletRequestMock withClock(Clock clock) {
+    this.clock = clock;
+    return this;
+  }
+
+  public HttpServletRequestMock withRequestDispatchers(Function<String, RequestDispatcher> dispatchers) {
+    this.dispatchers = dispatchers;
+    return this;
+  }
+
+  public HttpServletRequestMock withTrace(ExchangeTrace trace) {
+    this.trace = trace;
+    return this;
+  }
+
+  public HttpServletRequestMock withSessionManager(SessionManager sessionManager) {
+    this.sessionManager = sessionManager;
     return this;
   }
 
@@ -510,21 +659,41 @@ public class HttpServletRequestMock
 
   public HttpServletRequestMock withContextPath(String contextPath) {
     this.contextPath = contextPath;
+    this.requestURI = null;
     return this;
   }
 
   public HttpServletRequestMock withServletPath(String servletPath) {
     this.servletPath = servletPath;
+    this.requestURI = null;
     return this;
   }
 
   public HttpServletRequestMock withPath(String path) {
     this.path = path;
+    this.requestURI = null;
     return this;
   }
 
+  /** Request URI as received; by default it is built from context path, servlet path and path. */
+  public HttpServletRequestMock withRequestURI(String requestURI) {
+    this.requestURI = requestURI;
+    return this;
+  }
+
+  /** Header names are case-insensitive and stored lower case. */
   public HttpServletRequestMock withHeaders(HashMap<String, List<String>> headers) {
-    this.headers.putAll(headers);
+    headers.forEach((name, values) -> this.headers.put(name.toLowerCase(), values));
+    return this;
+  }
+
+  /** Replaces the header's values; a null value removes it. */
+  public HttpServletRequestMock withHeader(String name, String value) {
+    if (value == null) {
+      headers.remove(name.toLowerCase());
+    } else {
+      headers.put(name.toLowerCase(), new ArrayList<>(singletonList(value)));
+    }
     return this;
   }
 
@@ -532,10 +701,24 @@ public class HttpServletRequestMock
   public HttpServletRequestMock withParameters(HashMap<String, List<String>> parameters) {
     this.parameters.putAll(parameters.entrySet().stream()
         .filter(e -> e.getValue() != null && !e.getValue().isEmpty())
-        .collect(toMap(Map.Entry::getKey, e -> (String[]) e.getValue().toArray())));
+        .collect(toMap(Map.Entry::getKey, e -> e.getValue().toArray(new String[0]))));
     return this;
   }
 
+  /** Sets the {@code Range} header, e.g. {@code withRange("bytes=0-499,-500")}. */
+  public HttpServletRequestMock withRange(String range) {
+    return withHeader("Range", range);
+  }
+
+  /**
+   * The {@code Range} header parsed against a resource of {@code length} bytes.
+   *
+   * @see ByteRange#parse(String, long)
+   */
+  public List<ByteRange> getRanges(long length) {
+    return ByteRange.parse(getHeader("Range"), length);
+  }
+
   public HttpServletRequestMock withQueryString(String queryString) {
     this.queryString = queryString;
     withParameters(parseQueryString(queryString, "UTF-8"));
@@ -578,31 +761,58 @@ public class HttpServletRequestMock
   }
 
   public HttpServletRequest withBody(String body) {
-    final ByteBuffer buffer = ByteBuffer.wrap(body.getBytes());
-    input = new ServletInputStream() {
-      @Override
-      public boolean isFinished() {
-        return !buffer.hasRemaining();
-      }
+    return withBody(body.getBytes());
+  }
 
-      @Override
-      public boolean isReady() {
-        return buffer.hasRemaining();
-      }
+  public HttpServletRequestMock withBody(byte[] body) {
+    input = new BodyStream(ByteBuffer.wrap(body));
+    return this;
+  }
+
+  private static class BodyStream extends ServletInputStream {
+
+    private final ByteBuffer buffer;
 
-      @Override
-      public void setReadListener(ReadListener readListener) {
+    BodyStream(ByteBuffer buffer) {
+      this.buffer = buffer;
+    }
+
+    @Override
+    public boolean isFinished() {
+      return !buffer.hasRemaining();
+    }
+
+    @Override
+    public boolean isReady() {
+      return buffer.hasRemaining();
+    }
+
+    @Override
+    public void setReadListener(ReadListener readListener) {
+    }
+
+    @Override
+    public int read() throws IOException {
+      if (buffer.hasRemaining()) {
+        MockMetrics.onBytesIn(1);
+        return buffer.get() & 0xff;
       }
+      return -1;
+    }
 
-      @Override
-      public int read() throws IOException {
-        if (buffer.hasRemaining()) {
-          return buffer.get();
-        }
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+      if (len == 0) {
+        return 0;
+      }
+      if (!buffer.hasRemaining()) {
         return -1;
       }
-    };
-    return this;
+      int n = Math.min(len, buffer.remaining());
+      buffer.get(b, off, n);
+      MockMetrics.onBytesIn(n);
+      return n;
+    }
   }
 
   private static class InStream extends ServletInputStream {
@@ -15,6 +15,8 @@ limitations under the License.
 */
 package org.tinyj.test.servlet;
 
+import org.tinyj.test.servlet.support.ByteArrayBuffer;
+import org.tinyj.test.servlet.support.SpillingRecorder;
 import org.tinyj.test.servlet.support.WriterSplitter;
 
 import javax.servlet.ServletOutputStream;
@@ -22,7 +24,13 @@ import javax.servlet.WriteListener;
 import javax.servlet.http.Cookie;
 import javax.servlet.http.HttpServletResponse;
 import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.GatheringByteChannel;
+import java.nio.channels.WritableByteChannel;
 import java.nio.charset.Charset;
+import java.time.Clock;
 import java.time.Instant;
 import java.util.*;
 
@@ -41,15 +49,17 @@ public class HttpServletResponseMock
   public static final Charset ASCII = Charset.forName("ASCII");
 
   protected OutputStream output;
+  protected WritableByteChannel channel;
   protected Locale locale = null;
 
   protected String encoding = null;
   protected boolean commited = false;
+  protected boolean closed = false;
 
   protected int status;
   protected String statusMessage;
   protected Map<String, List<String>> headers = new HashMap<>();
-  protected ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+  protected ByteArrayBuffer buffer = new ByteArrayBuffer();
   protected PrintWriter writer;
   protected ServletOutputStream stream;
 
@@ -57,9 +67,20 @@ public class HttpServletResponseMock
   protected String commitedStatusMessage = null;
   protected Map<String, List<String>> commitedHeaders = new HashMap<>();
 
-  protected final ByteArrayOutputStream headerRecorder = new ByteArrayOutputStream();
-  protected final ByteArrayOutputStream bodyRecorder = new ByteArrayOutputStream();
-  private Writer bodyWriter = new StringWriter();
+  protected final ByteArrayBuffer headerRecorder = new ByteArrayBuffer();
+  protected SpillingRecorder bodyRecorder = new SpillingRecorder();
+  private CharRecorder bodyWriter = new CharRecorder(SpillingRecorder.DEFAULT_THRESHOLD);
+  protected boolean recordBody = true;
+  protected final List<ResponseListener> listeners = new ArrayList<>();
+  protected ExchangeTrace trace;
+  protected Clock dateClock;
+
+  protected long createdNanos = System.nanoTime();
+  protected long firstWriteNanos = -1;
+  protected long commitNanos = -1;
+  protected long closeNanos = -1;
+  protected long[] flushNanos = new long[4];
+  protected int flushCount = 0;
 
   public HttpServletResponseMock() {
     this(new OutputStream() {
@@ -74,6 +95,44 @@ public class HttpServletResponseMock
     this.output = output;
   }
 
+  public HttpServletResponseMock(WritableByteChannel channel) {
+    this(Channels.newOutputStream(channel));
+    this.channel = channel;
+  }
+
+  public HttpServletResponseMock withBodySpillThreshold(int threshold) {
+    if (bodyRecorder.size() > 0) {
+      throw new IllegalStateException();
+    }
+    bodyRecorder = new SpillingRecorder(threshold);
+    bodyWriter = new CharRecorder(threshold);
+    return this;
+  }
+
+  public HttpServletResponseMock withBodyRecording(boolean recordBody) {
+    if (writer != null || bodyRecorder.size() > 0) {
+      throw new IllegalStateException();
+    }
+    this.recordBody = recordBody;
+    return this;
+  }
+
+  /** Adds a {@code Date} header from {@code clock} on commit unless the servlet set one, like a container would. */
+  public HttpServletResponseMock withDateHeader(Clock clock) {
+    this.dateClock = clock;
+    return this;
+  }
+
+  public HttpServletResponseMock withTrace(ExchangeTrace trace) {
+    this.trace = trace;
+    return this;
+  }
+
+  public HttpServletResponseMock withListener(ResponseListener listener) {
+    listeners.add(listener);
+    return this;
+  }
+
   @Override
   public boolean containsHeader(String name) {
     return headers.containsKey(name);
@@ -110,6 +169,9 @@ public class HttpServletResponseMock
       throw new IllegalStateException();
     }
     status = sc;
+    if (trace != null) {
+      trace.instant("setStatus", Integer.toString(sc));
+    }
   }
 
   @Override
@@ -121,6 +183,9 @@ public class HttpServletResponseMock
   @Override
   public void setHeader(String name, String value) {
     headers.put(name, new ArrayList<>(singletonList(value)));
+    if (trace != null) {
+      trace.instant("setHeader", name);
+    }
   }
 
   @Override
@@ -128,6 +193,9 @@ public class HttpServletResponseMock
     List<String> values = headers.getOrDefault(name, new ArrayList<>());
     values.add(value);
     headers.put(name, values);
+    if (trace != null) {
+      trace.instant("addHeader", name);
+    }
   }
 
   @Override
@@ -232,7 +300,14 @@ public class HttpServletResponseMock
     return commited;
   }
 
+  public boolean isClosed() {
+    return closed;
+  }
+
   public void close() throws IOException {
+    if (closed) {
+      return;
+    }
     if (stream != null && stream.isReady()) {
       if (writer != null) {
         writer.close();
@@ -241,17 +316,32 @@ public class HttpServletResponseMock
       }
       return;
     }
+    long started = traceNow();
+    long size = buffer.size();
     if (!isCommitted()) {
       if (getHeader("Content-Length") == null
           && !Objects.equals(getHeader("Transfer-Encoding"), "identity")) {
         setContentLength(buffer.size());
       }
-      commit();
+      recordHeaders();
+      send(headerRecorder, buffer);
+    } else {
+      send(buffer);
+    }
+    if (recordBody) {
+      buffer.writeTo(bodyRecorder);
     }
-    buffer.writeTo(output);
-    buffer.writeTo(bodyRecorder);
     buffer.close();
     output.close();
+    closed = true;
+    closeNanos = elapsed();
+    MockMetrics.onRequest();
+    if (trace != null) {
+      trace.span("close", started, size);
+    }
+    for (ResponseListener listener : listeners) {
+      listener.onClose();
+    }
   }
 
   @Override
@@ -264,20 +354,49 @@ public class HttpServletResponseMock
       }
       return;
     }
+    long started = traceNow();
+    long size = buffer.size();
     if (!isCommitted()) {
-      commit();
+      recordHeaders();
+      send(headerRecorder, buffer);
+    } else {
+      send(buffer);
+    }
+    if (recordBody) {
+      buffer.writeTo(bodyRecorder);
     }
-    buffer.writeTo(output);
-    buffer.writeTo(bodyRecorder);
     buffer.reset();
-    output.flush();
+    if (flushCount == flushNanos.length) {
+      flushNanos = Arrays.copyOf(flushNanos, flushCount * 2);
+    }
+    flushNanos[flushCount++] = elapsed();
+    MockMetrics.onFlush();
+    if (trace != null) {
+      trace.span("flushBuffer", started, size);
+    }
+    for (ResponseListener listener : listeners) {
+      listener.onFlush();
+    }
   }
 
   public void commit() throws IOException {
+    recordHeaders();
+    send(headerRecorder);
+  }
+
+  protected void recordHeaders() throws IOException {
     if (isCommitted()) {
       throw new IllegalStateException();
     }
+    if (dateClock != null && !containsHeader("Date")) {
+      setDateHeader("Date", dateClock.millis());
+    }
     commited = true;
+    commitNanos = elapsed();
+    MockMetrics.onCommit(status);
+    if (trace != null) {
+      trace.instant("commit", Integer.toString(status));
+    }
 
     commitedStatus = status;
     commitedStatusMessage = statusMessage;
@@ -293,9 +412,39 @@ public class HttpServletResponseMock
       }
     }
     headerRecorder.write(toAscii("\r\n"));
+  }
 
-    headerRecorder.writeTo(output);
-    output.flush();
+  protected void send(ByteArrayBuffer... parts) throws IOException {
+    if (MockMetrics.get() != null) {
+      for (ByteArrayBuffer part : parts) {
+        MockMetrics.onBytesOut(part.size());
+      }
+    }
+    if (channel == null) {
+      for (ByteArrayBuffer part : parts) {
+        part.writeTo(output);
+      }
+      output.flush();
+      return;
+    }
+    ByteBuffer[] srcs = new ByteBuffer[parts.length];
+    long remaining = 0;
+    for (int i = 0; i < parts.length; i++) {
+      srcs[i] = parts[i].asByteBuffer();
+      remaining += srcs[i].remaining();
+    }
+    if (channel instanceof GatheringByteChannel) {
+      GatheringByteChannel gathering = (GatheringByteChannel) channel;
+      while (remaining > 0) {
+        remaining -= gathering.write(srcs);
+      }
+    } else {
+      for (ByteBuffer src : srcs) {
+        while (src.hasRemaining()) {
+          channel.write(src);
+        }
+      }
+    }
   }
 
   @Override
@@ -303,7 +452,21 @@ public class HttpServletResponseMock
     if (isCommitted()) {
       throw new IllegalStateException();
     }
+    drainWriter();
     buffer.reset();
+    bodyWriter.reset();
+    notifyReset();
+  }
+
+  /** Moves characters still held by the writer's encoder into the buffer without committing. */
+  private void drainWriter() {
+    if (writer != null) {
+      OutStream out = (OutStream) stream;
+      boolean closing = out.closing;
+      out.closing = true;
+      writer.flush();
+      out.closing = closing;
+    }
   }
 
   @Override
@@ -315,8 +478,40 @@ public class HttpServletResponseMock
     statusMessage = null;
     headers.clear();
     buffer.reset();
+    bodyWriter.reset();
     writer = null;
     stream = null;
+    notifyReset();
+  }
+
+  /**
+   * Returns a committed or closed response to its freshly created state for
+   * another exchange, keeping what the {@code with} methods configured. The
+   * recorded headers and body are discarded.
+   */
+  public HttpServletResponseMock recycle() throws IOException {
+    commited = false;
+    closed = false;
+    commitedStatus = null;
+    commitedStatusMessage = null;
+    commitedHeaders.clear();
+    headerRecorder.reset();
+    bodyRecorder.discard();
+    encoding = null;
+    locale = null;
+    status = 200;
+    statusMessage = null;
+    headers.clear();
+    buffer.reset();
+    bodyWriter.reset();
+    writer = null;
+    stream = null;
+    createdNanos = System.nanoTime();
+    firstWriteNanos = -1;
+    commitNanos = -1;
+    closeNanos = -1;
+    flushCount = 0;
+    return this;
   }
 
   @Override
@@ -328,6 +523,9 @@ public class HttpServletResponseMock
       return stream;
     }
     stream = new OutStream();
+    if (trace != null) {
+      trace.instant("getOutputStream", null);
+    }
     return stream;
   }
 
@@ -340,9 +538,51 @@ public class HttpServletResponseMock
       throw new IllegalStateException();
     }
     setCharacterEncoding(getCharacterEncoding());
-    OutputStreamWriter writer1 = new OutputStreamWriter(getOutputStream(), getCharacterEncoding());
+    OutStream out = new OutStream();
+    stream = out;
+    if (trace != null) {
+      trace.instant("getWriter", getCharacterEncoding());
+    }
+    OutputStreamWriter writer1 = new OutputStreamWriter(out, getCharacterEncoding()) {
+      @Override
+      public void write(int c) throws IOException {
+        long started = startWrite(1);
+        super.write(c);
+        if (!listeners.isEmpty()) {
+          notifyWriterWrite(String.valueOf((char) c));
+        }
+        endWrite("writer.write", started, 1);
+      }
+
+      @Override
+      public void write(char[] cbuf, int off, int len) throws IOException {
+        long started = startWrite(len);
+        super.write(cbuf, off, len);
+        if (!listeners.isEmpty()) {
+          notifyWriterWrite(CharBuffer.wrap(cbuf, off, len));
+        }
+        endWrite("writer.write", started, len);
+      }
+
+      @Override
+      public void write(String str, int off, int len) throws IOException {
+        long started = startWrite(len);
+        super.write(str, off, len);
+        if (!listeners.isEmpty()) {
+          notifyWriterWrite(CharBuffer.wrap(str, off, off + len));
+        }
+        endWrite("writer.write", started, len);
+      }
+
+      @Override
+      public void close() throws IOException {
+        // newer JDKs flush the stream before closing it, don't let that commit early
+        out.closing = true;
+        super.close();
+      }
+    };
     Writer writer2 = HttpServletResponseMock.this.bodyWriter;
-    writer = new PrintWriter(new WriterSplitter(writer2, writer1));
+    writer = new PrintWriter(recordBody ? new WriterSplitter(writer2, writer1) : writer1);
     return writer;
   }
 
@@ -399,17 +639,131 @@ public class HttpServletResponseMock
     return headerRecorder.toByteArray();
   }
 
+  public ByteBuffer getHeaderBuffer() {
+    return headerRecorder.asByteBuffer().asReadOnlyBuffer();
+  }
+
   public byte[] getSendBodyBytes() {
-    return bodyRecorder.toByteArray();
+    try {
+      return bodyRecorder.toByteArray();
+    } catch (IOException e) {
+      throw new RuntimeException(e);
+    }
+  }
+
+  public long getSendBodySize() {
+    return bodyRecorder.size();
+  }
+
+  public InputStream getSendBodyStream() throws IOException {
+    return bodyRecorder.toInputStream();
   }
 
+  public ByteBuffer getSendBodyBuffer() throws IOException {
+    return bodyRecorder.toByteBuffer();
+  }
+
+  public void writeSendBodyTo(WritableByteChannel target) throws IOException {
+    bodyRecorder.writeTo(target);
+  }
+
+  /**
+   * Text written through {@link #getWriter()}. Bodies beyond the spill
+   * threshold aren't kept as characters; they are decoded from the recorded
+   * bytes on demand.
+   */
   public String getSendBody() {
-    return bodyWriter.toString();
+    if (!bodyWriter.isTruncated()) {
+      return bodyWriter.toString();
+    }
+    try {
+      return new String(bodyRecorder.toByteArray(), getCharacterEncoding());
+    } catch (IOException e) {
+      throw new RuntimeException(e);
+    }
+  }
+
+  /**
+   * Drops the recorded body and deletes its temporary file if it was
+   * spilled. Call this once done with a large response.
+   */
+  public void release() throws IOException {
+    bodyRecorder.discard();
+    bodyWriter.reset();
+  }
+
+  /** {@link System#nanoTime()} when this response was created. */
+  public long getCreatedNanos() {
+    return createdNanos;
+  }
+
+  /** Nanoseconds from creation to the first body write, -1 if nothing was written. */
+  public long getFirstWriteNanos() {
+    return firstWriteNanos;
+  }
+
+  /** Nanoseconds from creation to commit, -1 if not committed. */
+  public long getCommitNanos() {
+    return commitNanos;
+  }
+
+  /** Nanoseconds from creation to each flush that reached the client. */
+  public long[] getFlushNanos() {
+    return Arrays.copyOf(flushNanos, flushCount);
+  }
+
+  /** Nanoseconds from creation to close, -1 if not closed. */
+  public long getCloseNanos() {
+    return closeNanos;
+  }
+
+  /** Time to first byte: the status line and headers go out on commit. */
+  public long getTimeToFirstByteNanos() {
+    return commitNanos;
+  }
+
+  /** Time to last byte: the body is complete on close. */
+  public long getTimeToLastByteNanos() {
+    return closeNanos;
+  }
+
+  private void notifyReset() {
+    for (ResponseListener listener : listeners) {
+      listener.onReset();
+    }
+  }
+
+  private void notifyWriterWrite(CharSequence chars) {
+    for (ResponseListener listener : listeners) {
+      listener.onWriterWrite(chars);
+    }
+  }
+
+  private long startWrite(int len) {
+    if (len > 0 && firstWriteNanos < 0) {
+      firstWriteNanos = elapsed();
+    }
+    return traceNow();
+  }
+
+  private void endWrite(String name, long started, int len) {
+    if (trace != null) {
+      trace.span(name, started, len);
+    }
+  }
+
+  private long traceNow() {
+    return trace != null ? trace.now() : 0;
+  }
+
+  private long elapsed() {
+    return System.nanoTime() - createdNanos;
   }
 
   class OutStream extends ServletOutputStream {
 
     private boolean ready = true;
+    private boolean closing = false;
 
     @Override
     public boolean isReady() {
@@ -430,7 +784,25 @@ public class HttpServletResponseMock
       if (!isReady()) {
         throw new IllegalStateException();
       }
+      long started = startWrite(1);
       buffer.write(b);
+      for (ResponseListener listener : listeners) {
+        listener.onWrite(b);
+      }
+      endWrite("write", started, 1);
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+      if (!isReady()) {
+        throw new IllegalStateException();
+      }
+      long started = startWrite(len);
+      buffer.write(b, off, len);
+      for (ResponseListener listener : listeners) {
+        listener.onWrite(b, off, len);
+      }
+      endWrite("write", started, len);
     }
 
     @Override
@@ -441,7 +813,7 @@ public class HttpServletResponseMock
 
     @Override
     public void flush() throws IOException {
-      if (isReady()) {
+      if (isReady() && !closing) {
         ready = false;
         flushBuffer();
         ready = true;
@@ -450,8 +822,65 @@ public class HttpServletResponseMock
 
     @Override
     public void close() throws IOException {
+      closing = true;
       ready = false;
       HttpServletResponseMock.this.close();
     }
   }
+
+  /** Keeps up to {@code limit} characters and only remembers that there were more. */
+  static class CharRecorder extends Writer {
+    private final StringBuilder chars = new StringBuilder();
+    private final int limit;
+    private boolean truncated = false;
+
+    CharRecorder(int limit) {
+      this.limit = limit;
+    }
+
+    @Override
+    public void write(char[] cbuf, int off, int len) {
+      if (fits(len)) {
+        chars.append(cbuf, off, len);
+      }
+    }
+
+    @Override
+    public void write(String str, int off, int len) {
+      if (fits(len)) {
+        chars.append(str, off, off + len);
+      }
+    }
+
+    private boolean fits(int len) {
+      if (!truncated && chars.length() + (long) len > limit) {
+        truncated = true;
+        chars.setLength(0);
+        chars.trimToSize();
+      }
+      return !truncated;
+    }
+
+    boolean isTruncated() {
+      return truncated;
+    }
+
+    void reset() {
+      chars.setLength(0);
+      truncated = false;
+    }
+
+    @Override
+    public void flush() {
+    }
+
+    @Override
+    public void close() {
+    }
+
+    @Override
+    public String toString() {
+      return chars.toString();
+    }
+  }
 }
@@ -15,25 +15,72 @@ limitations under the License.
 */
 package org.tinyj.test.servlet;
 
+import org.tinyj.test.servlet.support.AttributeStore;
+
 import javax.servlet.ServletContext;
-import javax.servlet.http.HttpSession;
-import javax.servlet.http.HttpSessionContext;
-import java.time.Instant;
-import java.util.Enumeration;
-import java.util.HashMap;
-import java.util.Map;
-import java.util.Random;
+import javax.servlet.http.*;
+import java.time.Clock;
+import java.util.*;
+import java.util.concurrent.CopyOnWriteArrayList;
 
 import static java.util.Collections.emptyEnumeration;
 import static java.util.Collections.enumeration;
 
-class HttpSessionMock implements HttpSession {
+public class HttpSessionMock implements HttpSession {
+
+  private volatile String id;
+  private volatile long lastAccessTime;
+  private final long creationTime;
+  private volatile int maxInactiveInterval = 0;
+  private AttributeStore attributes;
+  private final List<HttpSessionAttributeListener> attributeListeners = new CopyOnWriteArrayList<>();
+  private volatile boolean isNew = false;
+  private volatile boolean valid = true;
+  private volatile SessionPassivator passivator;
+  private final Set<String> changed = new LinkedHashSet<>();
+  private SessionFootprint footprint;
+
+  SessionManager manager;
+  long scheduledDeadline = Long.MAX_VALUE;
+
+  public HttpSessionMock() {
+    this(Clock.systemUTC());
+  }
+
+  public HttpSessionMock(Clock clock) {
+    this(SessionManager.generateId(), clock.millis());
+  }
+
+  public HttpSessionMock(String id, long creationTime) {
+    this(id, creationTime, AttributeStore.singleThreaded());
+  }
+
+  public HttpSessionMock(String id, long creationTime, AttributeStore attributes) {
+    this.id = id;
+    this.creationTime = creationTime;
+    this.lastAccessTime = creationTime;
+    this.attributes = attributes;
+    MockMetrics.onSessionCreated();
+  }
+
+  public HttpSessionMock withConcurrentAttributes() {
+    attributes = attributes.toConcurrent();
+    return this;
+  }
+
+  public HttpSessionMock withFootprint(SessionFootprint footprint) {
+    this.footprint = footprint;
+    return this;
+  }
 
-  private String id = Long.toHexString(new Random().nextLong());
-  private long lastAccessTime = Instant.now().toEpochMilli();
-  private long creationTime = Instant.now().toEpochMilli();
-  private int maxInactiveInterval = 0;
-  private Map<String, Object> attributes = new HashMap<>();
+  public SessionFootprint getFootprint() {
+    return footprint;
+  }
+
+  public HttpSessionMock withAttributeListener(HttpSessionAttributeListener listener) {
+    attributeListeners.add(listener);
+    return this;
+  }
 
   @Override
   public String getId() {
@@ -53,6 +100,9 @@ class HttpSessionMock implements HttpSession {
   @Override
   public void setMaxInactiveInterval(int interval) {
     maxInactiveInterval = interval;
+    if (manager != null) {
+      manager.schedule(this);
+    }
   }
 
   @Override
@@ -62,22 +112,70 @@ class HttpSessionMock implements HttpSession {
 
   @Override
   public Object getAttribute(String name) {
-    return attributes.get(name);
+    return attributes().get(name);
   }
 
   @Override
   public void setAttribute(String name, Object value) {
-    attributes.put(name, value);
+    if (value == null) {
+      removeAttribute(name);
+      return;
+    }
+    if (value instanceof HttpSessionBindingListener) {
+      ((HttpSessionBindingListener) value).valueBound(new HttpSessionBindingEvent(this, name, value));
+    }
+    Object old = attributes().put(name, value);
+    markChanged(name);
+    if (footprint != null) {
+      footprint.measure(name, value);
+    }
+    if (old != null && old != value && old instanceof HttpSessionBindingListener) {
+      ((HttpSessionBindingListener) old).valueUnbound(new HttpSessionBindingEvent(this, name, old));
+    }
+    HttpSessionBindingEvent event = new HttpSessionBindingEvent(this, name, old != null ? old : value);
+    for (HttpSessionAttributeListener listener : attributeListeners()) {
+      if (old != null) {
+        listener.attributeReplaced(event);
+      } else {
+        listener.attributeAdded(event);
+      }
+    }
   }
 
   @Override
   public void removeAttribute(String name) {
-    attributes.remove(name);
+    Object old = attributes().remove(name);
+    markChanged(name);
+    if (footprint != null) {
+      footprint.remove(name);
+    }
+    if (old != null) {
+      unbound(name, old);
+    }
+  }
+
+  private void unbound(String name, Object value) {
+    HttpSessionBindingEvent event = new HttpSessionBindingEvent(this, name, value);
+    if (value instanceof HttpSessionBindingListener) {
+      ((HttpSessionBindingListener) value).valueUnbound(event);
+    }
+    for (HttpSessionAttributeListener listener : attributeListeners()) {
+      listener.attributeRemoved(event);
+    }
+  }
+
+  private Iterable<HttpSessionAttributeListener> attributeListeners() {
+    if (manager == null || manager.attributeListeners.isEmpty()) {
+      return attributeListeners;
+    }
+    List<HttpSessionAttributeListener> listeners = new ArrayList<>(attributeListeners);
+    listeners.addAll(manager.attributeListeners);
+    return listeners;
   }
 
   @Override
   public Enumeration<String> getAttributeNames() {
-    return enumeration(attributes.keySet());
+    return enumeration(new ArrayList<>(attributes().names()));
   }
 
   @Override
@@ -97,18 +195,98 @@ class HttpSessionMock implements HttpSession {
 
   @Override
   public String[] getValueNames() {
-    return attributes.keySet().stream().toArray(String[]::new);
+    return attributes().names().stream().toArray(String[]::new);
   }
 
   @Override
   public void invalidate() {
+    synchronized (this) {
+      if (!valid) {
+        throw new IllegalStateException();
+      }
+      valid = false;
+    }
+    MockMetrics.onSessionDestroyed();
+    SessionPassivator passivator = this.passivator;
+    if (passivator != null) {
+      // bring the attributes back so they are unbound like any others
+      passivator.activate(this);
+    }
+    if (manager != null) {
+      manager.destroy(this);
+    }
     setMaxInactiveInterval(-1);
-    attributes.clear();
+    for (String name : new ArrayList<>(attributes.names())) {
+      Object value = attributes.remove(name);
+      if (value != null) {
+        unbound(name, value);
+      }
+    }
   }
 
   @Override
   public boolean isNew() {
-    return false;
+    return isNew;
+  }
+
+  public boolean isValid() {
+    return valid;
+  }
+
+  public boolean isPassivated() {
+    return passivator != null;
+  }
+
+  /** The passivator holding the attributes, {@code null} once they are back in memory. */
+  void setPassivator(SessionPassivator passivator) {
+    this.passivator = passivator;
+  }
+
+  AttributeStore attributes() {
+    SessionPassivator passivator = this.passivator;
+    if (passivator != null) {
+      passivator.activate(this);
+    }
+    return attributes;
+  }
+
+  private void markChanged(String name) {
+    synchronized (changed) {
+      changed.add(name);
+    }
+  }
+
+  /**
+   * Names of the attributes set or removed since the last call.
+   */
+  Set<String> drainChanged() {
+    synchronized (changed) {
+      Set<String> names = new LinkedHashSet<>(changed);
+      changed.clear();
+      return names;
+    }
+  }
+
+  Map<String, Object> attributeMap() {
+    return attributes.asMap();
+  }
+
+  void setId(String id) {
+    this.id = id;
+  }
+
+  void setNew(boolean isNew) {
+    this.isNew = isNew;
+  }
+
+  void access(long now) {
+    lastAccessTime = now;
+    isNew = false;
+  }
+
+  long getExpiryTime() {
+    int interval = maxInactiveInterval;
+    return interval > 0 ? lastAccessTime + interval * 1000L : Long.MAX_VALUE;
   }
 
   @Override
@@ -0,0 +1,186 @@
+/*
+Copyright 2016 Eric Karge <e.karge@struction.de>
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+  http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+*/
+package org.tinyj.test.servlet;
+
+import java.util.Locale;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Log-linear latency histogram in the style of HdrHistogram: values are kept
+ * with a fixed number of significant decimal digits up to a highest trackable
+ * value, larger values are clamped. Not thread safe; record per thread and
+ * {@link #add(LatencyHistogram) add} the results.
+ */
+public class LatencyHistogram {
+
+  public static final long DEFAULT_HIGHEST_TRACKABLE = TimeUnit.HOURS.toNanos(1);
+
+  private final long highestTrackable;
+  private final int significantDigits;
+  private final int subBucketBits;
+  private final long subBucketMask;
+  private final long[] counts;
+
+  private long count;
+  private long sum;
+  private long min = Long.MAX_VALUE;
+  private long max;
+
+  public LatencyHistogram() {
+    this(DEFAULT_HIGHEST_TRACKABLE, 3);
+  }
+
+  public LatencyHistogram(long highestTrackable, int significantDigits) {
+    if (highestTrackable < 2 || significantDigits < 1 || significantDigits > 5) {
+      throw new IllegalArgumentException();
+    }
+    this.highestTrackable = highestTrackable;
+    this.significantDigits = significantDigits;
+    long largestSingleUnitResolution = 2 * (long) Math.pow(10, significantDigits);
+    subBucketBits = 64 - Long.numberOfLeadingZeros(largestSingleUnitResolution - 1);
+    subBucketMask = (1L << subBucketBits) - 1;
+    counts = new long[(bucketIndex(highestTrackable) + 2) << (subBucketBits - 1)];
+  }
+
+  public void record(long value) {
+    record(value, 1);
+  }
+
+  public void record(long value, long times) {
+    if (value < 0) {
+      throw new IllegalArgumentException("negative value " + value);
+    }
+    long clamped = Math.min(value, highestTrackable);
+    counts[index(clamped)] += times;
+    count += times;
+    sum += clamped * times;
+    min = Math.min(min, clamped);
+    max = Math.max(max, clamped);
+  }
+
+  /**
+   * Records {@code value} and back-fills the samples a stalled closed-loop
+   * caller failed to issue: {@code value - interval}, {@code value - 2*interval},
+   * ... down to {@code interval}.
+   */
+  public void recordCorrected(long value, long expectedInterval) {
+    recordCorrected(value, 1, expectedInterval);
+  }
+
+  public void recordCorrected(long value, long times, long expectedInterval) {
+    record(value, times);
+    if (expectedInterval <= 0) {
+      return;
+    }
+    for (long missing = value - expectedInterval; missing >= expectedInterval; missing -= expectedInterval) {
+      record(missing, times);
+    }
+  }
+
+  public LatencyHistogram corrected(long expectedInterval) {
+    LatencyHistogram corrected = new LatencyHistogram(highestTrackable, significantDigits);
+    for (int i = 0; i < counts.length; i++) {
+      if (counts[i] != 0) {
+        corrected.recordCorrected(valueAt(i), counts[i], expectedInterval);
+      }
+    }
+    return corrected;
+  }
+
+  public void add(LatencyHistogram other) {
+    if (other.counts.length > counts.length || other.subBucketBits != subBucketBits) {
+      throw new IllegalArgumentException("incompatible histogram");
+    }
+    for (int i = 0; i < other.counts.length; i++) {
+      counts[i] += other.counts[i];
+    }
+    count += other.count;
+    sum += other.sum;
+    if (other.count > 0) {
+      min = Math.min(min, other.min);
+      max = Math.max(max, other.max);
+    }
+  }
+
+  public long getCount() {
+    return count;
+  }
+
+  public long getMin() {
+    return count == 0 ? 0 : min;
+  }
+
+  public long getMax() {
+    return max;
+  }
+
+  public double getMean() {
+    return count == 0 ? 0 : (double) sum / count;
+  }
+
+  /**
+   * Smallest recorded value (at histogram resolution) such that
+   * {@code percentile} percent of all samples are less than or equal to it.
+   */
+  public long getValueAtPercentile(double percentile) {
+    if (count == 0) {
+      return 0;
+    }
+    long target = Math.max(1, (long) Math.ceil(Math.min(percentile, 100.0) / 100.0 * count));
+    long seen = 0;
+    for (int i = 0; i < counts.length; i++) {
+      seen += counts[i];
+      if (seen >= target) {
+        return Math.max(Math.min(highestEquivalent(i), max), min);
+      }
+    }
+    return max;
+  }
+
+  @Override
+  public String toString() {
+    return String.format(Locale.ROOT, "count=%d min=%d p50=%d p90=%d p99=%d p99.9=%d max=%d mean=%.1f",
+        count, getMin(), getValueAtPercentile(50), getValueAtPercentile(90), getValueAtPercentile(99),
+        getValueAtPercentile(99.9), max, getMean());
+  }
+
+  private int bucketIndex(long value) {
+    return 63 - Long.numberOfLeadingZeros(value | subBucketMask) - (subBucketBits - 1);
+  }
+
+  private int index(long value) {
+    int bucket = bucketIndex(value);
+    return (bucket << (subBucketBits - 1)) + (int) (value >>> bucket);
+  }
+
+  private int bucketOf(int index) {
+    return index < (1 << subBucketBits) ? 0 : (index >> (subBucketBits - 1)) - 1;
+  }
+
+  private long lowestEquivalent(int index) {
+    int bucket = bucketOf(index);
+    long subBucket = index - ((long) bucket << (subBucketBits - 1));
+    return subBucket << bucket;
+  }
+
+  private long highestEquivalent(int index) {
+    return lowestEquivalent(index) + (1L << bucketOf(index)) - 1;
+  }
+
+  private long valueAt(int index) {
+    return lowestEquivalent(index) + ((1L << bucketOf(index)) >> 1);
+  }
+}
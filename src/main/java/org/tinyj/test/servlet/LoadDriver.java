@@ -0,0 +1,369 @@
+/*
+Copyright 2016 Eric Karge <e.karge@struction.de>
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+  http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+*/
+package org.tinyj.test.servlet;
+
+import javax.servlet.Servlet;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.Collections;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.BrokenBarrierException;
+import java.util.concurrent.CyclicBarrier;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.LongFunction;
+import java.util.function.Supplier;
+
+/**
+ * Runs {@link Servlet#service} on mock request/response pairs from several
+ * threads and records latencies.
+ * <p>
+ * Closed loop: each thread issues the next request as soon as the previous one
+ * completed. Open loop: requests are issued on a fixed global schedule and
+ * response time is measured from the intended start, so a stalled servlet is
+ * charged for the queue it builds up. In closed loop the response time
+ * histogram is corrected for coordinated omission by back-filling samples at
+ * the interval given to {@link #withExpectedInterval}. Without one no
+ * correction is made and response time equals service time: deriving the
+ * interval from the measured service times would let the very stalls being
+ * corrected inflate it.
+ */
+public class LoadDriver {
+
+  private final Servlet servlet;
+  private LongFunction<HttpServletRequestMock> requests = sequence -> new HttpServletRequestMock();
+  private Supplier<HttpServletResponseMock> responses = () -> new HttpServletResponseMock().withBodyRecording(false);
+  private boolean pooled = false;
+  private int threads = 1;
+  private double rate = 0;
+  private long expectedInterval = 0;
+  private long warmup = 0;
+
+  public LoadDriver(Servlet servlet) {
+    this.servlet = servlet;
+  }
+
+  /** Request generator, called with the request's sequence number (negative during warmup). */
+  public LoadDriver withRequests(LongFunction<HttpServletRequestMock> requests) {
+    this.requests = requests;
+    return this;
+  }
+
+  public LoadDriver withResponses(Supplier<HttpServletResponseMock> responses) {
+    this.responses = responses;
+    return this;
+  }
+
+  /**
+   * Generate one request/response pair per thread and reuse it for every
+   * call, {@link HttpServletRequestMock#recycle() recycling} both in between.
+   * Without pooling every call gets a fresh pair.
+   */
+  public LoadDriver withPooledExchanges(boolean pooled) {
+    this.pooled = pooled;
+    return this;
+  }
+
+  public LoadDriver withThreads(int threads) {
+    if (threads < 1) {
+      throw new IllegalArgumentException("threads must be positive");
+    }
+    this.threads = threads;
+    return this;
+  }
+
+  public LoadDriver withOpenLoop(double requestsPerSecond) {
+    if (!(requestsPerSecond > 0)) {
+      throw new IllegalArgumentException("rate must be positive");
+    }
+    this.rate = requestsPerSecond;
+    return this;
+  }
+
+  public LoadDriver withClosedLoop() {
+    this.rate = 0;
+    return this;
+  }
+
+  /** Expected interval between requests of one thread; enables closed-loop correction. */
+  public LoadDriver withExpectedInterval(long interval, TimeUnit unit) {
+    this.expectedInterval = unit.toNanos(interval);
+    return this;
+  }
+
+  /** Unrecorded requests each thread runs before measurement starts. */
+  public LoadDriver withWarmup(long requestsPerThread) {
+    this.warmup = requestsPerThread;
+    return this;
+  }
+
+  public Report run(long requests) {
+    return run(requests, Long.MAX_VALUE);
+  }
+
+  public Report run(long duration, TimeUnit unit) {
+    return run(Long.MAX_VALUE, unit.toNanos(duration));
+  }
+
+  protected Report run(long limit, long duration) {
+    Worker[] workers = new Worker[threads];
+    AtomicLong sequence = new AtomicLong();
+    long[] window = new long[2];
+    CyclicBarrier start = new CyclicBarrier(threads, () -> {
+      window[0] = System.nanoTime();
+      window[1] = duration == Long.MAX_VALUE ? Long.MAX_VALUE : window[0] + duration;
+    });
+    Thread[] running = new Thread[threads];
+    for (int i = 0; i < threads; i++) {
+      workers[i] = new Worker(sequence, limit, start, window);
+      running[i] = new Thread(workers[i], "load-driver-" + i);
+      running[i].start();
+    }
+    try {
+      for (Thread thread : running) {
+        thread.join();
+      }
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new RuntimeException(e);
+    }
+    long elapsed = System.nanoTime() - window[0];
+
+    Report report = new Report(rate > 0, elapsed);
+    for (Worker worker : workers) {
+      if (worker.failure != null) {
+        throw new RuntimeException(worker.failure);
+      }
+      report.merge(worker);
+    }
+    if (rate == 0) {
+      // an interval of 0 copies the histogram without back-filling
+      report.responseTime = report.serviceTime.corrected(expectedInterval);
+      report.corrected = expectedInterval > 0;
+    }
+    return report;
+  }
+
+  class Worker implements Runnable {
+    final AtomicLong sequence;
+    final long limit;
+    final CyclicBarrier start;
+    final long[] window;
+
+    final LatencyHistogram serviceTime = new LatencyHistogram();
+    final LatencyHistogram responseTime = new LatencyHistogram();
+    final long[] statuses = new long[600];
+    long errors;
+    Throwable firstError;
+    Throwable failure;
+    HttpServletRequestMock pooledRequest;
+    HttpServletResponseMock pooledResponse;
+
+    Worker(AtomicLong sequence, long limit, CyclicBarrier start, long[] window) {
+      this.sequence = sequence;
+      this.limit = limit;
+      this.start = start;
+      this.window = window;
+    }
+
+    @Override
+    public void run() {
+      try {
+        for (long i = 0; i < warmup; i++) {
+          exchange(request(-1 - i), response());
+        }
+        start.await();
+        long begin = window[0];
+        long end = window[1];
+        double interval = rate > 0 ? 1e9 / rate : 0;
+        for (;;) {
+          long seq = sequence.getAndIncrement();
+          if (seq >= limit) {
+            break;
+          }
+          HttpServletRequestMock request = request(seq);
+          HttpServletResponseMock response = response();
+          long intended = begin + (long) (seq * interval);
+          if (rate > 0) {
+            if (intended >= end) {
+              break;
+            }
+            awaitNanos(intended);
+          }
+          long started = System.nanoTime();
+          if (started >= end) {
+            break;
+          }
+          int status = exchange(request, response);
+          long done = System.nanoTime();
+          serviceTime.record(done - started);
+          if (rate > 0) {
+            responseTime.record(done - intended);
+          }
+          if (status >= 0 && status < statuses.length) {
+            statuses[status]++;
+          }
+        }
+      } catch (InterruptedException | BrokenBarrierException | RuntimeException | Error e) {
+        failure = e;
+        start.reset();
+      }
+    }
+
+    HttpServletRequestMock request(long seq) {
+      if (!pooled) {
+        return requests.apply(seq);
+      }
+      if (pooledRequest == null) {
+        pooledRequest = requests.apply(seq);
+      } else {
+        pooledRequest.recycle();
+      }
+      return pooledRequest;
+    }
+
+    HttpServletResponseMock response() {
+      if (!pooled) {
+        return responses.get();
+      }
+      if (pooledResponse == null) {
+        pooledResponse = responses.get();
+      } else {
+        try {
+          pooledResponse.recycle();
+        } catch (IOException e) {
+          throw new UncheckedIOException(e);
+        }
+      }
+      return pooledResponse;
+    }
+
+    int exchange(HttpServletRequestMock request, HttpServletResponseMock response) {
+      try {
+        servlet.service(request, response);
+        response.close();
+        return response.getStatus();
+      } catch (Exception e) {
+        errors++;
+        if (firstError == null) {
+          firstError = e;
+        }
+        return -1;
+      }
+    }
+  }
+
+  static void awaitNanos(long deadline) {
+    long remaining;
+    while ((remaining = deadline - System.nanoTime()) > 0) {
+      if (remaining > 200_000) {
+        LockSupport.parkNanos(remaining - 100_000);
+      } else {
+        Thread.yield();
+      }
+    }
+  }
+
+  public static class Report {
+    private final boolean openLoop;
+    private final long elapsedNanos;
+    private final LatencyHistogram serviceTime = new LatencyHistogram();
+    private LatencyHistogram responseTime = new LatencyHistogram();
+    private boolean corrected;
+    private final long[] statuses = new long[600];
+    private long errors;
+    private Throwable firstError;
+
+    Report(boolean openLoop, long elapsedNanos) {
+      this.openLoop = openLoop;
+      this.elapsedNanos = elapsedNanos;
+    }
+
+    void merge(Worker worker) {
+      serviceTime.add(worker.serviceTime);
+      responseTime.add(worker.responseTime);
+      for (int i = 0; i < statuses.length; i++) {
+        statuses[i] += worker.statuses[i];
+      }
+      errors += worker.errors;
+      if (firstError == null) {
+        firstError = worker.firstError;
+      }
+    }
+
+    public boolean isOpenLoop() {
+      return openLoop;
+    }
+
+    public long getRequestCount() {
+      return serviceTime.getCount();
+    }
+
+    public long getErrorCount() {
+      return errors;
+    }
+
+    public Throwable getFirstError() {
+      return firstError;
+    }
+
+    public long getElapsedNanos() {
+      return elapsedNanos;
+    }
+
+    /** Completed requests per second. */
+    public double getThroughput() {
+      return elapsedNanos <= 0 ? 0 : getRequestCount() * 1e9 / elapsedNanos;
+    }
+
+    /** Time spent inside {@code service()}, nanoseconds. */
+    public LatencyHistogram getServiceTime() {
+      return serviceTime;
+    }
+
+    /** Whether closed-loop response times were corrected for coordinated omission. */
+    public boolean isCorrected() {
+      return corrected;
+    }
+
+    /**
+     * Latency as seen by a client, nanoseconds. Measured from the intended
+     * start in open loop; in closed loop corrected for coordinated omission
+     * if an expected interval was given, otherwise equal to service time.
+     */
+    public LatencyHistogram getResponseTime() {
+      return responseTime;
+    }
+
+    public Map<Integer, Long> getStatusCounts() {
+      Map<Integer, Long> counts = new TreeMap<>();
+      for (int i = 0; i < statuses.length; i++) {
+        if (statuses[i] != 0) {
+          counts.put(i, statuses[i]);
+        }
+      }
+      return Collections.unmodifiableMap(counts);
+    }
+
+    @Override
+    public String toString() {
+      return String.format("%s loop: %d requests, %d errors, %.1f req/s%n  service  %s%n  response %s",
+          openLoop ? "open" : "closed", getRequestCount(), errors, getThroughput(), serviceTime, responseTime);
+    }
+  }
+}
@@ -0,0 +1,544 @@
+/*
+Copyright 2016 Eric Karge <e.karge@struction.de>
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+  http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+*/
+package org.tinyj.test.servlet;
+
+import org.tinyj.test.servlet.support.ByteArrayBuffer;
+
+import javax.servlet.Servlet;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedSelectorException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static java.nio.charset.StandardCharsets.ISO_8859_1;
+
+/**
+ * Minimal HTTP/1.1 server on the loopback interface that feeds real
+ * connections into the mocks: each request is parsed into an
+ * {@link HttpServletRequestMock} on the selector thread and the servlet runs
+ * on a worker pool, one request per connection at a time. Whatever the
+ * {@link HttpServletResponseMock} sends on commit, flush or close is written
+ * to the connection right away; the worker blocks while the socket isn't
+ * writable, so slow clients push back on the servlet. The response mock
+ * itself buffers the body until the servlet flushes, so only bodies that are
+ * flushed as they go are streamed instead of held on the heap.
+ * Keep-alive and pipelined requests are supported; request bodies need a
+ * {@code Content-Length}. Responses that were flushed before the servlet
+ * finished carry no length, so the connection is closed after them.
+ */
+public class LoopbackServer implements Closeable {
+
+  private static final byte[] CRLFCRLF = {'\r', '\n', '\r', '\n'};
+  private static final int WRITE_THROUGH = 64 << 10;
+
+  private final Servlet servlet;
+  private int port = 0;
+  private int maxHeaderSize = 64 << 10;
+  private int maxBodySize = 16 << 20;
+  private SessionManager sessionManager;
+  private int workers = Math.max(2, Runtime.getRuntime().availableProcessors());
+
+  private Selector selector;
+  private ServerSocketChannel server;
+  private Thread thread;
+  private ExecutorService executor;
+  private final Queue<Runnable> selectorTasks = new ConcurrentLinkedQueue<>();
+  private volatile boolean running;
+  private final AtomicLong requests = new AtomicLong();
+  private final AtomicLong connections = new AtomicLong();
+
+  public LoopbackServer(Servlet servlet) {
+    this.servlet = servlet;
+  }
+
+  /** Port to listen on, 0 (the default) picks a free one. */
+  public LoopbackServer withPort(int port) {
+    this.port = port;
+    return this;
+  }
+
+  public LoopbackServer withMaxHeaderSize(int bytes) {
+    this.maxHeaderSize = bytes;
+    return this;
+  }
+
+  public LoopbackServer withMaxBodySize(int bytes) {
+    this.maxBodySize = bytes;
+    return this;
+  }
+
+  /**
+   * Sessions are looked up by the {@code JSESSIONID} cookie; a new session's
+   * cookie is set if the response isn't committed when the servlet returns.
+   */
+  public LoopbackServer withSessionManager(SessionManager sessionManager) {
+    this.sessionManager = sessionManager;
+    return this;
+  }
+
+  /** Number of threads running the servlet, defaults to the number of processors (at least 2). */
+  public LoopbackServer withWorkers(int threads) {
+    this.workers = threads;
+    return this;
+  }
+
+  public LoopbackServer start() throws IOException {
+    selector = Selector.open();
+    server = ServerSocketChannel.open();
+    server.bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), port));
+    server.configureBlocking(false);
+    server.register(selector, SelectionKey.OP_ACCEPT);
+    running = true;
+    AtomicInteger worker = new AtomicInteger();
+    executor = Executors.newFixedThreadPool(workers, task -> {
+      Thread thread = new Thread(task, "loopback-worker-" + getPort() + "-" + worker.incrementAndGet());
+      thread.setDaemon(true);
+      return thread;
+    });
+    thread = new Thread(this::run, "loopback-server-" + getPort());
+    thread.setDaemon(true);
+    thread.start();
+    return this;
+  }
+
+  public InetSocketAddress getAddress() {
+    try {
+      return (InetSocketAddress) server.getLocalAddress();
+    } catch (IOException e) {
+      throw new RuntimeException(e);
+    }
+  }
+
+  public int getPort() {
+    return getAddress().getPort();
+  }
+
+  public long getRequestCount() {
+    return requests.get();
+  }
+
+  public long getConnectionCount() {
+    return connections.get();
+  }
+
+  @Override
+  public void close() throws IOException {
+    running = false;
+    selector.wakeup();
+    try {
+      thread.join();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+    executor.shutdownNow();
+  }
+
+  /** Runs {@code task} on the selector thread, the only one touching interest ops. */
+  private void onSelector(Runnable task) {
+    selectorTasks.add(task);
+    selector.wakeup();
+  }
+
+  private void run() {
+    try {
+      while (running) {
+        selector.select();
+        for (Runnable task; (task = selectorTasks.poll()) != null; ) {
+          task.run();
+        }
+        for (SelectionKey key : selector.selectedKeys()) {
+          try {
+            if (key.isAcceptable()) {
+              accept();
+            } else {
+              Connection connection = (Connection) key.attachment();
+              if (key.isReadable()) {
+                connection.read();
+              }
+              if (key.isValid() && key.isWritable()) {
+                connection.writable();
+              }
+            }
+          } catch (IOException e) {
+            if (key.attachment() != null) {
+              ((Connection) key.attachment()).close();
+            }
+          }
+        }
+        selector.selectedKeys().clear();
+      }
+    } catch (IOException | ClosedSelectorException e) {
+      // shutting down
+    } finally {
+      for (SelectionKey key : selector.keys()) {
+        closeQuietly(key.channel());
+      }
+      closeQuietly(selector);
+    }
+  }
+
+  private void accept() throws IOException {
+    SocketChannel channel = server.accept();
+    if (channel == null) {
+      return;
+    }
+    channel.configureBlocking(false);
+    channel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+    SelectionKey key = channel.register(selector, SelectionKey.OP_READ);
+    key.attach(new Connection(channel, key));
+    connections.incrementAndGet();
+  }
+
+  private static void closeQuietly(Closeable closeable) {
+    try {
+      closeable.close();
+    } catch (IOException e) {
+      // ignore
+    }
+  }
+
+  class Connection {
+    final SocketChannel channel;
+    final SelectionKey key;
+    ByteBuffer in = ByteBuffer.allocate(8192);
+    final ByteArrayBuffer out = new ByteArrayBuffer();
+    final OutputStream sink = new OutputStream() {
+      @Override
+      public void write(int b) throws IOException {
+        write(new byte[]{(byte) b}, 0, 1);
+      }
+
+      @Override
+      public void write(byte[] b, int off, int len) throws IOException {
+        boolean full;
+        synchronized (Connection.this) {
+          out.write(b, off, len);
+          full = out.size() >= WRITE_THROUGH;
+        }
+        if (full) {
+          drain();
+        }
+      }
+
+      @Override
+      public void flush() throws IOException {
+        drain();
+      }
+    };
+    // guarded by this: out, written and the flags below
+    int written = 0;
+    boolean closeAfterWrite = false;
+    boolean busy = false;
+    boolean closed = false;
+
+    Connection(SocketChannel channel, SelectionKey key) {
+      this.channel = channel;
+      this.key = key;
+    }
+
+    void read() throws IOException {
+      if (!in.hasRemaining()) {
+        in = ByteBuffer.allocate(in.capacity() * 2).put((ByteBuffer) in.flip());
+      }
+      if (channel.read(in) < 0) {
+        close();
+        return;
+      }
+      dispatch();
+    }
+
+    /** Hands the next complete request in the input buffer to a worker. Selector thread only. */
+    void dispatch() throws IOException {
+      if (!key.isValid()) {
+        return;
+      }
+      if (!closeAfterWrite) {
+        process();
+      }
+      if (busy) {
+        key.interestOps(0);
+      } else {
+        write();
+      }
+    }
+
+    /** Parses one complete request from the input buffer, returns quietly if more input is needed. */
+    void process() {
+      byte[] data = in.array();
+      int length = in.position();
+      int headerEnd = indexOf(data, length, CRLFCRLF);
+      if (headerEnd < 0) {
+        if (length >= maxHeaderSize) {
+          reject(431, "Request Header Fields Too Large");
+        }
+        return;
+      }
+      String[] lines = new String(data, 0, headerEnd, ISO_8859_1).split("\r\n");
+      String[] requestLine = lines[0].split(" ");
+      if (requestLine.length != 3 || !requestLine[2].startsWith("HTTP/1.")) {
+        reject(400, "Bad Request");
+        return;
+      }
+      HashMap<String, List<String>> headers = new HashMap<>();
+      for (int i = 1; i < lines.length; i++) {
+        int colon = lines[i].indexOf(':');
+        if (colon <= 0) {
+          reject(400, "Bad Request");
+          return;
+        }
+        headers.computeIfAbsent(lines[i].substring(0, colon).trim().toLowerCase(), name -> new ArrayList<>())
+            .add(lines[i].substring(colon + 1).trim());
+      }
+      if (headers.containsKey("transfer-encoding")) {
+        reject(501, "Not Implemented");
+        return;
+      }
+      long contentLength;
+      try {
+        contentLength = headers.containsKey("content-length") ? Long.parseLong(header(headers, "content-length")) : 0;
+      } catch (NumberFormatException e) {
+        contentLength = -1;
+      }
+      if (contentLength < 0 || contentLength > maxBodySize) {
+        reject(contentLength < 0 ? 400 : 413, contentLength < 0 ? "Bad Request" : "Payload Too Large");
+        return;
+      }
+      int requestSize = headerEnd + CRLFCRLF.length + (int) contentLength;
+      if (requestSize > length) {
+        if (requestSize > in.capacity()) {
+          in = ByteBuffer.allocate(requestSize).put((ByteBuffer) in.flip());
+        }
+        return;
+      }
+      byte[] body = Arrays.copyOfRange(data, headerEnd + CRLFCRLF.length, requestSize);
+      System.arraycopy(data, requestSize, data, 0, length - requestSize);
+      in.position(length - requestSize);
+
+      synchronized (this) {
+        busy = true;
+      }
+      executor.execute(() -> serve(requestLine, headers, body));
+    }
+
+    /** Runs on a worker, everything the response sends has been written when it returns. */
+    void serve(String[] requestLine, HashMap<String, List<String>> headers, byte[] body) {
+      try {
+        service(requestLine, headers, body);
+      } catch (IOException e) {
+        synchronized (this) {
+          closeAfterWrite = true;
+          out.reset();
+          written = 0;
+        }
+      }
+      synchronized (this) {
+        busy = false;
+      }
+      onSelector(() -> {
+        try {
+          dispatch();
+        } catch (IOException e) {
+          close();
+        }
+      });
+    }
+
+    void service(String[] requestLine, HashMap<String, List<String>> headers, byte[] body) throws IOException {
+      String target = requestLine[1];
+      int query = target.indexOf('?');
+      HttpServletRequestMock request = new HttpServletRequestMock()
+          .withMethod(requestLine[0])
+          .withProtocol(requestLine[2])
+          .withPath(query < 0 ? target : target.substring(0, query))
+          .withHeaders(headers)
+          .withBody(body);
+      if (query >= 0) {
+        request.withQueryString(target.substring(query + 1));
+      }
+      if (sessionManager != null) {
+        request.withSessionManager(sessionManager);
+      }
+      InetSocketAddress local = (InetSocketAddress) channel.getLocalAddress();
+      InetSocketAddress remote = (InetSocketAddress) channel.getRemoteAddress();
+      request.withLocalIp(local.getAddress().getHostAddress()).withLocalPort(local.getPort())
+          .withRemoteIp(remote.getAddress().getHostAddress()).withRemotePort(remote.getPort());
+
+      String connection = header(headers, "connection");
+      boolean keepAlive = "HTTP/1.1".equals(requestLine[2])
+                          ? !"close".equalsIgnoreCase(connection)
+                          : "keep-alive".equalsIgnoreCase(connection);
+      HttpServletResponseMock response = new HttpServletResponseMock(sink).withBodyRecording(false);
+      if (!keepAlive) {
+        response.setHeader("Connection", "close");
+      } else if (!"HTTP/1.1".equals(requestLine[2])) {
+        response.setHeader("Connection", "keep-alive");
+      }
+      requests.incrementAndGet();
+      try {
+        servlet.service(request, response);
+        if (sessionManager != null && !response.isCommitted()) {
+          HttpSessionMock session = request.getSession(false);
+          if (session != null && !session.getId().equals(request.getRequestedSessionId())) {
+            response.addHeader("Set-Cookie", HttpServletRequestMock.SESSION_COOKIE + "=" + session.getId()
+                                             + "; Path=/; HttpOnly");
+          }
+        }
+        response.close();
+      } catch (Exception e) {
+        if (!response.isCommitted()) {
+          reject(500, "Internal Server Error");
+          drain();
+        }
+        synchronized (this) {
+          closeAfterWrite = true;
+        }
+        return;
+      }
+      if (!keepAlive || !hasContentLength(response.getCommitedHeaders())) {
+        synchronized (this) {
+          closeAfterWrite = true;
+        }
+      }
+    }
+
+    synchronized void reject(int status, String reason) {
+      byte[] response = ("HTTP/1.1 " + status + " " + reason + "\r\n"
+                         + "Content-Length: 0\r\nConnection: close\r\n\r\n").getBytes(ISO_8859_1);
+      out.write(response, 0, response.length);
+      closeAfterWrite = true;
+    }
+
+    /** Writes as much pending output as the socket takes without blocking, true once all is written. */
+    private boolean flushOut() throws IOException {
+      ByteBuffer pending = out.asByteBuffer();
+      pending.position(written);
+      while (pending.hasRemaining() && channel.write(pending) > 0) {
+      }
+      written = pending.position();
+      if (pending.hasRemaining()) {
+        return false;
+      }
+      out.reset();
+      written = 0;
+      return true;
+    }
+
+    /** Worker side: blocks until all pending output is written to the socket. */
+    synchronized void drain() throws IOException {
+      while (!flushOut()) {
+        if (closed) {
+          throw new IOException("connection closed");
+        }
+        onSelector(() -> {
+          if (key.isValid()) {
+            key.interestOps(SelectionKey.OP_WRITE);
+          }
+        });
+        try {
+          wait();
+        } catch (InterruptedException e) {
+          Thread.currentThread().interrupt();
+          throw new InterruptedIOException();
+        }
+      }
+    }
+
+    /** Selector side: wakes a worker waiting in {@link #drain()} or continues writing for itself. */
+    void writable() throws IOException {
+      synchronized (this) {
+        if (busy) {
+          key.interestOps(0);
+          notifyAll();
+          return;
+        }
+      }
+      write();
+    }
+
+    /** Selector side, no request in progress. */
+    void write() throws IOException {
+      boolean done;
+      boolean close;
+      synchronized (this) {
+        done = flushOut();
+        close = closeAfterWrite;
+      }
+      if (!done) {
+        key.interestOps(SelectionKey.OP_WRITE);
+      } else if (close) {
+        close();
+      } else {
+        key.interestOps(SelectionKey.OP_READ);
+      }
+    }
+
+    void close() {
+      synchronized (this) {
+        closed = true;
+        notifyAll();
+      }
+      key.cancel();
+      closeQuietly(channel);
+    }
+  }
+
+  static String header(Map<String, List<String>> headers, String name) {
+    List<String> values = headers.get(name);
+    return values == null || values.isEmpty() ? null : values.get(0);
+  }
+
+  static boolean hasContentLength(Map<String, List<String>> headers) {
+    for (String name : headers.keySet()) {
+      if (name.equalsIgnoreCase("Content-Length")) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  static int indexOf(byte[] data, int length, byte[] pattern) {
+    outer:
+    for (int i = 0; i <= length - pattern.length; i++) {
+      for (int j = 0; j < pattern.length; j++) {
+        if (data[i + j] != pattern[j]) {
+          continue outer;
+        }
+      }
+      return i;
+    }
+    return -1;
+  }
+}
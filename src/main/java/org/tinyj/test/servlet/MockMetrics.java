@@ -0,0 +1,267 @@
+/*
+Copyright 2016 Eric Karge <e.karge@struction.de>
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+  http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+*/
+package org.tinyj.test.servlet;
+
+import javax.management.InstanceAlreadyExistsException;
+import javax.management.JMException;
+import javax.management.ObjectName;
+import java.lang.management.ManagementFactory;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * JVM-wide counters fed by every request, response and session mock while
+ * enabled, published over JMX so long running load tests can be watched live
+ * in JConsole or VisualVM. Metrics are off unless {@link #enable()} is called
+ * or the {@value #ENABLE_PROPERTY} system property is true; while off the mocks
+ * only check a single field.
+ */
+public class MockMetrics implements MockMetricsMXBean {
+
+  public static final String OBJECT_NAME = "org.tinyj.test.servlet:type=MockMetrics";
+
+  public static final String ENABLE_PROPERTY = "tinyj.servlet.metrics";
+
+  private static final Logger LOG = Logger.getLogger(MockMetrics.class.getName());
+
+  private static volatile MockMetrics active;
+
+  static {
+    if (Boolean.getBoolean(ENABLE_PROPERTY)) {
+      enable();
+    }
+  }
+
+  private boolean registered = false;
+
+  final LongAdder requests = new LongAdder();
+  final LongAdder bytesIn = new LongAdder();
+  final LongAdder bytesOut = new LongAdder();
+  final LongAdder commits = new LongAdder();
+  final LongAdder flushes = new LongAdder();
+  final LongAdder sessionsCreated = new LongAdder();
+  final LongAdder sessionsDestroyed = new LongAdder();
+  private final LongAdder[] statuses = new LongAdder[600];
+
+  MockMetrics() {
+    for (int i = 0; i < statuses.length; i++) {
+      statuses[i] = new LongAdder();
+    }
+  }
+
+  /**
+   * Starts counting and publishes the counters over JMX. Publishing is best
+   * effort: if it fails the counters are still kept.
+   */
+  public static synchronized MockMetrics enable() {
+    if (active == null) {
+      MockMetrics metrics = new MockMetrics();
+      metrics.register();
+      active = metrics;
+    }
+    return active;
+  }
+
+  /** Stops counting and unpublishes the counters. */
+  public static synchronized void disable() {
+    MockMetrics metrics = active;
+    active = null;
+    if (metrics != null && metrics.registered) {
+      try {
+        ManagementFactory.getPlatformMBeanServer().unregisterMBean(new ObjectName(OBJECT_NAME));
+      } catch (JMException | SecurityException e) {
+        LOG.log(Level.FINE, "could not unregister " + OBJECT_NAME, e);
+      }
+    }
+  }
+
+  /** The active metrics, null while disabled. */
+  public static MockMetrics get() {
+    return active;
+  }
+
+  private void register() {
+    try {
+      ManagementFactory.getPlatformMBeanServer().registerMBean(this, new ObjectName(OBJECT_NAME));
+      registered = true;
+    } catch (InstanceAlreadyExistsException e) {
+      LOG.log(Level.INFO, OBJECT_NAME + " is already registered, e.g. by another class loader; not publishing");
+    } catch (JMException | SecurityException e) {
+      LOG.log(Level.WARNING, "could not register " + OBJECT_NAME + ", counting without JMX", e);
+    }
+  }
+
+  static void onBytesIn(long bytes) {
+    MockMetrics metrics = active;
+    if (metrics != null) {
+      metrics.bytesIn.add(bytes);
+    }
+  }
+
+  static void onBytesOut(long bytes) {
+    MockMetrics metrics = active;
+    if (metrics != null) {
+      metrics.bytesOut.add(bytes);
+    }
+  }
+
+  static void onRequest() {
+    MockMetrics metrics = active;
+    if (metrics != null) {
+      metrics.requests.increment();
+    }
+  }
+
+  static void onFlush() {
+    MockMetrics metrics = active;
+    if (metrics != null) {
+      metrics.flushes.increment();
+    }
+  }
+
+  static void onCommit(int status) {
+    MockMetrics metrics = active;
+    if (metrics != null) {
+      metrics.commits.increment();
+      if (status >= 0 && status < metrics.statuses.length) {
+        metrics.statuses[status].increment();
+      }
+    }
+  }
+
+  static void onSessionCreated() {
+    MockMetrics metrics = active;
+    if (metrics != null) {
+      metrics.sessionsCreated.increment();
+    }
+  }
+
+  static void onSessionDestroyed() {
+    MockMetrics metrics = active;
+    if (metrics != null) {
+      metrics.sessionsDestroyed.increment();
+    }
+  }
+
+  @Override
+  public long getRequests() {
+    return requests.sum();
+  }
+
+  @Override
+  public long getBytesIn() {
+    return bytesIn.sum();
+  }
+
+  @Override
+  public long getBytesOut() {
+    return bytesOut.sum();
+  }
+
+  @Override
+  public long getCommits() {
+    return commits.sum();
+  }
+
+  @Override
+  public long getFlushes() {
+    return flushes.sum();
+  }
+
+  @Override
+  public Map<Integer, Long> getStatusCounts() {
+    Map<Integer, Long> counts = new TreeMap<>();
+    for (int i = 0; i < statuses.length; i++) {
+      long count = statuses[i].sum();
+      if (count != 0) {
+        counts.put(i, count);
+      }
+    }
+    return counts;
+  }
+
+  @Override
+  public long getInformationalResponses() {
+    return statusClass(1);
+  }
+
+  @Override
+  public long getSuccessfulResponses() {
+    return statusClass(2);
+  }
+
+  @Override
+  public long getRedirectionResponses() {
+    return statusClass(3);
+  }
+
+  @Override
+  public long getClientErrorResponses() {
+    return statusClass(4);
+  }
+
+  @Override
+  public long getServerErrorResponses() {
+    return statusClass(5);
+  }
+
+  private long statusClass(int hundreds) {
+    long sum = 0;
+    for (int i = hundreds * 100; i < hundreds * 100 + 100; i++) {
+      sum += statuses[i].sum();
+    }
+    return sum;
+  }
+
+  @Override
+  public long getSessionsCreated() {
+    return sessionsCreated.sum();
+  }
+
+  @Override
+  public long getSessionsDestroyed() {
+    return sessionsDestroyed.sum();
+  }
+
+  @Override
+  public long getActiveSessions() {
+    return getSessionsCreated() - getSessionsDestroyed();
+  }
+
+  @Override
+  public void reset() {
+    requests.reset();
+    bytesIn.reset();
+    bytesOut.reset();
+    commits.reset();
+    flushes.reset();
+    sessionsCreated.reset();
+    sessionsDestroyed.reset();
+    for (LongAdder status : statuses) {
+      status.reset();
+    }
+  }
+
+  @Override
+  public String toString() {
+    return "requests=" + getRequests() + ", bytes in=" + getBytesIn() + ", bytes out=" + getBytesOut()
+           + ", commits=" + getCommits() + ", flushes=" + getFlushes() + ", statuses=" + getStatusCounts()
+           + ", active sessions=" + getActiveSessions();
+  }
+}
@@ -0,0 +1,55 @@
+/*
+Copyright 2016 Eric Karge <e.karge@struction.de>
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+  http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+*/
+package org.tinyj.test.servlet;
+
+import java.util.Map;
+
+/**
+ * JMX view of {@link MockMetrics}, registered as
+ * {@value MockMetrics#OBJECT_NAME}.
+ */
+public interface MockMetricsMXBean {
+
+  long getRequests();
+
+  long getBytesIn();
+
+  long getBytesOut();
+
+  long getCommits();
+
+  long getFlushes();
+
+  Map<Integer, Long> getStatusCounts();
+
+  long getInformationalResponses();
+
+  long getSuccessfulResponses();
+
+  long getRedirectionResponses();
+
+  long getClientErrorResponses();
+
+  long getServerErrorResponses();
+
+  long getSessionsCreated();
+
+  long getSessionsDestroyed();
+
+  long getActiveSessions();
+
+  void reset();
+}
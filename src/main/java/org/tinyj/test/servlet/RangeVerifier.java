@@ -0,0 +1,278 @@
+/*
+Copyright 2016 Eric Karge <e.karge@struction.de>
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+  http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+*/
+package org.tinyj.test.servlet;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map.Entry;
+
+import static java.nio.charset.StandardCharsets.ISO_8859_1;
+
+/**
+ * Checks a response to a range request against the full resource: status,
+ * {@code Content-Range} and the bytes of a 206 body or of every
+ * {@code multipart/byteranges} part. Body and resource are compared with
+ * positional reads, so neither is copied as a whole; the recorded body is
+ * read through {@link HttpServletResponseMock#getSendBodyBuffer()}, which is
+ * memory mapped once it was spilled.
+ * <p>
+ * Parts may be coalesced or reordered by the servlet as long as together they
+ * cover every requested range.
+ */
+public class RangeVerifier {
+
+  private final FileChannel channel;
+  private final ByteBuffer bytes;
+  private final long length;
+  private final ByteBuffer chunk = ByteBuffer.allocate(8192);
+
+  public RangeVerifier(byte[] resource) {
+    this.channel = null;
+    this.bytes = ByteBuffer.wrap(resource).asReadOnlyBuffer();
+    this.length = resource.length;
+  }
+
+  /** Reads from {@code channel} at absolute positions; the channel is not closed. */
+  public RangeVerifier(FileChannel channel) throws IOException {
+    this.channel = channel;
+    this.bytes = null;
+    this.length = channel.size();
+  }
+
+  public long getResourceLength() {
+    return length;
+  }
+
+  /** Verifies the response against the request's {@code Range} header. */
+  public void verify(HttpServletRequestMock request, HttpServletResponseMock response) throws IOException {
+    verify(request.getRanges(length), response);
+  }
+
+  /**
+   * @param ranges the requested ranges as returned by {@link ByteRange#parse}:
+   *     null expects the full resource, an empty list a 416
+   * @throws AssertionError describing the first mismatch
+   */
+  public void verify(List<ByteRange> ranges, HttpServletResponseMock response) throws IOException {
+    Integer status = response.getCommitedStatus();
+    ByteBuffer body = response.getSendBodyBuffer();
+    if (ranges == null) {
+      expect(status != null && status == 200, "expected status 200 for a full response, got " + status);
+      expect(body.remaining() == length, "expected the full resource of " + length
+                                         + " bytes, got " + body.remaining());
+      compare(body, 0, new ByteRange(0, Math.max(0, length - 1)), length > 0 ? length : 0, "body");
+      return;
+    }
+    if (ranges.isEmpty()) {
+      expect(status != null && status == 416, "expected status 416 for unsatisfiable ranges, got " + status);
+      String contentRange = header(response, "Content-Range");
+      expect(("bytes */" + length).equals(contentRange),
+             "expected Content-Range 'bytes */" + length + "', got '" + contentRange + "'");
+      return;
+    }
+    expect(status != null && status == 206, "expected status 206 for ranges " + ranges + ", got " + status);
+
+    List<ByteRange> parts = new ArrayList<>();
+    String contentType = header(response, "Content-Type");
+    if (contentType != null && contentType.toLowerCase().startsWith("multipart/byteranges")) {
+      expect(header(response, "Content-Range") == null, "multipart response must not have a Content-Range header");
+      verifyParts(boundary(contentType), body, parts);
+    } else {
+      String contentRange = header(response, "Content-Range");
+      ByteRange range = contentRange(contentRange, "response");
+      expect(body.remaining() == range.length(), "Content-Range '" + contentRange + "' announces "
+                                                 + range.length() + " bytes, body has " + body.remaining());
+      compare(body, 0, range, range.length(), "body");
+      parts.add(range);
+    }
+    for (ByteRange requested : ranges) {
+      expect(covered(requested, parts), "requested range " + requested + " is not covered by " + parts);
+    }
+  }
+
+  protected void verifyParts(String boundary, ByteBuffer body, List<ByteRange> parts) throws IOException {
+    byte[] delimiter = ("--" + boundary).getBytes(ISO_8859_1);
+    int position = 0;
+    if (startsWith(body, position, "\r\n")) {
+      position += 2;
+    }
+    for (;;) {
+      expect(startsWith(body, position, delimiter), "expected boundary at offset " + position);
+      position += delimiter.length;
+      if (startsWith(body, position, "--")) {
+        break;
+      }
+      expect(startsWith(body, position, "\r\n"), "expected CRLF after boundary at offset " + position);
+      position += 2;
+      String contentRange = null;
+      for (;;) {
+        int end = indexOfCrLf(body, position);
+        expect(end >= 0, "unterminated part headers at offset " + position);
+        String line = ascii(body, position, end);
+        position = end + 2;
+        if (line.isEmpty()) {
+          break;
+        }
+        int colon = line.indexOf(':');
+        if (colon > 0 && line.substring(0, colon).trim().equalsIgnoreCase("Content-Range")) {
+          contentRange = line.substring(colon + 1).trim();
+        }
+      }
+      String part = "part " + (parts.size() + 1);
+      expect(contentRange != null, part + " has no Content-Range");
+      ByteRange range = contentRange(contentRange, part);
+      expect(body.limit() - position >= range.length(), part + " (" + contentRange + ") is truncated");
+      compare(body, position, range, range.length(), part);
+      parts.add(range);
+      position += (int) range.length();
+      expect(startsWith(body, position, "\r\n"), part + " is longer than its Content-Range '" + contentRange + "'");
+      position += 2;
+    }
+    expect(!parts.isEmpty(), "multipart/byteranges response without parts");
+  }
+
+  protected ByteRange contentRange(String contentRange, String part) {
+    expect(contentRange != null, part + " has no Content-Range");
+    int dash = contentRange.indexOf('-');
+    int slash = contentRange.indexOf('/');
+    expect(contentRange.startsWith("bytes ") && dash > 0 && slash > dash,
+           part + " has malformed Content-Range '" + contentRange + "'");
+    long first;
+    long last;
+    try {
+      first = Long.parseLong(contentRange.substring(6, dash).trim());
+      last = Long.parseLong(contentRange.substring(dash + 1, slash).trim());
+    } catch (NumberFormatException e) {
+      throw new AssertionError(part + " has malformed Content-Range '" + contentRange + "'");
+    }
+    String total = contentRange.substring(slash + 1).trim();
+    expect(total.equals("*") || total.equals(Long.toString(length)),
+           part + " Content-Range '" + contentRange + "' disagrees with resource length " + length);
+    expect(first <= last && last < length,
+           part + " Content-Range '" + contentRange + "' is not within the resource of " + length + " bytes");
+    return new ByteRange(first, last);
+  }
+
+  /** Compares {@code count} body bytes at {@code offset} with the resource at {@code range.first}. */
+  protected void compare(ByteBuffer body, int offset, ByteRange range, long count, String part) throws IOException {
+    long done = 0;
+    while (done < count) {
+      chunk.clear();
+      chunk.limit((int) Math.min(chunk.capacity(), count - done));
+      read(chunk, range.getFirst() + done);
+      chunk.flip();
+      for (int i = 0; i < chunk.limit(); i++) {
+        if (chunk.get(i) != body.get(offset + (int) done + i)) {
+          throw new AssertionError(part + " (bytes " + range + "/" + length + ") differs from the resource at offset "
+                                   + (range.getFirst() + done + i));
+        }
+      }
+      done += chunk.limit();
+    }
+  }
+
+  protected void read(ByteBuffer dst, long position) throws IOException {
+    if (channel == null) {
+      ByteBuffer src = bytes.duplicate();
+      src.position((int) position).limit((int) position + dst.remaining());
+      dst.put(src);
+      return;
+    }
+    while (dst.hasRemaining()) {
+      int read = channel.read(dst, position);
+      if (read < 0) {
+        throw new AssertionError("resource ended at " + position + " bytes");
+      }
+      position += read;
+    }
+  }
+
+  static boolean covered(ByteRange requested, List<ByteRange> parts) {
+    long next = requested.getFirst();
+    boolean progress = true;
+    while (progress && next <= requested.getLast()) {
+      progress = false;
+      for (ByteRange part : parts) {
+        if (part.getFirst() <= next && next <= part.getLast()) {
+          next = part.getLast() + 1;
+          progress = true;
+        }
+      }
+    }
+    return next > requested.getLast();
+  }
+
+  static String boundary(String contentType) {
+    for (String parameter : contentType.split(";")) {
+      parameter = parameter.trim();
+      if (parameter.regionMatches(true, 0, "boundary=", 0, 9)) {
+        return parameter.substring(9).replace("\"", "");
+      }
+    }
+    throw new AssertionError("multipart/byteranges without boundary: " + contentType);
+  }
+
+  static String header(HttpServletResponseMock response, String name) {
+    for (Entry<String, List<String>> header : response.getCommitedHeaders().entrySet()) {
+      if (header.getKey().equalsIgnoreCase(name) && !header.getValue().isEmpty()) {
+        return header.getValue().get(0);
+      }
+    }
+    return null;
+  }
+
+  static boolean startsWith(ByteBuffer body, int position, String prefix) {
+    return startsWith(body, position, prefix.getBytes(ISO_8859_1));
+  }
+
+  static boolean startsWith(ByteBuffer body, int position, byte[] prefix) {
+    if (body.limit() - position < prefix.length) {
+      return false;
+    }
+    for (int i = 0; i < prefix.length; i++) {
+      if (body.get(position + i) != prefix[i]) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  static int indexOfCrLf(ByteBuffer body, int position) {
+    for (int i = position; i < body.limit() - 1; i++) {
+      if (body.get(i) == '\r' && body.get(i + 1) == '\n') {
+        return i;
+      }
+    }
+    return -1;
+  }
+
+  static String ascii(ByteBuffer body, int from, int to) {
+    char[] chars = new char[to - from];
+    for (int i = from; i < to; i++) {
+      chars[i - from] = (char) (body.get(i) & 0xff);
+    }
+    return new String(chars);
+  }
+
+  static void expect(boolean condition, String message) {
+    if (!condition) {
+      throw new AssertionError(message);
+    }
+  }
+}
@@ -0,0 +1,534 @@
+/*
+Copyright 2016 Eric Karge <e.karge@struction.de>
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+  http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+*/
+package org.tinyj.test.servlet;
+
+import javax.servlet.*;
+import java.io.IOException;
+import java.time.Clock;
+import java.time.Instant;
+import java.time.format.DateTimeParseException;
+import java.util.*;
+import java.util.Map.Entry;
+import java.util.concurrent.atomic.LongAdder;
+
+import static java.time.format.DateTimeFormatter.RFC_1123_DATE_TIME;
+
+/**
+ * HTTP cache in front of a servlet, for tuning caching headers against
+ * replayed traffic. {@code GET} responses are stored according to
+ * {@code Cache-Control}, {@code Expires} and {@code Last-Modified} (heuristic
+ * freshness) and served while fresh; stale entries with an {@code ETag} or
+ * {@code Last-Modified} are revalidated with {@code If-None-Match} /
+ * {@code If-Modified-Since}. The client's own validators are never forwarded;
+ * conditional client requests are answered from the stored 200. Entries are
+ * evicted least recently used once the entry count or byte limit is exceeded.
+ * <p>
+ * Works on the mocks only: the servlet writes into a fresh response mock that
+ * is then replayed into the client's response. Use a {@link VirtualClock} to
+ * let entries expire without waiting.
+ */
+public class ResponseCache extends GenericServlet {
+
+  private static final long serialVersionUID = 1L;
+
+  private static final Set<Integer> CACHEABLE_BY_DEFAULT =
+      new HashSet<>(Arrays.asList(200, 203, 204, 300, 301, 404, 405, 410, 414, 501));
+  private static final List<String> NOT_MODIFIED_HEADERS =
+      Arrays.asList("Cache-Control", "Content-Location", "Date", "ETag", "Expires", "Last-Modified", "Vary");
+  private static final Set<String> UNSAFE_METHODS =
+      new HashSet<>(Arrays.asList("POST", "PUT", "DELETE", "PATCH"));
+
+  private final Servlet origin;
+  private Clock clock = Clock.systemUTC();
+  private boolean shared = true;
+  private int maxEntries = Integer.MAX_VALUE;
+  private long maxBytes = Long.MAX_VALUE;
+
+  private final LinkedHashMap<String, CacheEntry> entries = new LinkedHashMap<>(16, .75f, true);
+  private long size = 0;
+
+  final LongAdder requests = new LongAdder();
+  final LongAdder hits = new LongAdder();
+  final LongAdder misses = new LongAdder();
+  final LongAdder bypassed = new LongAdder();
+  final LongAdder revalidations = new LongAdder();
+  final LongAdder notModified = new LongAdder();
+  final LongAdder clientNotModified = new LongAdder();
+  final LongAdder evictions = new LongAdder();
+  final LongAdder bytesSaved = new LongAdder();
+
+  public ResponseCache(Servlet origin) {
+    this.origin = origin;
+  }
+
+  public ResponseCache withClock(Clock clock) {
+    this.clock = clock;
+    return this;
+  }
+
+  /** Act as a private (browser) cache: honor {@code private} and ignore {@code s-maxage}. */
+  public ResponseCache withPrivateCache() {
+    this.shared = false;
+    return this;
+  }
+
+  public ResponseCache withMaxEntries(int maxEntries) {
+    if (maxEntries < 1) {
+      throw new IllegalArgumentException("maxEntries must be positive");
+    }
+    this.maxEntries = maxEntries;
+    return this;
+  }
+
+  /** Limit on the summed size of stored bodies and headers. */
+  public ResponseCache withMaxBytes(long maxBytes) {
+    if (maxBytes < 1) {
+      throw new IllegalArgumentException("maxBytes must be positive");
+    }
+    this.maxBytes = maxBytes;
+    return this;
+  }
+
+  @Override
+  public void init(ServletConfig config) throws ServletException {
+    super.init(config);
+    origin.init(config);
+  }
+
+  @Override
+  public void destroy() {
+    origin.destroy();
+  }
+
+  @Override
+  public void service(ServletRequest req, ServletResponse res) throws ServletException, IOException {
+    if (!(req instanceof HttpServletRequestMock) || !(res instanceof HttpServletResponseMock)) {
+      throw new IllegalArgumentException("ResponseCache works on HttpServletRequestMock/HttpServletResponseMock only");
+    }
+    service((HttpServletRequestMock) req, (HttpServletResponseMock) res);
+  }
+
+  public void service(HttpServletRequestMock request, HttpServletResponseMock response)
+      throws ServletException, IOException {
+    requests.increment();
+    String key = key(request);
+    Map<String, String> directives = directives(request.getHeader("Cache-Control"));
+    if (!"GET".equals(request.getMethod()) || directives.containsKey("no-store")) {
+      bypassed.increment();
+      origin.service(request, response);
+      if (UNSAFE_METHODS.contains(request.getMethod()) && response.getStatus() < 400) {
+        invalidate(key);
+      }
+      return;
+    }
+
+    CacheEntry entry;
+    synchronized (entries) {
+      entry = entries.get(key);
+    }
+    if (entry != null && !entry.varyMatches(request)) {
+      entry = null;
+    }
+    long now = clock.millis();
+    boolean forceRevalidation = directives.containsKey("no-cache")
+                                || "0".equals(directives.get("max-age"))
+                                || "no-cache".equals(request.getHeader("Pragma"));
+    if (entry != null && !forceRevalidation && entry.isFresh(now)) {
+      hits.increment();
+      bytesSaved.add(entry.body.length);
+      entry.replay(request, response, now);
+      return;
+    }
+
+    HttpServletResponseMock fetched;
+    if (entry != null && entry.hasValidator()) {
+      revalidations.increment();
+      fetched = fetch(request, entry);
+      if (fetched.getCommitedStatus() == 304) {
+        notModified.increment();
+        bytesSaved.add(entry.body.length);
+        entry = entry.revalidated(fetched, clock.millis());
+        fetched.release();
+        store(key, entry);
+        entry.replay(request, response, clock.millis());
+        return;
+      }
+    } else {
+      fetched = fetch(request, null);
+    }
+    misses.increment();
+    CacheEntry fresh = new CacheEntry(request, fetched, clock.millis());
+    fetched.release();
+    if (fresh.isStorable()) {
+      store(key, fresh);
+    } else {
+      invalidate(key);
+    }
+    fresh.replay(request, response, clock.millis());
+  }
+
+  /**
+   * Calls the servlet with the cache's own validators instead of the
+   * client's: those of {@code entry}, or none when filling the cache.
+   */
+  protected HttpServletResponseMock fetch(HttpServletRequestMock request, CacheEntry entry)
+      throws ServletException, IOException {
+    HttpServletResponseMock fetched = new HttpServletResponseMock().withDateHeader(clock);
+    String ifNoneMatch = request.getHeader("If-None-Match");
+    String ifModifiedSince = request.getHeader("If-Modified-Since");
+    String etag = entry != null ? entry.header("ETag") : null;
+    request.withHeader("If-None-Match", etag)
+        .withHeader("If-Modified-Since", entry != null && etag == null ? entry.header("Last-Modified") : null);
+    try {
+      origin.service(request, fetched);
+    } finally {
+      request.withHeader("If-None-Match", ifNoneMatch)
+          .withHeader("If-Modified-Since", ifModifiedSince);
+    }
+    fetched.close();
+    return fetched;
+  }
+
+  protected void store(String key, CacheEntry entry) {
+    if (entry.size > maxBytes) {
+      invalidate(key);
+      return;
+    }
+    synchronized (entries) {
+      CacheEntry previous = entries.put(key, entry);
+      size += entry.size - (previous != null ? previous.size : 0);
+      Iterator<CacheEntry> eldest = entries.values().iterator();
+      while (entries.size() > maxEntries || size > maxBytes) {
+        size -= eldest.next().size;
+        eldest.remove();
+        evictions.increment();
+      }
+    }
+  }
+
+  public void invalidate(String key) {
+    synchronized (entries) {
+      CacheEntry removed = entries.remove(key);
+      if (removed != null) {
+        size -= removed.size;
+      }
+    }
+  }
+
+  public void clear() {
+    synchronized (entries) {
+      entries.clear();
+      size = 0;
+    }
+  }
+
+  protected String key(HttpServletRequestMock request) {
+    String query = request.getQueryString();
+    return query != null ? request.getRequestURI() + '?' + query : request.getRequestURI();
+  }
+
+  static Map<String, String> directives(String cacheControl) {
+    if (cacheControl == null) {
+      return Collections.emptyMap();
+    }
+    Map<String, String> directives = new HashMap<>();
+    for (String directive : cacheControl.split(",")) {
+      int eq = directive.indexOf('=');
+      if (eq < 0) {
+        directives.put(directive.trim().toLowerCase(), null);
+      } else {
+        directives.put(directive.substring(0, eq).trim().toLowerCase(),
+                       directive.substring(eq + 1).trim().replace("\"", ""));
+      }
+    }
+    return directives;
+  }
+
+  static long parseDate(String date) {
+    if (date == null) {
+      return -1;
+    }
+    try {
+      return Instant.from(RFC_1123_DATE_TIME.parse(date)).toEpochMilli();
+    } catch (DateTimeParseException e) {
+      return -1;
+    }
+  }
+
+  static String weak(String etag) {
+    return etag.startsWith("W/") ? etag.substring(2) : etag;
+  }
+
+  static long parseSeconds(String seconds) {
+    try {
+      return Math.max(0, Long.parseLong(seconds)) * 1000;
+    } catch (NumberFormatException e) {
+      return -1;
+    }
+  }
+
+  public int getEntryCount() {
+    synchronized (entries) {
+      return entries.size();
+    }
+  }
+
+  public long getSize() {
+    synchronized (entries) {
+      return size;
+    }
+  }
+
+  public long getRequestCount() {
+    return requests.sum();
+  }
+
+  /** Served from the cache without contacting the servlet. */
+  public long getHitCount() {
+    return hits.sum();
+  }
+
+  /** Full responses from the servlet, including failed revalidations. */
+  public long getMissCount() {
+    return misses.sum();
+  }
+
+  /** Requests passed through uncached (non-{@code GET} or {@code no-store}). */
+  public long getBypassCount() {
+    return bypassed.sum();
+  }
+
+  public long getRevalidationCount() {
+    return revalidations.sum();
+  }
+
+  public long getNotModifiedCount() {
+    return notModified.sum();
+  }
+
+  /** Conditional client requests answered with 304 from a cached or fetched 200. */
+  public long getClientNotModifiedCount() {
+    return clientNotModified.sum();
+  }
+
+  public long getEvictionCount() {
+    return evictions.sum();
+  }
+
+  /** Body bytes the servlet didn't have to send thanks to hits and 304s. */
+  public long getBytesSaved() {
+    return bytesSaved.sum();
+  }
+
+  /** Share of requests answered without a body from the servlet (hits and 304s). */
+  public double getHitRatio() {
+    long requests = getRequestCount();
+    return requests == 0 ? 0 : (double) (getHitCount() + getNotModifiedCount()) / requests;
+  }
+
+  /** Share of revalidations answered with 304. */
+  public double getNotModifiedRate() {
+    long revalidations = getRevalidationCount();
+    return revalidations == 0 ? 0 : (double) getNotModifiedCount() / revalidations;
+  }
+
+  public void resetStats() {
+    for (LongAdder counter : Arrays.asList(requests, hits, misses, bypassed, revalidations,
+                                           notModified, clientNotModified, evictions, bytesSaved)) {
+      counter.reset();
+    }
+  }
+
+  @Override
+  public String toString() {
+    return String.format("%d requests: %d hits, %d misses, %d bypassed, %d/%d revalidations not modified, "
+                         + "%d evictions; hit ratio %.3f, %d bytes saved",
+        getRequestCount(), getHitCount(), getMissCount(), getBypassCount(), getNotModifiedCount(),
+        getRevalidationCount(), getEvictionCount(), getHitRatio(), getBytesSaved());
+  }
+
+  class CacheEntry {
+    final int status;
+    final String statusMessage;
+    final Map<String, List<String>> headers;
+    final byte[] body;
+    final Map<String, String> vary = new HashMap<>();
+    final long responseTime;
+    final long initialAge;
+    final long lifetime;
+    final long size;
+
+    CacheEntry(HttpServletRequestMock request, HttpServletResponseMock fetched, long now) {
+      this(fetched.getCommitedStatus(), fetched.getCommitedStatusMessage(),
+           fetched.getCommitedHeaders(), fetched.getSendBodyBytes(), now);
+      String varyHeader = header("Vary");
+      if (varyHeader != null) {
+        for (String name : varyHeader.split(",")) {
+          vary.put(name.trim(), request.getHeader(name.trim()));
+        }
+      }
+    }
+
+    CacheEntry(int status, String statusMessage, Map<String, List<String>> headers, byte[] body, long now) {
+      this.status = status;
+      this.statusMessage = statusMessage;
+      this.headers = new TreeMap<>(String.CASE_INSENSITIVE_ORDER);
+      this.headers.putAll(headers);
+      this.body = body;
+      this.responseTime = now;
+      long age = header("Age") != null ? parseSeconds(header("Age")) : 0;
+      this.initialAge = Math.max(0, age);
+      this.lifetime = lifetime();
+      long size = body.length;
+      for (Entry<String, List<String>> header : this.headers.entrySet()) {
+        for (String value : header.getValue()) {
+          size += header.getKey().length() + value.length() + 4;
+        }
+      }
+      this.size = size;
+    }
+
+    String header(String name) {
+      List<String> values = headers.get(name);
+      return values == null || values.isEmpty() ? null : values.get(0);
+    }
+
+    Map<String, String> directives() {
+      List<String> values = headers.get("Cache-Control");
+      return values == null ? Collections.emptyMap() : ResponseCache.directives(String.join(",", values));
+    }
+
+    long lifetime() {
+      Map<String, String> directives = directives();
+      if (directives.containsKey("no-cache")) {
+        return 0;
+      }
+      if (shared && directives.containsKey("s-maxage")) {
+        return parseSeconds(directives.get("s-maxage"));
+      }
+      if (directives.containsKey("max-age")) {
+        return parseSeconds(directives.get("max-age"));
+      }
+      long date = parseDate(header("Date"));
+      if (date < 0) {
+        date = responseTime;
+      }
+      if (header("Expires") != null) {
+        long expires = parseDate(header("Expires"));
+        return expires < 0 ? 0 : Math.max(0, expires - date);
+      }
+      long lastModified = parseDate(header("Last-Modified"));
+      if (lastModified >= 0 && CACHEABLE_BY_DEFAULT.contains(status)) {
+        return Math.max(0, date - lastModified) / 10;
+      }
+      return -1;
+    }
+
+    boolean isStorable() {
+      Map<String, String> directives = directives();
+      return !directives.containsKey("no-store")
+             && !(shared && directives.containsKey("private"))
+             && !"*".equals(header("Vary"))
+             && status != 304
+             && (CACHEABLE_BY_DEFAULT.contains(status) || lifetime > 0 && status < 400)
+             && (lifetime > 0 || hasValidator());
+    }
+
+    boolean hasValidator() {
+      return header("ETag") != null || header("Last-Modified") != null;
+    }
+
+    boolean varyMatches(HttpServletRequestMock request) {
+      for (Entry<String, String> header : vary.entrySet()) {
+        if (!Objects.equals(header.getValue(), request.getHeader(header.getKey()))) {
+          return false;
+        }
+      }
+      return true;
+    }
+
+    long age(long now) {
+      return initialAge + Math.max(0, now - responseTime);
+    }
+
+    boolean isFresh(long now) {
+      return age(now) < lifetime;
+    }
+
+    /** This entry with the headers of a 304 response merged in and its age reset. */
+    CacheEntry revalidated(HttpServletResponseMock notModified, long now) {
+      Map<String, List<String>> headers = new TreeMap<>(String.CASE_INSENSITIVE_ORDER);
+      headers.putAll(this.headers);
+      headers.remove("Age");
+      for (Entry<String, List<String>> header : notModified.getCommitedHeaders().entrySet()) {
+        if (!header.getKey().equalsIgnoreCase("Content-Length")) {
+          headers.put(header.getKey(), header.getValue());
+        }
+      }
+      CacheEntry entry = new CacheEntry(status, statusMessage, headers, body, now);
+      entry.vary.putAll(vary);
+      return entry;
+    }
+
+    /** Whether the client's own {@code If-None-Match} / {@code If-Modified-Since} is satisfied by this entry. */
+    boolean notModifiedFor(HttpServletRequestMock request) {
+      if (status != 200) {
+        return false;
+      }
+      String ifNoneMatch = request.getHeader("If-None-Match");
+      if (ifNoneMatch != null) {
+        String etag = header("ETag");
+        if (etag == null) {
+          return false;
+        }
+        for (String candidate : ifNoneMatch.split(",")) {
+          candidate = candidate.trim();
+          if (candidate.equals("*") || weak(candidate).equals(weak(etag))) {
+            return true;
+          }
+        }
+        return false;
+      }
+      long ifModifiedSince = parseDate(request.getHeader("If-Modified-Since"));
+      long lastModified = parseDate(header("Last-Modified"));
+      return ifModifiedSince >= 0 && lastModified >= 0 && lastModified <= ifModifiedSince;
+    }
+
+    void replay(HttpServletRequestMock request, HttpServletResponseMock response, long now) throws IOException {
+      if (notModifiedFor(request)) {
+        clientNotModified.increment();
+        response.setStatus(304);
+        for (String name : NOT_MODIFIED_HEADERS) {
+          for (String value : headers.getOrDefault(name, Collections.emptyList())) {
+            response.addHeader(name, value);
+          }
+        }
+        response.setHeader("Age", Long.toString(age(now) / 1000));
+        return;
+      }
+      response.setStatus(status, statusMessage);
+      for (Entry<String, List<String>> header : headers.entrySet()) {
+        for (String value : header.getValue()) {
+          response.addHeader(header.getKey(), value);
+        }
+      }
+      response.setHeader("Age", Long.toString(age(now) / 1000));
+      if (body.length > 0) {
+        response.getOutputStream().write(body);
+      }
+    }
+  }
+}
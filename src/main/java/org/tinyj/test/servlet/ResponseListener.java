@@ -0,0 +1,47 @@
+/*
+Copyright 2016 Eric Karge <e.karge@struction.de>
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+  http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+*/
+package org.tinyj.test.servlet;
+
+/**
+ * Notified by {@link HttpServletResponseMock} while the servlet produces the
+ * response. {@code onWrite} sees the body bytes as they are written to the
+ * output stream (the writer is encoded into it), before any buffering.
+ * {@code onWriterWrite} sees each call the servlet makes on the writer; the
+ * characters are only valid during the call. {@code onReset} follows a
+ * {@code resetBuffer()} or {@code reset()}: as neither is allowed after
+ * commit, everything written so far was discarded and won't be sent.
+ */
+public interface ResponseListener {
+
+  default void onWrite(int b) {
+    onWrite(new byte[]{(byte) b}, 0, 1);
+  }
+
+  default void onWrite(byte[] b, int off, int len) {
+  }
+
+  default void onWriterWrite(CharSequence chars) {
+  }
+
+  default void onFlush() {
+  }
+
+  default void onReset() {
+  }
+
+  default void onClose() {
+  }
+}
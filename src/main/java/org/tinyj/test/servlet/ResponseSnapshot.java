@@ -0,0 +1,177 @@
+/*
+Copyright 2016 Eric Karge <e.karge@struction.de>
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+  http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+*/
+package org.tinyj.test.servlet;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+import static java.nio.channels.FileChannel.MapMode.READ_ONLY;
+import static java.nio.file.StandardOpenOption.*;
+
+/**
+ * Compares the recorded wire bytes (header and body) of a response against a
+ * golden file. Set the system property {@value #UPDATE_PROPERTY} to
+ * {@code true} to (re)write the golden files instead.
+ */
+public class ResponseSnapshot {
+
+  public static final String UPDATE_PROPERTY = "tinyj.snapshot.update";
+
+  protected static final int WINDOW = 16 << 20;
+
+  protected final Path golden;
+  protected boolean update = Boolean.getBoolean(UPDATE_PROPERTY);
+  protected int context = 32;
+
+  public ResponseSnapshot(Path golden) {
+    this.golden = golden;
+  }
+
+  public static ResponseSnapshot snapshot(Path golden) {
+    return new ResponseSnapshot(golden);
+  }
+
+  public ResponseSnapshot withUpdate(boolean update) {
+    this.update = update;
+    return this;
+  }
+
+  public ResponseSnapshot withContext(int context) {
+    this.context = context;
+    return this;
+  }
+
+  public void assertMatches(HttpServletResponseMock response) throws IOException {
+    ByteBuffer header = response.getHeaderBuffer();
+    ByteBuffer body = response.getSendBodyBuffer();
+    if (update) {
+      write(header, response);
+      return;
+    }
+    if (!Files.exists(golden)) {
+      throw new AssertionError("golden file " + golden + " does not exist, "
+                               + "run with -D" + UPDATE_PROPERTY + "=true to create it");
+    }
+    try (FileChannel expected = FileChannel.open(golden, READ)) {
+      long expectedSize = expected.size();
+      long actualSize = header.remaining() + (long) body.remaining();
+      long offset = mismatch(expected, 0, header);
+      if (offset < 0) {
+        offset = mismatch(expected, header.remaining(), body);
+      }
+      if (offset < 0 && expectedSize != actualSize) {
+        offset = Math.min(expectedSize, actualSize);
+      }
+      if (offset >= 0) {
+        throw new AssertionError(describe(expected, header, body, offset));
+      }
+    }
+  }
+
+  protected void write(ByteBuffer header, HttpServletResponseMock response) throws IOException {
+    Path parent = golden.toAbsolutePath().getParent();
+    if (parent != null) {
+      Files.createDirectories(parent);
+    }
+    try (FileChannel out = FileChannel.open(golden, CREATE, WRITE, TRUNCATE_EXISTING)) {
+      while (header.hasRemaining()) {
+        out.write(header);
+      }
+      response.writeSendBodyTo(out);
+    }
+  }
+
+  protected static long mismatch(FileChannel expected, long start, ByteBuffer actual) throws IOException {
+    long end = Math.min(expected.size(), start + actual.remaining());
+    for (long position = start; position < end; position += WINDOW) {
+      int length = (int) Math.min(WINDOW, end - position);
+      ByteBuffer window = expected.map(READ_ONLY, position, length);
+      int index = mismatch(window, actual, actual.position() + (int) (position - start), length);
+      if (index >= 0) {
+        return position + index;
+      }
+    }
+    return -1;
+  }
+
+  protected static int mismatch(ByteBuffer expected, ByteBuffer actual, int offset, int length) {
+    int i = 0;
+    for (; i + 8 <= length; i += 8) {
+      if (expected.getLong(i) != actual.getLong(offset + i)) {
+        break;
+      }
+    }
+    for (; i < length; i++) {
+      if (expected.get(i) != actual.get(offset + i)) {
+        return i;
+      }
+    }
+    return -1;
+  }
+
+  protected String describe(FileChannel expected, ByteBuffer header, ByteBuffer body, long offset)
+      throws IOException {
+    long from = Math.max(0, offset - context);
+    int headerSize = header.remaining();
+    String part = offset < headerSize ? "header" : "body offset " + (offset - headerSize);
+
+    long expectedEnd = Math.min(expected.size(), offset + context);
+    ByteBuffer expectedContext = expected.map(READ_ONLY, from, Math.max(0, expectedEnd - from));
+    StringBuilder expectedText = new StringBuilder();
+    while (expectedContext.hasRemaining()) {
+      appendEscaped(expectedText, expectedContext.get());
+    }
+
+    long actualEnd = Math.min(headerSize + (long) body.remaining(), offset + context);
+    StringBuilder actualText = new StringBuilder();
+    for (long i = from; i < actualEnd; i++) {
+      appendEscaped(actualText, i < headerSize
+                                ? header.get(header.position() + (int) i)
+                                : body.get(body.position() + (int) (i - headerSize)));
+    }
+
+    return "response does not match golden file " + golden + " at offset " + offset + " (" + part + ")\n"
+           + "  expected: \"" + expectedText + "\"" + (expectedEnd >= expected.size() ? " <EOF>" : "") + "\n"
+           + "  actual:   \"" + actualText + "\"" + (actualEnd >= headerSize + (long) body.remaining() ? " <EOF>" : "");
+  }
+
+  protected static void appendEscaped(StringBuilder sb, byte b) {
+    switch (b) {
+      case '\r':
+        sb.append("\\r");
+        break;
+      case '\n':
+        sb.append("\\n");
+        break;
+      case '\t':
+        sb.append("\\t");
+        break;
+      case '"':
+      case '\\':
+        sb.append('\\').append((char) b);
+        break;
+      default:
+        if (b >= 0x20 && b < 0x7f) {
+          sb.append((char) b);
+        } else {
+          sb.append(String.format("\\x%02x", b & 0xff));
+        }
+    }
+  }
+}
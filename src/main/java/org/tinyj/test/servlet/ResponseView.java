@@ -0,0 +1,329 @@
+/*
+Copyright 2016 Eric Karge <e.karge@struction.de>
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+  http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+*/
+package org.tinyj.test.servlet;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static java.nio.charset.StandardCharsets.ISO_8859_1;
+import static java.util.Collections.unmodifiableList;
+
+/**
+ * Lazily parsed view on the wire bytes of a response. Nothing is parsed or
+ * copied until it is asked for; header names and values become Strings only
+ * when they are read.
+ */
+public class ResponseView {
+
+  protected final ByteBuffer header;
+  protected final ByteBuffer body;
+
+  private int statusLineEnd = -1;
+  private int status = -1;
+  private int[] headerIndex;
+  private int headerCount;
+  private List<ByteBuffer> chunks;
+
+  public ResponseView(ByteBuffer header, ByteBuffer body) {
+    this.header = header.slice();
+    this.body = body.slice();
+  }
+
+  public static ResponseView of(HttpServletResponseMock response) throws IOException {
+    // the recorder's own array, getHeaderBuffer() is read-only and would hide it
+    return new ResponseView(response.headerRecorder.asByteBuffer(), response.getSendBodyBuffer());
+  }
+
+  public static ResponseView parse(ByteBuffer wire) {
+    ByteBuffer bytes = wire.slice();
+    int limit = bytes.limit();
+    for (int i = 0; i + 3 < limit; i++) {
+      if (bytes.get(i) == '\r' && bytes.get(i + 1) == '\n' && bytes.get(i + 2) == '\r' && bytes.get(i + 3) == '\n') {
+        return new ResponseView(slice(bytes, 0, i + 4), slice(bytes, i + 4, limit - i - 4));
+      }
+    }
+    throw new IllegalArgumentException("incomplete response header");
+  }
+
+
+  /*--- status line ---*/
+
+  public String getProtocol() {
+    int end = indexOf(header, (byte) ' ', 0, statusLineEnd());
+    return string(header, 0, end < 0 ? statusLineEnd() : end);
+  }
+
+  public int getStatus() {
+    if (status < 0) {
+      int start = indexOf(header, (byte) ' ', 0, statusLineEnd()) + 1;
+      int value = 0;
+      for (int i = start; i < statusLineEnd() && header.get(i) != ' '; i++) {
+        value = value * 10 + header.get(i) - '0';
+      }
+      status = value;
+    }
+    return status;
+  }
+
+  public String getReason() {
+    int start = indexOf(header, (byte) ' ', 0, statusLineEnd()) + 1;
+    start = indexOf(header, (byte) ' ', start, statusLineEnd()) + 1;
+    return start > 0 ? string(header, start, statusLineEnd()) : "";
+  }
+
+
+  /*--- headers ---*/
+
+  public int getHeaderCount() {
+    index();
+    return headerCount;
+  }
+
+  public String getHeaderName(int index) {
+    int entry = entry(index);
+    return string(header, headerIndex[entry], headerIndex[entry + 1]);
+  }
+
+  public String getHeaderValue(int index) {
+    int entry = entry(index);
+    return string(header, headerIndex[entry + 2], headerIndex[entry + 3]);
+  }
+
+  public boolean containsHeader(String name) {
+    return find(name, 0) >= 0;
+  }
+
+  public String getHeader(String name) {
+    int index = find(name, 0);
+    return index < 0 ? null : getHeaderValue(index);
+  }
+
+  public List<String> getHeaders(String name) {
+    List<String> values = new ArrayList<>();
+    for (int index = find(name, 0); index >= 0; index = find(name, index + 1)) {
+      values.add(getHeaderValue(index));
+    }
+    return values;
+  }
+
+  public long getContentLength() {
+    int index = find("Content-Length", 0);
+    if (index < 0) {
+      return -1;
+    }
+    long value = 0;
+    for (int i = headerIndex[4 * index + 2]; i < headerIndex[4 * index + 3]; i++) {
+      value = value * 10 + header.get(i) - '0';
+    }
+    return value;
+  }
+
+
+  /*--- body ---*/
+
+  public ByteBuffer getBody() {
+    return body.asReadOnlyBuffer();
+  }
+
+  public ByteBuffer getBody(int offset, int length) {
+    return slice(body, offset, length).asReadOnlyBuffer();
+  }
+
+  public boolean isChunked() {
+    for (int index = find("Transfer-Encoding", 0); index >= 0; index = find("Transfer-Encoding", index + 1)) {
+      if (getHeaderValue(index).toLowerCase().contains("chunked")) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  public List<ByteBuffer> getChunks() {
+    if (chunks == null) {
+      chunks = isChunked() ? decodeChunks() : unmodifiableList(Arrays.asList(getBody()));
+    }
+    return chunks;
+  }
+
+  public long getDecodedBodySize() {
+    long size = 0;
+    for (ByteBuffer chunk : getChunks()) {
+      size += chunk.remaining();
+    }
+    return size;
+  }
+
+  public ByteBuffer getDecodedBody() {
+    List<ByteBuffer> chunks = getChunks();
+    if (chunks.size() == 1) {
+      return chunks.get(0).duplicate();
+    }
+    ByteBuffer decoded = ByteBuffer.allocate((int) getDecodedBodySize());
+    for (ByteBuffer chunk : chunks) {
+      decoded.put(chunk.duplicate());
+    }
+    decoded.flip();
+    return decoded;
+  }
+
+  protected List<ByteBuffer> decodeChunks() {
+    List<ByteBuffer> chunks = new ArrayList<>();
+    int limit = body.limit();
+    int position = 0;
+    while (position < limit) {
+      long size = 0;
+      int i = position;
+      for (; i < limit; i++) {
+        int digit = Character.digit(body.get(i), 16);
+        if (digit < 0) {
+          break;
+        }
+        size = size * 16 + digit;
+      }
+      int lineEnd = indexOf(body, (byte) '\n', i, limit);
+      if (lineEnd < 0 || i == position) {
+        throw new IllegalStateException("malformed chunk header at body offset " + position);
+      }
+      if (size == 0) {
+        break;
+      }
+      int start = lineEnd + 1;
+      if (start + size > limit) {
+        throw new IllegalStateException("truncated chunk at body offset " + position);
+      }
+      chunks.add(slice(body, start, (int) size).asReadOnlyBuffer());
+      position = start + (int) size + 2;
+    }
+    return unmodifiableList(chunks);
+  }
+
+
+  /*--- parsing ---*/
+
+  private int statusLineEnd() {
+    if (statusLineEnd < 0) {
+      int end = indexOf(header, (byte) '\r', 0, header.limit());
+      statusLineEnd = end < 0 ? header.limit() : end;
+    }
+    return statusLineEnd;
+  }
+
+  private void index() {
+    if (headerIndex != null) {
+      return;
+    }
+    int[] index = new int[32];
+    int count = 0;
+    int limit = header.limit();
+    int position = statusLineEnd() + 2;
+    while (position < limit) {
+      int end = indexOf(header, (byte) '\r', position, limit);
+      if (end < 0) {
+        end = limit;
+      }
+      if (end == position) {
+        break;
+      }
+      int colon = indexOf(header, (byte) ':', position, end);
+      if (colon > 0) {
+        int valueStart = colon + 1;
+        while (valueStart < end && header.get(valueStart) == ' ') {
+          valueStart++;
+        }
+        if (4 * count + 4 > index.length) {
+          index = Arrays.copyOf(index, index.length * 2);
+        }
+        index[4 * count] = position;
+        index[4 * count + 1] = colon;
+        index[4 * count + 2] = valueStart;
+        index[4 * count + 3] = end;
+        count++;
+      }
+      position = end + 2;
+    }
+    headerCount = count;
+    headerIndex = index;
+  }
+
+  private int entry(int index) {
+    if (index < 0 || index >= getHeaderCount()) {
+      throw new IndexOutOfBoundsException("header " + index);
+    }
+    return 4 * index;
+  }
+
+  private int find(String name, int from) {
+    index();
+    int length = name.length();
+    for (int i = from; i < headerCount; i++) {
+      int start = headerIndex[4 * i];
+      if (headerIndex[4 * i + 1] - start != length) {
+        continue;
+      }
+      int j = 0;
+      while (j < length && toLower(header.get(start + j)) == toLower((byte) name.charAt(j))) {
+        j++;
+      }
+      if (j == length) {
+        return i;
+      }
+    }
+    return -1;
+  }
+
+  private static int toLower(byte b) {
+    return b >= 'A' && b <= 'Z' ? b + ('a' - 'A') : b;
+  }
+
+  private static int indexOf(ByteBuffer buffer, byte b, int from, int to) {
+    if (buffer.hasArray()) {
+      byte[] array = buffer.array();
+      int offset = buffer.arrayOffset();
+      for (int i = from; i < to; i++) {
+        if (array[offset + i] == b) {
+          return i;
+        }
+      }
+      return -1;
+    }
+    for (int i = from; i < to; i++) {
+      if (buffer.get(i) == b) {
+        return i;
+      }
+    }
+    return -1;
+  }
+
+  private static ByteBuffer slice(ByteBuffer buffer, int offset, int length) {
+    ByteBuffer slice = buffer.duplicate();
+    slice.position(offset).limit(offset + length);
+    return slice.slice();
+  }
+
+  private static String string(ByteBuffer buffer, int from, int to) {
+    if (buffer.hasArray()) {
+      return new String(buffer.array(), buffer.arrayOffset() + from, to - from, ISO_8859_1);
+    }
+    byte[] bytes = new byte[to - from];
+    ByteBuffer range = buffer.duplicate();
+    range.position(from);
+    range.get(bytes);
+    return new String(bytes, ISO_8859_1);
+  }
+}
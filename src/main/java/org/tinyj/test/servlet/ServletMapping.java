@@ -0,0 +1,259 @@
+/*
+Copyright 2016 Eric Karge <e.karge@struction.de>
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+  http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+*/
+package org.tinyj.test.servlet;
+
+import javax.servlet.Servlet;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Servlet url-pattern mapping as specified in section 12 of the servlet
+ * specification: exact paths, path prefixes ({@code /foo/*}), extensions
+ * ({@code *.jsp}), the context root ({@code ""}) and the default servlet
+ * ({@code /}). Patterns are kept in a trie of path segments, so a request
+ * URI is matched and split into context path, servlet path and path info in
+ * a single walk over its segments.
+ */
+public class ServletMapping {
+
+  public enum MatchType {
+    EXACT, PREFIX, EXTENSION, CONTEXT_ROOT, DEFAULT
+  }
+
+  private final String contextPath;
+  private final Node root = new Node();
+  private final Map<String, Target> extensions = new HashMap<>();
+  private Target contextRoot;
+  private Target defaultTarget;
+  private int size = 0;
+
+  public ServletMapping() {
+    this("");
+  }
+
+  public ServletMapping(String contextPath) {
+    if (!contextPath.isEmpty() && (!contextPath.startsWith("/") || contextPath.endsWith("/"))) {
+      throw new IllegalArgumentException("context path must be empty or start but not end with '/'");
+    }
+    this.contextPath = contextPath;
+  }
+
+  /**
+   * @throws IllegalArgumentException if the pattern is invalid or already mapped
+   */
+  public ServletMapping map(String pattern, Servlet servlet) {
+    Target target = new Target(pattern, servlet);
+    if (pattern.isEmpty()) {
+      contextRoot = unique(contextRoot, target);
+    } else if (pattern.equals("/")) {
+      defaultTarget = unique(defaultTarget, target);
+    } else if (pattern.startsWith("*.") && pattern.indexOf('/') < 0) {
+      String extension = pattern.substring(2);
+      extensions.put(extension, unique(extensions.get(extension), target));
+    } else if (pattern.startsWith("/") && pattern.endsWith("/*")) {
+      Node node = node(pattern.substring(0, pattern.length() - 2));
+      node.prefix = unique(node.prefix, target);
+    } else if (pattern.startsWith("/") && !pattern.contains("*")) {
+      Node node = node(pattern);
+      node.exact = unique(node.exact, target);
+    } else {
+      throw new IllegalArgumentException("invalid url-pattern '" + pattern + "'");
+    }
+    size++;
+    return this;
+  }
+
+  private static Target unique(Target existing, Target target) {
+    if (existing != null) {
+      throw new IllegalArgumentException("url-pattern '" + target.pattern + "' is already mapped");
+    }
+    return target;
+  }
+
+  private Node node(String path) {
+    Node node = root;
+    int start = 1;
+    while (start <= path.length()) {
+      int end = path.indexOf('/', start);
+      if (end < 0) {
+        end = path.length();
+      }
+      node = node.children.computeIfAbsent(path.substring(start, end), segment -> new Node());
+      start = end + 1;
+    }
+    return node;
+  }
+
+  public int size() {
+    return size;
+  }
+
+  public String getContextPath() {
+    return contextPath;
+  }
+
+  /**
+   * Matches a raw request URI (a query string is ignored).
+   *
+   * @return the match, or null if the URI is outside the context or nothing matches
+   */
+  public Match match(String uri) {
+    int end = uri.indexOf('?');
+    if (end < 0) {
+      end = uri.length();
+    }
+    int context = contextPath.length();
+    if (!uri.startsWith(contextPath) || (end > context && uri.charAt(context) != '/')) {
+      return null;
+    }
+    if (end == context || end == context + 1) {
+      if (contextRoot != null) {
+        return new Match(contextRoot, MatchType.CONTEXT_ROOT, uri, end, "", "/");
+      }
+      if (end == context) {
+        return root.prefix != null ? new Match(root.prefix, MatchType.PREFIX, uri, end, "", null)
+               : defaultTarget != null ? new Match(defaultTarget, MatchType.DEFAULT, uri, end, "", null)
+               : null;
+      }
+    }
+
+    Node node = root;
+    Target prefix = root.prefix;
+    int prefixEnd = context;
+    int start = context + 1;
+    int lastSegment = start;
+    while (node != null && start <= end) {
+      int slash = uri.indexOf('/', start);
+      int segmentEnd = slash < 0 || slash > end ? end : slash;
+      lastSegment = start;
+      node = node.children.get(uri.substring(start, segmentEnd));
+      if (node != null && node.prefix != null) {
+        prefix = node.prefix;
+        prefixEnd = segmentEnd;
+      }
+      if (node != null && segmentEnd == end && node.exact != null) {
+        return new Match(node.exact, MatchType.EXACT, uri, end, uri.substring(context, end), null);
+      }
+      start = segmentEnd + 1;
+    }
+    if (prefix != null) {
+      return new Match(prefix, MatchType.PREFIX, uri, end, uri.substring(context, prefixEnd),
+                       prefixEnd < end ? uri.substring(prefixEnd, end) : null);
+    }
+    if (node == null) {
+      lastSegment = uri.lastIndexOf('/', end - 1) + 1;
+    }
+    int dot = uri.lastIndexOf('.', end - 1);
+    if (dot >= lastSegment && !extensions.isEmpty()) {
+      Target target = extensions.get(uri.substring(dot + 1, end));
+      if (target != null) {
+        return new Match(target, MatchType.EXTENSION, uri, end, uri.substring(context, end), null);
+      }
+    }
+    if (defaultTarget != null) {
+      return new Match(defaultTarget, MatchType.DEFAULT, uri, end, uri.substring(context, end), null);
+    }
+    return null;
+  }
+
+  /**
+   * Matches {@code uri} and sets the request's URI, context path, servlet path,
+   * path info and query string from it.
+   *
+   * @return the servlet to run, or null if nothing matches
+   */
+  public Servlet route(String uri, HttpServletRequestMock request) {
+    Match match = match(uri);
+    if (match == null) {
+      return null;
+    }
+    request.withContextPath(contextPath)
+        .withServletPath(match.servletPath)
+        .withPath(match.pathInfo)
+        .withRequestURI(match.requestURI);
+    int query = uri.indexOf('?');
+    if (query >= 0) {
+      request.withQueryString(uri.substring(query + 1));
+    }
+    return match.getServlet();
+  }
+
+  static class Node {
+    final Map<String, Node> children = new HashMap<>();
+    Target exact;
+    Target prefix;
+  }
+
+  static class Target {
+    final String pattern;
+    final Servlet servlet;
+
+    Target(String pattern, Servlet servlet) {
+      this.pattern = pattern;
+      this.servlet = servlet;
+    }
+  }
+
+  public class Match {
+    private final Target target;
+    private final MatchType type;
+    private final String requestURI;
+    private final String servletPath;
+    private final String pathInfo;
+
+    Match(Target target, MatchType type, String uri, int end, String servletPath, String pathInfo) {
+      this.target = target;
+      this.type = type;
+      this.requestURI = end == uri.length() ? uri : uri.substring(0, end);
+      this.servletPath = servletPath;
+      this.pathInfo = pathInfo;
+    }
+
+    public Servlet getServlet() {
+      return target.servlet;
+    }
+
+    public String getPattern() {
+      return target.pattern;
+    }
+
+    public MatchType getType() {
+      return type;
+    }
+
+    public String getRequestURI() {
+      return requestURI;
+    }
+
+    public String getContextPath() {
+      return contextPath;
+    }
+
+    public String getServletPath() {
+      return servletPath;
+    }
+
+    /** null unless the match was by prefix or the context root. */
+    public String getPathInfo() {
+      return pathInfo;
+    }
+
+    @Override
+    public String toString() {
+      return type + " '" + target.pattern + "': " + contextPath + " | " + servletPath + " | " + pathInfo;
+    }
+  }
+}
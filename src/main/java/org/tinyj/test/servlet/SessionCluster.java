@@ -0,0 +1,275 @@
+/*
+Copyright 2016 Eric Karge <e.karge@struction.de>
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+  http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+*/
+package org.tinyj.test.servlet;
+
+import org.tinyj.test.servlet.support.ByteArrayBuffer;
+
+import java.io.*;
+import java.time.Clock;
+import java.util.*;
+
+/**
+ * In-process cluster of {@link SessionManager}s replicating session changes
+ * to each other through a simulated transport. Time on the transport is
+ * virtual: messages are delivered by {@link #advance(long)} once their
+ * latency has passed, so a request routed to another node before that sees
+ * stale state, just like it would without sticky sessions.
+ */
+public class SessionCluster {
+
+  public enum Mode {
+    /** replicate only the attributes set or removed during the request, plus access time and timeout */
+    DELTA,
+    /** replicate all attributes of a session touched by the request */
+    FULL
+  }
+
+  protected final List<SessionManager> nodes = new ArrayList<>();
+  protected final Mode mode;
+  protected final PriorityQueue<Message> transport = new PriorityQueue<>();
+  protected long latencyMillis = 0;
+  protected long now = 0;
+  protected long sequence = 0;
+
+  protected long requests = 0;
+  protected long messages = 0;
+  protected long bytes = 0;
+
+  public SessionCluster(int nodes, Mode mode) {
+    this(nodes, mode, Clock.systemUTC());
+  }
+
+  /** All nodes take session creation, access and expiry times from {@code clock}. */
+  public SessionCluster(int nodes, Mode mode, Clock clock) {
+    this.mode = mode;
+    for (int i = 0; i < nodes; i++) {
+      this.nodes.add(new SessionManager(clock));
+    }
+  }
+
+  public SessionCluster withLatency(long latencyMillis) {
+    this.latencyMillis = latencyMillis;
+    return this;
+  }
+
+  public SessionManager getNode(int node) {
+    return nodes.get(node);
+  }
+
+  public int size() {
+    return nodes.size();
+  }
+
+  /**
+   * Request routed to {@code node}, carrying {@code sessionId} (may be
+   * {@code null}) as requested session.
+   */
+  public HttpServletRequestMock request(int node, String sessionId) {
+    return new HttpServletRequestMock()
+        .withSessionManager(nodes.get(node))
+        .withRequestedSessionId(sessionId);
+  }
+
+  /**
+   * Replicates the changes the request made to its session from
+   * {@code node} to all other nodes. Only sessions the request itself
+   * invalidated are invalidated elsewhere; a requested session that just
+   * hasn't reached {@code node} yet is left alone.
+   */
+  public Replication complete(int node, HttpServletRequestMock request) throws IOException {
+    requests++;
+    HttpSessionMock session = request.getSession(false);
+    Replication replication = new Replication(0, 0);
+    for (HttpSessionMock invalidated : request.drainInvalidatedSessions()) {
+      replication = replication.plus(send(node, new Update(invalidated.getId(), 0, 0, 0, true, null, null)));
+    }
+    if (session == null) {
+      return replication;
+    }
+    Set<String> changed = session.drainChanged();
+    Map<String, Object> attributes = session.attributeMap();
+    HashMap<String, Object> values = new HashMap<>();
+    HashSet<String> removed = new HashSet<>();
+    if (mode == Mode.FULL) {
+      values.putAll(attributes);
+    } else {
+      for (String name : changed) {
+        if (attributes.containsKey(name)) {
+          values.put(name, attributes.get(name));
+        } else {
+          removed.add(name);
+        }
+      }
+    }
+    return replication.plus(send(node, new Update(session.getId(), session.getCreationTime(),
+                                                  session.getLastAccessedTime(), session.getMaxInactiveInterval(),
+                                                  false, values, removed)));
+  }
+
+  protected Replication send(int source, Update update) throws IOException {
+    ByteArrayBuffer serialized = new ByteArrayBuffer();
+    try (ObjectOutputStream out = new ObjectOutputStream(serialized)) {
+      out.writeObject(update);
+    }
+    byte[] payload = serialized.toByteArray();
+    int sent = 0;
+    for (int target = 0; target < nodes.size(); target++) {
+      if (target != source) {
+        transport.add(new Message(now + latencyMillis, sequence++, target, payload));
+        sent++;
+      }
+    }
+    messages += sent;
+    bytes += (long) sent * payload.length;
+    if (latencyMillis == 0) {
+      advance(0);
+    }
+    return new Replication(sent, (long) sent * payload.length);
+  }
+
+  /**
+   * Advances the virtual clock of the transport and delivers all messages
+   * that arrived in the meantime.
+   */
+  public void advance(long millis) {
+    now += millis;
+    while (!transport.isEmpty() && transport.peek().deliverAt <= now) {
+      Message message = transport.poll();
+      apply(nodes.get(message.target), message.payload);
+    }
+  }
+
+  public void deliverAll() {
+    while (!transport.isEmpty()) {
+      advance(Math.max(0, transport.peek().deliverAt - now));
+    }
+  }
+
+  public int getPendingMessages() {
+    return transport.size();
+  }
+
+  protected void apply(SessionManager node, byte[] payload) {
+    Update update;
+    try (ObjectInputStream in = new ObjectInputStream(new ByteArrayInputStream(payload))) {
+      update = (Update) in.readObject();
+    } catch (IOException | ClassNotFoundException e) {
+      throw new RuntimeException(e);
+    }
+    if (update.invalidated) {
+      HttpSessionMock session = node.getSession(update.id);
+      if (session != null) {
+        session.invalidate();
+      }
+      return;
+    }
+    HttpSessionMock session = node.adoptSession(update.id, update.creationTime);
+    Map<String, Object> attributes = session.attributeMap();
+    synchronized (session) {
+      if (update.lastAccessedTime > session.getLastAccessedTime()) {
+        session.access(update.lastAccessedTime);
+      }
+      if (update.maxInactiveInterval != session.getMaxInactiveInterval()) {
+        session.setMaxInactiveInterval(update.maxInactiveInterval);
+      }
+      if (mode == Mode.FULL) {
+        attributes.clear();
+      }
+      attributes.putAll(update.values);
+      attributes.keySet().removeAll(update.removed);
+    }
+  }
+
+  public long getRequestCount() {
+    return requests;
+  }
+
+  public long getMessageCount() {
+    return messages;
+  }
+
+  public long getReplicatedBytes() {
+    return bytes;
+  }
+
+  public double getMessagesPerRequest() {
+    return requests == 0 ? 0 : (double) messages / requests;
+  }
+
+  public double getBytesPerRequest() {
+    return requests == 0 ? 0 : (double) bytes / requests;
+  }
+
+  public static class Replication {
+
+    public final int messages;
+    public final long bytes;
+
+    Replication(int messages, long bytes) {
+      this.messages = messages;
+      this.bytes = bytes;
+    }
+
+    Replication plus(Replication other) {
+      return new Replication(messages + other.messages, bytes + other.bytes);
+    }
+  }
+
+  protected static class Update implements Serializable {
+
+    private static final long serialVersionUID = 1L;
+
+    final String id;
+    final long creationTime;
+    final long lastAccessedTime;
+    final int maxInactiveInterval;
+    final boolean invalidated;
+    final HashMap<String, Object> values;
+    final HashSet<String> removed;
+
+    Update(String id, long creationTime, long lastAccessedTime, int maxInactiveInterval, boolean invalidated,
+           HashMap<String, Object> values, HashSet<String> removed) {
+      this.id = id;
+      this.creationTime = creationTime;
+      this.lastAccessedTime = lastAccessedTime;
+      this.maxInactiveInterval = maxInactiveInterval;
+      this.invalidated = invalidated;
+      this.values = values;
+      this.removed = removed;
+    }
+  }
+
+  protected static class Message implements Comparable<Message> {
+
+    final long deliverAt;
+    final long sequence;
+    final int target;
+    final byte[] payload;
+
+    Message(long deliverAt, long sequence, int target, byte[] payload) {
+      this.deliverAt = deliverAt;
+      this.sequence = sequence;
+      this.target = target;
+      this.payload = payload;
+    }
+
+    @Override
+    public int compareTo(Message other) {
+      int byTime = Long.compare(deliverAt, other.deliverAt);
+      return byTime != 0 ? byTime : Long.compare(sequence, other.sequence);
+    }
+  }
+}
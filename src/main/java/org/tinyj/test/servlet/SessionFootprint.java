@@ -0,0 +1,139 @@
+/*
+Copyright 2016 Eric Karge <e.karge@struction.de>
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+  http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+*/
+package org.tinyj.test.servlet;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import static java.util.Collections.unmodifiableMap;
+import static org.tinyj.test.servlet.support.ObjectSizeEstimator.estimate;
+import static org.tinyj.test.servlet.support.ObjectSizeEstimator.serializedSize;
+
+/**
+ * Tracks the estimated retained and serialized size of each session attribute
+ * as it is set. Attributes mutated after {@code setAttribute} are only picked
+ * up by {@link #remeasure(HttpSessionMock)}.
+ */
+public class SessionFootprint {
+
+  protected final Map<String, Entry> entries = new LinkedHashMap<>();
+  protected long retainedBudget = Long.MAX_VALUE;
+  protected long serializedBudget = Long.MAX_VALUE;
+  protected long retainedSize = 0;
+  protected long serializedSize = 0;
+  protected long highWaterMark = 0;
+  protected String highWaterAttribute;
+
+  public SessionFootprint withBudget(long retainedBytes) {
+    this.retainedBudget = retainedBytes;
+    return this;
+  }
+
+  public SessionFootprint withSerializedBudget(long serializedBytes) {
+    this.serializedBudget = serializedBytes;
+    return this;
+  }
+
+  /**
+   * @throws AssertionError if the session exceeds its budget
+   */
+  public synchronized void measure(String name, Object value) {
+    remove(name);
+    Entry entry = new Entry(estimate(value), serializedSize(value));
+    entries.put(name, entry);
+    retainedSize += entry.retainedSize;
+    serializedSize += Math.max(0, entry.serializedSize);
+    if (retainedSize > highWaterMark) {
+      highWaterMark = retainedSize;
+      highWaterAttribute = name;
+    }
+    check(name);
+  }
+
+  public synchronized void remove(String name) {
+    Entry entry = entries.remove(name);
+    if (entry != null) {
+      retainedSize -= entry.retainedSize;
+      serializedSize -= Math.max(0, entry.serializedSize);
+    }
+  }
+
+  public synchronized void remeasure(HttpSessionMock session) {
+    entries.clear();
+    retainedSize = 0;
+    serializedSize = 0;
+    for (Map.Entry<String, Object> attribute : session.attributes().asMap().entrySet()) {
+      measure(attribute.getKey(), attribute.getValue());
+    }
+  }
+
+  protected void check(String cause) {
+    if (retainedSize > retainedBudget) {
+      throw new AssertionError("session retains ~" + retainedSize + " bytes after setting '" + cause
+                               + "', budget is " + retainedBudget + " bytes; " + this);
+    }
+    if (serializedSize > serializedBudget) {
+      throw new AssertionError("session serializes to " + serializedSize + " bytes after setting '" + cause
+                               + "', budget is " + serializedBudget + " bytes; " + this);
+    }
+  }
+
+  public synchronized void verify() {
+    check(highWaterAttribute);
+    if (highWaterMark > retainedBudget) {
+      throw new AssertionError("session peaked at ~" + highWaterMark + " bytes when setting '"
+                               + highWaterAttribute + "', budget is " + retainedBudget + " bytes");
+    }
+  }
+
+  public synchronized Map<String, Entry> getAttributes() {
+    return unmodifiableMap(new LinkedHashMap<>(entries));
+  }
+
+  public synchronized long getRetainedSize() {
+    return retainedSize;
+  }
+
+  public synchronized long getSerializedSize() {
+    return serializedSize;
+  }
+
+  public synchronized long getHighWaterMark() {
+    return highWaterMark;
+  }
+
+  @Override
+  public synchronized String toString() {
+    StringBuilder sb = new StringBuilder("attributes:");
+    entries.entrySet().stream()
+        .sorted((a, b) -> Long.compare(b.getValue().retainedSize, a.getValue().retainedSize))
+        .forEach(e -> sb.append(' ').append(e.getKey()).append("=~").append(e.getValue().retainedSize)
+            .append('/').append(e.getValue().serializedSize));
+    return sb.toString();
+  }
+
+  public static class Entry {
+
+    public final long retainedSize;
+    /** -1 if the attribute is not serializable */
+    public final long serializedSize;
+
+    Entry(long retainedSize, long serializedSize) {
+      this.retainedSize = retainedSize;
+      this.serializedSize = serializedSize;
+    }
+  }
+}
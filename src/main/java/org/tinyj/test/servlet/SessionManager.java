@@ -0,0 +1,311 @@
+/*
+Copyright 2016 Eric Karge <e.karge@struction.de>
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+  http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+*/
+package org.tinyj.test.servlet;
+
+import org.tinyj.test.servlet.support.AttributeStore;
+import org.tinyj.test.servlet.support.TimingWheel;
+
+import javax.servlet.http.HttpSessionAttributeListener;
+import javax.servlet.http.HttpSessionEvent;
+import javax.servlet.http.HttpSessionListener;
+import java.io.IOException;
+import java.security.SecureRandom;
+import java.time.Clock;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static java.util.Collections.unmodifiableCollection;
+
+/**
+ * Registry of live sessions. Sessions expire lazily: when their entry in the
+ * timing wheel comes due the actual expiry time is checked and the session is
+ * either invalidated or rescheduled, so accesses never touch the wheel.
+ * Expiry runs on {@link #expireSessions()}, there is no background thread.
+ */
+public class SessionManager {
+
+  private static final char[] HEX = "0123456789abcdef".toCharArray();
+  private static final ThreadLocal<SecureRandom> RANDOM = ThreadLocal.withInitial(SecureRandom::new);
+
+  protected final ConcurrentHashMap<String, HttpSessionMock> sessions = new ConcurrentHashMap<>();
+  protected final List<HttpSessionListener> listeners = new CopyOnWriteArrayList<>();
+  protected final List<HttpSessionAttributeListener> attributeListeners = new CopyOnWriteArrayList<>();
+  protected boolean concurrentAttributes = false;
+  protected long footprintBudget = -1;
+  protected final TimingWheel<HttpSessionMock> wheel;
+  protected final AtomicLong created = new AtomicLong();
+  protected final AtomicLong expired = new AtomicLong();
+  protected int maxInactiveInterval = 1800;
+  protected SessionPassivator passivator;
+  protected int maxIdleBeforePassivation = -1;
+  protected final Clock clock;
+
+  public SessionManager() {
+    this(1000);
+  }
+
+  public SessionManager(long tickMillis) {
+    this(tickMillis, Clock.systemUTC());
+  }
+
+  /** Creation, access and expiration times are taken from {@code clock}. */
+  public SessionManager(Clock clock) {
+    this(1000, clock);
+  }
+
+  public SessionManager(long tickMillis, Clock clock) {
+    this.clock = clock;
+    wheel = new TimingWheel<>(tickMillis, now());
+  }
+
+  public SessionManager withMaxInactiveInterval(int maxInactiveInterval) {
+    this.maxInactiveInterval = maxInactiveInterval;
+    return this;
+  }
+
+  public SessionManager withPassivation(SessionPassivator passivator, int maxIdleSeconds) {
+    this.passivator = passivator;
+    this.maxIdleBeforePassivation = maxIdleSeconds;
+    return this;
+  }
+
+  public SessionPassivator getPassivator() {
+    return passivator;
+  }
+
+  public SessionManager withListener(HttpSessionListener listener) {
+    listeners.add(listener);
+    return this;
+  }
+
+  public SessionManager withAttributeListener(HttpSessionAttributeListener listener) {
+    attributeListeners.add(listener);
+    return this;
+  }
+
+  /**
+   * Back the attributes of sessions created from now on by a concurrent
+   * store, for servlets touching sessions from several threads.
+   */
+  public SessionManager withConcurrentAttributes(boolean concurrentAttributes) {
+    this.concurrentAttributes = concurrentAttributes;
+    return this;
+  }
+
+  /**
+   * Profile the attribute footprint of sessions created from now on, failing
+   * with an {@link AssertionError} once one retains more than
+   * {@code retainedBytes}.
+   */
+  public SessionManager withFootprintBudget(long retainedBytes) {
+    this.footprintBudget = retainedBytes;
+    return this;
+  }
+
+  protected AttributeStore newAttributeStore() {
+    return concurrentAttributes ? AttributeStore.concurrent() : AttributeStore.singleThreaded();
+  }
+
+  /**
+   * 128 bit from a per-thread {@link SecureRandom}, hex encoded.
+   */
+  public static String generateId() {
+    byte[] bytes = new byte[16];
+    RANDOM.get().nextBytes(bytes);
+    char[] chars = new char[32];
+    for (int i = 0; i < bytes.length; i++) {
+      chars[2 * i] = HEX[(bytes[i] >> 4) & 0xf];
+      chars[2 * i + 1] = HEX[bytes[i] & 0xf];
+    }
+    return new String(chars);
+  }
+
+  public HttpSessionMock createSession() {
+    HttpSessionMock session;
+    do {
+      session = new HttpSessionMock(generateId(), now(), newAttributeStore());
+    } while (sessions.putIfAbsent(session.getId(), session) != null);
+    session.manager = this;
+    session.setNew(true);
+    if (footprintBudget >= 0) {
+      session.withFootprint(new SessionFootprint().withBudget(footprintBudget));
+    }
+    session.setMaxInactiveInterval(maxInactiveInterval);
+    created.incrementAndGet();
+    HttpSessionEvent event = new HttpSessionEvent(session);
+    for (HttpSessionListener listener : listeners) {
+      listener.sessionCreated(event);
+    }
+    return session;
+  }
+
+  /**
+   * Registers a session known under {@code id} elsewhere, e.g. a replica
+   * from another node. Returns the existing session if there is one.
+   */
+  public HttpSessionMock adoptSession(String id, long creationTime) {
+    HttpSessionMock session = new HttpSessionMock(id, creationTime, newAttributeStore());
+    HttpSessionMock existing = sessions.putIfAbsent(id, session);
+    if (existing != null) {
+      return existing;
+    }
+    session.manager = this;
+    session.setMaxInactiveInterval(maxInactiveInterval);
+    return session;
+  }
+
+  public HttpSessionMock getSession(String id) {
+    if (id == null) {
+      return null;
+    }
+    HttpSessionMock session = sessions.get(id);
+    if (session != null && session.getExpiryTime() <= now()) {
+      expire(session);
+      return null;
+    }
+    return session;
+  }
+
+  /**
+   * Looks up the session for a request and updates its last access time.
+   */
+  public HttpSessionMock access(String id) {
+    HttpSessionMock session = getSession(id);
+    if (session != null) {
+      session.access(now());
+      if (passivator != null) {
+        passivator.activate(session);
+      }
+    }
+    return session;
+  }
+
+  public String changeSessionId(HttpSessionMock session) {
+    String oldId = session.getId();
+    String newId;
+    do {
+      newId = generateId();
+    } while (sessions.putIfAbsent(newId, session) != null);
+    synchronized (session) {
+      if (passivator != null) {
+        passivator.rename(oldId, newId);
+      }
+      session.setId(newId);
+    }
+    sessions.remove(oldId, session);
+    return newId;
+  }
+
+  public Collection<HttpSessionMock> getSessions() {
+    return unmodifiableCollection(sessions.values());
+  }
+
+  public int size() {
+    return sessions.size();
+  }
+
+  public long getCreatedCount() {
+    return created.get();
+  }
+
+  public long getExpiredCount() {
+    return expired.get();
+  }
+
+  public int passivateIdleSessions() throws IOException {
+    return passivateIdleSessions(now());
+  }
+
+  /**
+   * @return number of sessions passivated
+   */
+  public int passivateIdleSessions(long now) throws IOException {
+    if (passivator == null) {
+      return 0;
+    }
+    int count = 0;
+    for (HttpSessionMock session : sessions.values()) {
+      if (!session.isPassivated()
+          && session.getLastAccessedTime() + maxIdleBeforePassivation * 1000L <= now
+          && passivator.passivate(session) >= 0) {
+        count++;
+      }
+    }
+    return count;
+  }
+
+  public void expireSessions() {
+    expireSessions(now());
+  }
+
+  public void expireSessions(long now) {
+    wheel.advance(now, (session, deadline) -> {
+      synchronized (session) {
+        if (!session.isValid() || session.scheduledDeadline != deadline) {
+          return;
+        }
+        session.scheduledDeadline = Long.MAX_VALUE;
+        if (session.getExpiryTime() > now) {
+          schedule(session);
+          return;
+        }
+      }
+      expire(session);
+    });
+  }
+
+  void schedule(HttpSessionMock session) {
+    synchronized (session) {
+      long deadline = session.getExpiryTime();
+      if (deadline < session.scheduledDeadline && session.isValid()) {
+        session.scheduledDeadline = deadline;
+        wheel.schedule(session, deadline);
+      }
+    }
+  }
+
+  void destroy(HttpSessionMock session) {
+    if (sessions.remove(session.getId(), session)) {
+      if (passivator != null) {
+        passivator.discard(session);
+      }
+      HttpSessionEvent event = new HttpSessionEvent(session);
+      for (HttpSessionListener listener : listeners) {
+        listener.sessionDestroyed(event);
+      }
+    }
+  }
+
+  protected void expire(HttpSessionMock session) {
+    try {
+      session.invalidate();
+      expired.incrementAndGet();
+    } catch (IllegalStateException e) {
+      // invalidated concurrently
+    }
+  }
+
+  protected long now() {
+    return clock.millis();
+  }
+
+  public Clock getClock() {
+    return clock;
+  }
+}
@@ -0,0 +1,192 @@
+/*
+Copyright 2016 Eric Karge <e.karge@struction.de>
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+  http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+*/
+package org.tinyj.test.servlet;
+
+import org.tinyj.test.servlet.support.ByteArrayBuffer;
+import org.tinyj.test.servlet.support.OffHeapStore;
+
+import javax.servlet.http.HttpSessionActivationListener;
+import javax.servlet.http.HttpSessionEvent;
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static java.util.Collections.unmodifiableMap;
+
+/**
+ * Serializes the attributes of idle sessions into an {@link OffHeapStore} and
+ * restores them on the next access, with or without a {@link SessionManager}.
+ * Sessions holding attributes that are not {@link Serializable} stay in
+ * memory.
+ */
+public class SessionPassivator {
+
+  protected final OffHeapStore store;
+  protected final Map<String, Integer> serializedSizes = new ConcurrentHashMap<>();
+  protected final AtomicLong passivations = new AtomicLong();
+  protected final AtomicLong activations = new AtomicLong();
+  protected final AtomicLong rejected = new AtomicLong();
+  protected final AtomicLong serializationNanos = new AtomicLong();
+  protected final AtomicLong deserializationNanos = new AtomicLong();
+
+  public SessionPassivator(OffHeapStore store) {
+    this.store = store;
+  }
+
+  /**
+   * @return the serialized size in bytes, -1 if the session was kept in memory
+   */
+  public int passivate(HttpSessionMock session) throws IOException {
+    synchronized (session) {
+      if (session.isPassivated() || !session.isValid()) {
+        return -1;
+      }
+      Map<String, Object> attributes = session.attributeMap();
+      for (Object value : attributes.values()) {
+        if (value != null && !(value instanceof Serializable)) {
+          rejected.incrementAndGet();
+          return -1;
+        }
+      }
+      HttpSessionEvent event = new HttpSessionEvent(session);
+      for (Object value : attributes.values()) {
+        if (value instanceof HttpSessionActivationListener) {
+          ((HttpSessionActivationListener) value).sessionWillPassivate(event);
+        }
+      }
+      long start = System.nanoTime();
+      ByteArrayBuffer bytes = new ByteArrayBuffer();
+      try (ObjectOutputStream out = new ObjectOutputStream(bytes)) {
+        out.writeObject(new HashMap<>(attributes));
+      }
+      store.put(session.getId(), bytes.asByteBuffer());
+      serializationNanos.addAndGet(System.nanoTime() - start);
+      attributes.clear();
+      session.setPassivator(this);
+      passivations.incrementAndGet();
+      serializedSizes.put(session.getId(), bytes.size());
+      return bytes.size();
+    }
+  }
+
+  @SuppressWarnings("unchecked")
+  public void activate(HttpSessionMock session) {
+    synchronized (session) {
+      if (!session.isPassivated()) {
+        return;
+      }
+      long start = System.nanoTime();
+      ByteBuffer record = store.get(session.getId());
+      Map<String, Object> restored;
+      try (ObjectInputStream in = new ObjectInputStream(new ByteBufferInputStream(record))) {
+        restored = (Map<String, Object>) in.readObject();
+      } catch (IOException | ClassNotFoundException e) {
+        throw new RuntimeException(e);
+      }
+      store.remove(session.getId());
+      deserializationNanos.addAndGet(System.nanoTime() - start);
+      session.attributeMap().putAll(restored);
+      session.setPassivator(null);
+      activations.incrementAndGet();
+      HttpSessionEvent event = new HttpSessionEvent(session);
+      for (Object value : restored.values()) {
+        if (value instanceof HttpSessionActivationListener) {
+          ((HttpSessionActivationListener) value).sessionDidActivate(event);
+        }
+      }
+    }
+  }
+
+  void discard(HttpSessionMock session) {
+    store.remove(session.getId());
+    serializedSizes.remove(session.getId());
+  }
+
+  void rename(String oldId, String newId) {
+    store.rename(oldId, newId);
+    Integer size = serializedSizes.remove(oldId);
+    if (size != null) {
+      serializedSizes.put(newId, size);
+    }
+  }
+
+  /**
+   * Serialized size of each session at its last passivation.
+   */
+  public Map<String, Integer> getSerializedSizes() {
+    return unmodifiableMap(serializedSizes);
+  }
+
+  public int getSerializedSize(String sessionId) {
+    return serializedSizes.getOrDefault(sessionId, -1);
+  }
+
+  public OffHeapStore getStore() {
+    return store;
+  }
+
+  public long getPassivationCount() {
+    return passivations.get();
+  }
+
+  public long getActivationCount() {
+    return activations.get();
+  }
+
+  public long getRejectedCount() {
+    return rejected.get();
+  }
+
+  public long getSerializationNanos() {
+    return serializationNanos.get();
+  }
+
+  public long getDeserializationNanos() {
+    return deserializationNanos.get();
+  }
+
+  private static class ByteBufferInputStream extends InputStream {
+
+    private final ByteBuffer buffer;
+
+    ByteBufferInputStream(ByteBuffer buffer) {
+      this.buffer = buffer;
+    }
+
+    @Override
+    public int read() {
+      return buffer.hasRemaining() ? buffer.get() & 0xff : -1;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) {
+      if (!buffer.hasRemaining()) {
+        return -1;
+      }
+      int n = Math.min(len, buffer.remaining());
+      buffer.get(b, off, n);
+      return n;
+    }
+
+    @Override
+    public int available() {
+      return buffer.remaining();
+    }
+  }
+}
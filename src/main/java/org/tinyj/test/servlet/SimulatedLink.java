@@ -0,0 +1,255 @@
+/*
+Copyright 2016 Eric Karge <e.karge@struction.de>
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+  http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+*/
+package org.tinyj.test.servlet;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.WritableByteChannel;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Blocking channel sink that models the connection to a client: a send
+ * buffer, TCP-like slow start per round trip, link bandwidth and one-way
+ * latency. Time is virtual; a write that would block on a full send buffer
+ * advances the link's clock instead of sleeping and the wait is accounted as
+ * blocked time. Use it as the response's output:
+ * <pre>
+ * SimulatedLink link = SimulatedLink.slow3G();
+ * servlet.service(request, new HttpServletResponseMock(link));
+ * link.getDownloadNanos();
+ * </pre>
+ * Acknowledgements are modelled per round: everything sent in a round is
+ * acknowledged one round trip after the round started (or once it has been
+ * serialized onto the link, if that takes longer). Slow start is not restarted
+ * after idle periods and there is no loss.
+ */
+public class SimulatedLink implements WritableByteChannel {
+
+  public static final int MSS = 1460;
+
+  private long bandwidth = 1_250_000;
+  private long roundTrip = TimeUnit.MILLISECONDS.toNanos(50);
+  private long sendBuffer = 64 << 10;
+  private long cwnd = 10 * MSS;
+  private boolean slowStart = true;
+  private boolean open = true;
+
+  private long now = 0;
+  private long buffered = 0;
+  private long inFlight = 0;
+  private long roundStart = -1;
+  private long roundEnd = -1;
+  private long roundSent = 0;
+  private long transmitEnd = 0;
+
+  private long writes = 0;
+  private long bytesWritten = 0;
+  private long blockedWrites = 0;
+  private long blockedNanos = 0;
+  private long rounds = 0;
+  private long firstByte = -1;
+  private long lastByte = -1;
+
+  /** 50 kB/s (400 kbit/s), 400 ms round trip. */
+  public static SimulatedLink slow3G() {
+    return new SimulatedLink().withBandwidth(50_000).withRoundTrip(400, TimeUnit.MILLISECONDS);
+  }
+
+  /** 200 kB/s (1.6 Mbit/s), 150 ms round trip. */
+  public static SimulatedLink fast3G() {
+    return new SimulatedLink().withBandwidth(200_000).withRoundTrip(150, TimeUnit.MILLISECONDS);
+  }
+
+  /** 1.5 MB/s (12 Mbit/s), 70 ms round trip. */
+  public static SimulatedLink lte() {
+    return new SimulatedLink().withBandwidth(1_500_000).withRoundTrip(70, TimeUnit.MILLISECONDS);
+  }
+
+  public SimulatedLink withBandwidth(long bytesPerSecond) {
+    if (bytesPerSecond <= 0) {
+      throw new IllegalArgumentException("bandwidth must be positive");
+    }
+    this.bandwidth = bytesPerSecond;
+    return this;
+  }
+
+  public SimulatedLink withRoundTrip(long roundTrip, TimeUnit unit) {
+    this.roundTrip = unit.toNanos(roundTrip);
+    return this;
+  }
+
+  public SimulatedLink withSendBuffer(int bytes) {
+    if (bytes <= 0) {
+      throw new IllegalArgumentException("send buffer must be positive");
+    }
+    this.sendBuffer = bytes;
+    return this;
+  }
+
+  public SimulatedLink withInitialWindow(int bytes) {
+    if (bytes <= 0) {
+      throw new IllegalArgumentException("initial window must be positive");
+    }
+    this.cwnd = bytes;
+    return this;
+  }
+
+  /** Send at full bandwidth from the first round. */
+  public SimulatedLink withoutSlowStart() {
+    this.slowStart = false;
+    this.cwnd = Long.MAX_VALUE / 2;
+    return this;
+  }
+
+  @Override
+  public int write(ByteBuffer src) throws IOException {
+    if (!open) {
+      throw new ClosedChannelException();
+    }
+    int written = 0;
+    boolean blocked = false;
+    while (src.hasRemaining()) {
+      long space = sendBuffer - buffered - inFlight;
+      if (space <= 0) {
+        long before = now;
+        runUntil(roundEnd);
+        blockedNanos += now - before;
+        blocked = true;
+        continue;
+      }
+      int n = (int) Math.min(space, src.remaining());
+      src.position(src.position() + n);
+      buffered += n;
+      written += n;
+      pump();
+    }
+    writes++;
+    bytesWritten += written;
+    if (blocked) {
+      blockedWrites++;
+    }
+    return written;
+  }
+
+  /** Lets virtual time pass, e.g. while the servlet computes the next chunk. */
+  public void advance(long time, TimeUnit unit) {
+    runUntil(now + unit.toNanos(time));
+  }
+
+  @Override
+  public boolean isOpen() {
+    return open;
+  }
+
+  /** Drains the send buffer; the clock ends at the last acknowledgement. */
+  @Override
+  public void close() {
+    runUntil(Long.MAX_VALUE);
+    open = false;
+  }
+
+  private void pump() {
+    if (buffered == 0) {
+      return;
+    }
+    if (roundEnd < 0) {
+      roundStart = now;
+      roundSent = 0;
+      rounds++;
+    }
+    long n = Math.min(buffered, cwnd - roundSent);
+    if (n <= 0) {
+      return;
+    }
+    long start = Math.max(now, transmitEnd);
+    transmitEnd = start + transmitNanos(n);
+    if (firstByte < 0) {
+      firstByte = start + transmitNanos(1) + roundTrip / 2;
+    }
+    lastByte = transmitEnd + roundTrip / 2;
+    roundSent += n;
+    buffered -= n;
+    inFlight += n;
+    roundEnd = Math.max(roundStart + roundTrip, transmitEnd);
+  }
+
+  private void runUntil(long target) {
+    while (roundEnd >= 0 && roundEnd <= target) {
+      now = roundEnd;
+      inFlight = 0;
+      if (slowStart) {
+        cwnd = Math.min(cwnd + roundSent, Long.MAX_VALUE / 2);
+      }
+      roundEnd = -1;
+      pump();
+    }
+    if (target != Long.MAX_VALUE && target > now) {
+      now = target;
+    }
+  }
+
+  private long transmitNanos(long bytes) {
+    return (long) (bytes * 1e9 / bandwidth);
+  }
+
+  /** Current virtual time, nanoseconds since the link was created. */
+  public long getNanos() {
+    return now;
+  }
+
+  /** Virtual time the writing thread spent blocked on a full send buffer. */
+  public long getBlockedNanos() {
+    return blockedNanos;
+  }
+
+  public long getBlockedWriteCount() {
+    return blockedWrites;
+  }
+
+  public long getWriteCount() {
+    return writes;
+  }
+
+  public long getBytesWritten() {
+    return bytesWritten;
+  }
+
+  public long getRoundCount() {
+    return rounds;
+  }
+
+  public long getCongestionWindow() {
+    return cwnd;
+  }
+
+  /** Arrival of the first byte at the client, -1 if nothing was sent. */
+  public long getFirstByteNanos() {
+    return firstByte;
+  }
+
+  /** Arrival of the last byte sent so far at the client, -1 if nothing was sent. */
+  public long getDownloadNanos() {
+    return lastByte;
+  }
+
+  @Override
+  public String toString() {
+    return "link " + bandwidth + " B/s, rtt " + roundTrip / 1_000_000 + " ms: " + bytesWritten + " bytes in "
+           + writes + " writes, " + rounds + " rounds, first byte " + firstByte / 1_000_000 + " ms, last byte "
+           + lastByte / 1_000_000 + " ms, blocked " + blockedNanos / 1_000_000 + " ms";
+  }
+}
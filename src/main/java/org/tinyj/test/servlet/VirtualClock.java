@@ -0,0 +1,96 @@
+/*
+Copyright 2016 Eric Karge <e.karge@struction.de>
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+  http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+*/
+package org.tinyj.test.servlet;
+
+import java.time.Clock;
+import java.time.Duration;
+import java.time.Instant;
+import java.time.ZoneId;
+import java.time.ZoneOffset;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Clock that only moves when told to. Hand it to {@link SessionManager},
+ * {@link HttpSessionMock}, {@link HttpServletRequestMock} and
+ * {@code CookieFormatter.parseCookie} and let time pass with
+ * {@link #advance(Duration)} instead of sleeping. Starts at the epoch unless
+ * given a start instant.
+ */
+public class VirtualClock extends Clock {
+
+  private final AtomicLong nanos;
+  private final ZoneId zone;
+
+  public VirtualClock() {
+    this(Instant.EPOCH);
+  }
+
+  public VirtualClock(Instant start) {
+    this(new AtomicLong(toNanos(start)), ZoneOffset.UTC);
+  }
+
+  private VirtualClock(AtomicLong nanos, ZoneId zone) {
+    this.nanos = nanos;
+    this.zone = zone;
+  }
+
+  public VirtualClock advance(Duration duration) {
+    nanos.addAndGet(duration.toNanos());
+    return this;
+  }
+
+  public VirtualClock advance(long amount, TimeUnit unit) {
+    nanos.addAndGet(unit.toNanos(amount));
+    return this;
+  }
+
+  public VirtualClock set(Instant instant) {
+    nanos.set(toNanos(instant));
+    return this;
+  }
+
+  @Override
+  public ZoneId getZone() {
+    return zone;
+  }
+
+  /** A view in another zone that shares this clock's time. */
+  @Override
+  public VirtualClock withZone(ZoneId zone) {
+    return new VirtualClock(nanos, zone);
+  }
+
+  @Override
+  public long millis() {
+    return Math.floorDiv(nanos.get(), 1_000_000);
+  }
+
+  @Override
+  public Instant instant() {
+    long now = nanos.get();
+    return Instant.ofEpochSecond(Math.floorDiv(now, 1_000_000_000), Math.floorMod(now, 1_000_000_000));
+  }
+
+  private static long toNanos(Instant instant) {
+    return Math.addExact(Math.multiplyExact(instant.getEpochSecond(), 1_000_000_000), instant.getNano());
+  }
+
+  @Override
+  public String toString() {
+    return "VirtualClock[" + instant() + "," + zone + "]";
+  }
+}
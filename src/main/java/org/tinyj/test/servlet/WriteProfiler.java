@@ -0,0 +1,236 @@
+/*
+Copyright 2016 Eric Karge <e.karge@struction.de>
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+  http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+*/
+package org.tinyj.test.servlet;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Profiles how a servlet writes its response: write sizes on the output
+ * stream and on the writer (in power-of-two buckets), write and flush counts,
+ * and flags patterns that turn into a syscall per byte or per line on a real
+ * connector.
+ * <pre>
+ * WriteProfiler profiler = new WriteProfiler();
+ * servlet.service(request, response.withListener(profiler));
+ * profiler.verify();
+ * </pre>
+ */
+public class WriteProfiler implements ResponseListener {
+
+  protected final long[] writeSizes = new long[32];
+  protected final long[] writerWriteSizes = new long[32];
+  protected long writes;
+  protected long bytes;
+  protected long singleByteWrites;
+  protected long writerWrites;
+  protected long chars;
+  protected long singleCharWrites;
+  protected long flushes;
+  protected long emptyFlushes;
+  protected long lineFlushes;
+  protected boolean closed;
+
+  protected long pendingBytes;
+  protected long pendingLines;
+  protected int lastByte = -1;
+
+  protected int perByteThreshold = 16;
+  protected int flushThreshold = 4;
+
+  /** Minimum number of single byte/char writes before they are flagged. */
+  public WriteProfiler withPerByteThreshold(int writes) {
+    this.perByteThreshold = writes;
+    return this;
+  }
+
+  /** Minimum number of flushes before flush patterns are flagged. */
+  public WriteProfiler withFlushThreshold(int flushes) {
+    this.flushThreshold = flushes;
+    return this;
+  }
+
+  @Override
+  public void onWrite(int b) {
+    record(1);
+    pending(b);
+  }
+
+  @Override
+  public void onWrite(byte[] b, int off, int len) {
+    if (len <= 0) {
+      return;
+    }
+    record(len);
+    for (int i = off; i < off + len; i++) {
+      pending(b[i]);
+    }
+  }
+
+  @Override
+  public void onWriterWrite(CharSequence cs) {
+    int len = cs.length();
+    if (len == 0) {
+      return;
+    }
+    writerWrites++;
+    chars += len;
+    writerWriteSizes[bucket(len)]++;
+    if (len == 1 && cs.charAt(0) != '\n' && cs.charAt(0) != '\r') {
+      singleCharWrites++;
+    }
+  }
+
+  @Override
+  public void onFlush() {
+    flushes++;
+    if (pendingBytes == 0) {
+      emptyFlushes++;
+    } else if (pendingLines == 1 && lastByte == '\n') {
+      lineFlushes++;
+    }
+    pendingBytes = 0;
+    pendingLines = 0;
+  }
+
+  /** The writes still count, but what they left pending is gone. */
+  @Override
+  public void onReset() {
+    pendingBytes = 0;
+    pendingLines = 0;
+    lastByte = -1;
+  }
+
+  @Override
+  public void onClose() {
+    closed = true;
+  }
+
+  private void record(int len) {
+    writes++;
+    bytes += len;
+    writeSizes[bucket(len)]++;
+    if (len == 1) {
+      singleByteWrites++;
+    }
+  }
+
+  private void pending(int b) {
+    pendingBytes++;
+    lastByte = b & 0xff;
+    if (lastByte == '\n') {
+      pendingLines++;
+    }
+  }
+
+  static int bucket(int len) {
+    return 31 - Integer.numberOfLeadingZeros(len);
+  }
+
+  public List<String> getFindings() {
+    List<String> findings = new ArrayList<>();
+    if (writerWrites == 0 && singleByteWrites >= perByteThreshold && 2 * singleByteWrites >= writes) {
+      findings.add(singleByteWrites + " of " + writes + " output stream writes are single bytes");
+    }
+    if (singleCharWrites >= perByteThreshold && 2 * singleCharWrites >= writerWrites) {
+      findings.add(singleCharWrites + " of " + writerWrites + " writer writes are single characters");
+    }
+    if (flushes >= flushThreshold && 10 * lineFlushes >= 8 * flushes) {
+      findings.add(lineFlushes + " of " + flushes + " flushes send a single line");
+    }
+    if (emptyFlushes >= flushThreshold) {
+      findings.add(emptyFlushes + " of " + flushes + " flushes have nothing to send");
+    }
+    return findings;
+  }
+
+  /**
+   * @throws AssertionError if any write pattern was flagged
+   */
+  public void verify() {
+    List<String> findings = getFindings();
+    if (!findings.isEmpty()) {
+      throw new AssertionError("inefficient response writes: " + String.join("; ", findings) + "; " + this);
+    }
+  }
+
+  /** Output stream write counts by size, bucket {@code i} holds sizes {@code [2^i, 2^(i+1))}. */
+  public long[] getWriteSizeHistogram() {
+    return writeSizes.clone();
+  }
+
+  /** Writer write counts by length in characters, bucketed like {@link #getWriteSizeHistogram()}. */
+  public long[] getWriterWriteSizeHistogram() {
+    return writerWriteSizes.clone();
+  }
+
+  public long getWriteCount() {
+    return writes;
+  }
+
+  public long getByteCount() {
+    return bytes;
+  }
+
+  public long getWriterWriteCount() {
+    return writerWrites;
+  }
+
+  public long getCharCount() {
+    return chars;
+  }
+
+  public long getFlushCount() {
+    return flushes;
+  }
+
+  public long getEmptyFlushCount() {
+    return emptyFlushes;
+  }
+
+  public long getLineFlushCount() {
+    return lineFlushes;
+  }
+
+  public boolean isClosed() {
+    return closed;
+  }
+
+  @Override
+  public String toString() {
+    return "writes=" + writes + " " + histogram(writeSizes) + ", bytes=" + bytes
+           + ", writer writes=" + writerWrites + " " + histogram(writerWriteSizes) + ", chars=" + chars
+           + ", flushes=" + flushes + " (empty=" + emptyFlushes + ", single line=" + lineFlushes + ")";
+  }
+
+  static String histogram(long[] buckets) {
+    StringBuilder out = new StringBuilder("[");
+    for (int i = 0; i < buckets.length; i++) {
+      if (buckets[i] != 0) {
+        if (out.length() > 1) {
+          out.append(' ');
+        }
+        long low = 1L << i;
+        out.append(low);
+        if (i > 0) {
+          out.append('-').append(2 * low - 1);
+        }
+        out.append(':').append(buckets[i]);
+      }
+    }
+    return out.append(']').toString();
+  }
+}
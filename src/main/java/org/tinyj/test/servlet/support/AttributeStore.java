@@ -0,0 +1,96 @@
+/*
+Copyright 2016 Eric Karge <e.karge@struction.de>
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+  http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+*/
+package org.tinyj.test.servlet.support;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Attribute storage shared by the request and session mocks. The single
+ * threaded variant is a plain {@link HashMap}, the concurrent one a
+ * {@link ConcurrentHashMap} for servlets touching attributes from several
+ * threads (async processing).
+ */
+public class AttributeStore {
+
+  protected final Map<String, Object> map;
+
+  public AttributeStore(Map<String, Object> map) {
+    this.map = map;
+  }
+
+  public static AttributeStore singleThreaded() {
+    return new AttributeStore(new HashMap<>());
+  }
+
+  public static AttributeStore concurrent() {
+    return new AttributeStore(new ConcurrentHashMap<>());
+  }
+
+  public AttributeStore toConcurrent() {
+    if (isConcurrent()) {
+      return this;
+    }
+    AttributeStore concurrent = concurrent();
+    map.forEach((name, value) -> {
+      if (value != null) {
+        concurrent.map.put(name, value);
+      }
+    });
+    return concurrent;
+  }
+
+  public boolean isConcurrent() {
+    return map instanceof ConcurrentMap;
+  }
+
+  public Object get(String name) {
+    return map.get(name);
+  }
+
+  /**
+   * @return the replaced value, {@code null} if there was none
+   */
+  public Object put(String name, Object value) {
+    if (value == null) {
+      return remove(name);
+    }
+    return map.put(name, value);
+  }
+
+  public Object remove(String name) {
+    return map.remove(name);
+  }
+
+  public Set<String> names() {
+    return map.keySet();
+  }
+
+  public int size() {
+    return map.size();
+  }
+
+  public void clear() {
+    map.clear();
+  }
+
+  public Map<String, Object> asMap() {
+    return map;
+  }
+}
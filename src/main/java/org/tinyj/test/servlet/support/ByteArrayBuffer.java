@@ -0,0 +1,43 @@
+/*
+Copyright 2016 Eric Karge <e.karge@struction.de>
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+  http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+*/
+package org.tinyj.test.servlet.support;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+
+public class ByteArrayBuffer extends ByteArrayOutputStream {
+
+  public ByteArrayBuffer() {
+  }
+
+  public ByteArrayBuffer(int size) {
+    super(size);
+  }
+
+  /**
+   * View on the current content without copying. Only valid until the next
+   * write or reset.
+   */
+  public synchronized ByteBuffer asByteBuffer() {
+    return ByteBuffer.wrap(buf, 0, count);
+  }
+
+  public synchronized InputStream toInputStream() {
+    return new ByteArrayInputStream(buf, 0, count);
+  }
+}
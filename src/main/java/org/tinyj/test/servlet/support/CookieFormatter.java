@@ -16,15 +16,35 @@ limitations under the License.
 package org.tinyj.test.servlet.support;
 
 import javax.servlet.http.Cookie;
+import java.time.Clock;
 import java.time.Duration;
 import java.time.Instant;
 import java.time.format.DateTimeFormatter;
+import java.util.ArrayList;
+import java.util.List;
 
 import static java.lang.Integer.parseInt;
 
 public class CookieFormatter {
 
+  /** Parses the {@code name=value} pairs of a request's {@code Cookie} header. */
+  public static List<Cookie> parseCookieHeader(String header) {
+    List<Cookie> cookies = new ArrayList<>();
+    for (String pair : header.split(";")) {
+      String[] nameValue = pair.trim().split(" *= *", 2);
+      if (nameValue.length == 2 && !nameValue[0].isEmpty() && !nameValue[0].startsWith("$")) {
+        cookies.add(new Cookie(nameValue[0], nameValue[1]));
+      }
+    }
+    return cookies;
+  }
+
   public static Cookie parseCookie(String string) {
+    return parseCookie(string, Clock.systemUTC());
+  }
+
+  /** Parses a cookie, computing Max-Age from {@code Expires} relative to {@code clock}. */
+  public static Cookie parseCookie(String string, Clock clock) {
     String[] records = string.split("; *");
     String[] nameValue = records[0].split(" *= *", 2);
     Cookie cookie = new Cookie(nameValue[0], nameValue[1]);
@@ -53,7 +73,7 @@ public class CookieFormatter {
           cookie.setMaxAge(parseInt(tagValue[1]));
           break;
         case "Expires":
-          cookie.setMaxAge((int) Duration.between(Instant.now(), Instant.from(DateTimeFormatter.RFC_1123_DATE_TIME.parse(tagValue[1]))).getSeconds());
+          cookie.setMaxAge((int) Duration.between(clock.instant(), Instant.from(DateTimeFormatter.RFC_1123_DATE_TIME.parse(tagValue[1]))).getSeconds());
           break;
         case "Discard":
           cookie.setMaxAge(-1);
@@ -0,0 +1,190 @@
+/*
+Copyright 2016 Eric Karge <e.karge@struction.de>
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+  http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+*/
+package org.tinyj.test.servlet.support;
+
+import java.io.IOException;
+import java.io.ObjectOutputStream;
+import java.io.OutputStream;
+import java.io.Serializable;
+import java.lang.reflect.Array;
+import java.lang.reflect.Field;
+import java.lang.reflect.Modifier;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Estimates the retained heap size of an object graph by walking it, assuming
+ * a 64 bit JVM with compressed oops (12 byte headers, 4 byte references, 8
+ * byte alignment). Objects reachable more than once are counted once. JDK
+ * internals that cannot be reflected on are sized through their public API:
+ * Strings by length, collections and maps by their elements plus a per entry
+ * overhead.
+ */
+public class ObjectSizeEstimator {
+
+  private static final int HEADER = 12;
+  private static final int ARRAY_HEADER = 16;
+  private static final int REFERENCE = 4;
+  private static final int COLLECTION_ENTRY = 16;
+  private static final int MAP_ENTRY = 32;
+
+  private static final Map<Class<?>, Layout> layouts = new ConcurrentHashMap<>();
+
+  public static long estimate(Object root) {
+    if (root == null) {
+      return 0;
+    }
+    Set<Object> seen = Collections.newSetFromMap(new IdentityHashMap<>());
+    Deque<Object> pending = new ArrayDeque<>();
+    pending.push(root);
+    long size = 0;
+    while (!pending.isEmpty()) {
+      Object object = pending.pop();
+      if (object == null || !seen.add(object)) {
+        continue;
+      }
+      size += shallow(object, pending);
+    }
+    return size;
+  }
+
+  /**
+   * Size of the Java serialization of {@code value}, -1 if it is not
+   * serializable.
+   */
+  public static long serializedSize(Object value) {
+    if (value != null && !(value instanceof Serializable)) {
+      return -1;
+    }
+    CountingStream counter = new CountingStream();
+    try (ObjectOutputStream out = new ObjectOutputStream(counter)) {
+      out.writeObject(value);
+    } catch (IOException e) {
+      return -1;
+    }
+    return counter.count;
+  }
+
+  private static long shallow(Object object, Deque<Object> pending) {
+    Class<?> type = object.getClass();
+    if (type.isArray()) {
+      int length = Array.getLength(object);
+      Class<?> component = type.getComponentType();
+      if (!component.isPrimitive()) {
+        for (Object element : (Object[]) object) {
+          pending.push(element);
+        }
+      }
+      return align(ARRAY_HEADER + (long) length * sizeOf(component));
+    }
+    if (object instanceof String) {
+      return align(HEADER + 12) + align(ARRAY_HEADER + 2L * ((String) object).length());
+    }
+    if (type.getName().startsWith("java.")) {
+      if (object instanceof Map) {
+        Map<?, ?> map = (Map<?, ?>) object;
+        for (Map.Entry<?, ?> entry : map.entrySet()) {
+          pending.push(entry.getKey());
+          pending.push(entry.getValue());
+        }
+        return align(HEADER + 32) + align(ARRAY_HEADER + (long) REFERENCE * map.size()) + (long) MAP_ENTRY * map.size();
+      }
+      if (object instanceof Collection) {
+        Collection<?> collection = (Collection<?>) object;
+        for (Object element : collection) {
+          pending.push(element);
+        }
+        return align(HEADER + 16) + (long) COLLECTION_ENTRY * collection.size();
+      }
+    }
+    Layout layout = layouts.computeIfAbsent(type, Layout::new);
+    for (Field field : layout.references) {
+      try {
+        pending.push(field.get(object));
+      } catch (IllegalAccessException e) {
+        // not reachable, counted as shallow
+      }
+    }
+    return layout.size;
+  }
+
+  private static int sizeOf(Class<?> type) {
+    if (type == long.class || type == double.class) {
+      return 8;
+    }
+    if (type == int.class || type == float.class) {
+      return 4;
+    }
+    if (type == short.class || type == char.class) {
+      return 2;
+    }
+    if (type == byte.class || type == boolean.class) {
+      return 1;
+    }
+    return REFERENCE;
+  }
+
+  private static long align(long size) {
+    return (size + 7) & ~7L;
+  }
+
+  private static class Layout {
+
+    final long size;
+    final List<Field> references = new ArrayList<>();
+
+    Layout(Class<?> type) {
+      long size = HEADER;
+      for (Class<?> c = type; c != null; c = c.getSuperclass()) {
+        for (Field field : c.getDeclaredFields()) {
+          if (Modifier.isStatic(field.getModifiers())) {
+            continue;
+          }
+          size += sizeOf(field.getType());
+          if (!field.getType().isPrimitive() && accessible(field)) {
+            references.add(field);
+          }
+        }
+      }
+      this.size = align(size);
+    }
+
+    private static boolean accessible(Field field) {
+      try {
+        field.setAccessible(true);
+        return true;
+      } catch (RuntimeException e) {
+        // module boundaries on newer JDKs
+        return false;
+      }
+    }
+  }
+
+  private static class CountingStream extends OutputStream {
+
+    long count = 0;
+
+    @Override
+    public void write(int b) {
+      count++;
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) {
+      count += len;
+    }
+  }
+}
@@ -0,0 +1,219 @@
+/*
+Copyright 2016 Eric Karge <e.karge@struction.de>
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+  http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+*/
+package org.tinyj.test.servlet.support;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import static java.nio.channels.FileChannel.MapMode.READ_WRITE;
+import static java.nio.file.StandardOpenOption.*;
+
+/**
+ * Append-only record store outside of the Java heap, either in direct buffers
+ * or in a memory mapped file. Removed records leave garbage behind that is
+ * compacted away once it makes up half of the used space.
+ */
+public abstract class OffHeapStore {
+
+  private static final int COMPACT_CHUNK = 8192;
+
+  protected final Map<String, long[]> index = new HashMap<>();
+  protected ByteBuffer region;
+  protected int used = 0;
+  protected long garbage = 0;
+  protected long payload = 0;
+
+  public static OffHeapStore direct(int initialCapacity) {
+    return new Direct(initialCapacity);
+  }
+
+  public static OffHeapStore mapped(Path file, int initialCapacity) throws IOException {
+    return new Mapped(file, initialCapacity);
+  }
+
+  public static OffHeapStore mapped(int initialCapacity) throws IOException {
+    Path file = Files.createTempFile("tinyj-sessions-", ".bin");
+    file.toFile().deleteOnExit();
+    return new Mapped(file, initialCapacity);
+  }
+
+  public synchronized void put(String key, ByteBuffer data) throws IOException {
+    remove(key);
+    int length = data.remaining();
+    ensureCapacity(length);
+    ByteBuffer target = region.duplicate();
+    target.position(used);
+    target.put(data.duplicate());
+    index.put(key, new long[]{used, length});
+    used += length;
+    payload += length;
+  }
+
+  /**
+   * Copy of the record. Records move when the store is compacted, so a view
+   * into the store would not stay valid past the next {@link #put}.
+   */
+  public synchronized ByteBuffer get(String key) {
+    long[] entry = index.get(key);
+    if (entry == null) {
+      return null;
+    }
+    ByteBuffer record = region.duplicate();
+    record.position((int) entry[0]).limit((int) (entry[0] + entry[1]));
+    ByteBuffer copy = ByteBuffer.allocate((int) entry[1]);
+    copy.put(record).flip();
+    return copy;
+  }
+
+  /**
+   * Moves a record to a new key without copying it.
+   *
+   * @return false if there is no record for {@code oldKey}
+   */
+  public synchronized boolean rename(String oldKey, String newKey) {
+    long[] entry = index.remove(oldKey);
+    if (entry == null) {
+      return false;
+    }
+    remove(newKey);
+    index.put(newKey, entry);
+    return true;
+  }
+
+  public synchronized boolean remove(String key) {
+    long[] entry = index.remove(key);
+    if (entry == null) {
+      return false;
+    }
+    garbage += entry[1];
+    payload -= entry[1];
+    return true;
+  }
+
+  public synchronized int count() {
+    return index.size();
+  }
+
+  /**
+   * Bytes held by live records.
+   */
+  public synchronized long size() {
+    return payload;
+  }
+
+  public synchronized long capacity() {
+    return region.capacity();
+  }
+
+  protected void ensureCapacity(int length) throws IOException {
+    if (used + (long) length <= region.capacity()) {
+      return;
+    }
+    if (garbage * 2 >= used) {
+      compact();
+      if (used + (long) length <= region.capacity()) {
+        return;
+      }
+    }
+    long capacity = Math.max(region.capacity(), 64);
+    while (capacity < used + (long) length) {
+      capacity *= 2;
+    }
+    if (capacity > Integer.MAX_VALUE) {
+      throw new IOException("store exceeds 2 GiB");
+    }
+    region = grow(region, (int) capacity);
+  }
+
+  /**
+   * Slides live records down over the garbage, in place. Records are visited
+   * in offset order so a record only ever moves to lower offsets and the
+   * chunked forward copy never overwrites bytes it still has to read.
+   */
+  protected void compact() {
+    List<long[]> entries = new ArrayList<>(index.values());
+    entries.sort(Comparator.comparingLong(entry -> entry[0]));
+    byte[] chunk = new byte[(int) Math.min(COMPACT_CHUNK, Math.max(payload, 1))];
+    ByteBuffer source = region.duplicate();
+    ByteBuffer target = region.duplicate();
+    int position = 0;
+    for (long[] entry : entries) {
+      if (entry[0] != position) {
+        source.limit((int) (entry[0] + entry[1])).position((int) entry[0]);
+        target.limit(region.capacity()).position(position);
+        while (source.hasRemaining()) {
+          int length = Math.min(chunk.length, source.remaining());
+          source.get(chunk, 0, length);
+          target.put(chunk, 0, length);
+        }
+        entry[0] = position;
+      }
+      position += entry[1];
+    }
+    used = position;
+    garbage = 0;
+  }
+
+  protected abstract ByteBuffer grow(ByteBuffer region, int capacity) throws IOException;
+
+  public void close() throws IOException {
+  }
+
+  static class Direct extends OffHeapStore {
+
+    Direct(int initialCapacity) {
+      region = ByteBuffer.allocateDirect(initialCapacity);
+    }
+
+    @Override
+    protected ByteBuffer grow(ByteBuffer region, int capacity) {
+      ByteBuffer grown = ByteBuffer.allocateDirect(capacity);
+      ByteBuffer source = region.duplicate();
+      source.clear().limit(used);
+      grown.put(source);
+      grown.clear();
+      return grown;
+    }
+  }
+
+  static class Mapped extends OffHeapStore {
+
+    private final FileChannel channel;
+
+    Mapped(Path file, int initialCapacity) throws IOException {
+      channel = FileChannel.open(file, CREATE, READ, WRITE, TRUNCATE_EXISTING);
+      region = channel.map(READ_WRITE, 0, initialCapacity);
+    }
+
+    @Override
+    protected ByteBuffer grow(ByteBuffer region, int capacity) throws IOException {
+      return channel.map(READ_WRITE, 0, capacity);
+    }
+
+    @Override
+    public void close() throws IOException {
+      channel.close();
+    }
+  }
+}
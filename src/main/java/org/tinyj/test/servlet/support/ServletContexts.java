@@ -0,0 +1,66 @@
+/*
+Copyright 2016 Eric Karge <e.karge@struction.de>
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+  http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+*/
+package org.tinyj.test.servlet.support;
+
+import javax.servlet.ServletContext;
+import java.lang.reflect.Proxy;
+
+import static java.util.Collections.emptyEnumeration;
+
+public class ServletContexts {
+
+  private static final ServletContext DETACHED = (ServletContext) Proxy.newProxyInstance(
+      ServletContext.class.getClassLoader(),
+      new Class<?>[]{ServletContext.class},
+      (proxy, method, args) -> {
+        switch (method.getName()) {
+          case "toString":
+            return "detached ServletContext";
+          case "hashCode":
+            return System.identityHashCode(proxy);
+          case "equals":
+            return proxy == args[0];
+          case "getContextPath":
+            return "";
+          case "getMajorVersion":
+          case "getEffectiveMajorVersion":
+            return 3;
+          case "getMinorVersion":
+          case "getEffectiveMinorVersion":
+            return 1;
+          default:
+        }
+        Class<?> type = method.getReturnType();
+        if (type == boolean.class) {
+          return false;
+        }
+        if (type == int.class) {
+          return 0;
+        }
+        if (type == java.util.Enumeration.class) {
+          return emptyEnumeration();
+        }
+        return null;
+      });
+
+  /**
+   * Placeholder for APIs (events, configs) that require a context where the
+   * mocks have none. All lookups come back empty.
+   */
+  public static ServletContext detached() {
+    return DETACHED;
+  }
+}
@@ -0,0 +1,219 @@
+/*
+Copyright 2016 Eric Karge <e.karge@struction.de>
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+  http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+*/
+package org.tinyj.test.servlet.support;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+import static java.nio.channels.FileChannel.MapMode.READ_ONLY;
+import static java.nio.file.StandardOpenOption.READ;
+import static java.nio.file.StandardOpenOption.WRITE;
+
+/**
+ * Records everything written in memory up to {@code threshold} bytes. Beyond
+ * that the whole recording is moved to a temporary file, the first
+ * {@code threshold} bytes stay available from memory.
+ */
+public class SpillingRecorder extends OutputStream {
+
+  public static final int DEFAULT_THRESHOLD = 8 << 20;
+
+  protected final int threshold;
+  protected final ByteArrayBuffer head = new ByteArrayBuffer();
+  protected Path file;
+  protected FileChannel channel;
+  protected long size = 0;
+
+  public SpillingRecorder() {
+    this(DEFAULT_THRESHOLD);
+  }
+
+  public SpillingRecorder(int threshold) {
+    this.threshold = threshold;
+  }
+
+  @Override
+  public void write(int b) throws IOException {
+    write(new byte[]{(byte) b}, 0, 1);
+  }
+
+  @Override
+  public synchronized void write(byte[] b, int off, int len) throws IOException {
+    if (channel == null) {
+      int fill = Math.min(len, threshold - head.size());
+      head.write(b, off, fill);
+      size += fill;
+      if (fill == len) {
+        return;
+      }
+      spill();
+      off += fill;
+      len -= fill;
+    }
+    ByteBuffer src = ByteBuffer.wrap(b, off, len);
+    while (src.hasRemaining()) {
+      channel.write(src, size + src.position() - off);
+    }
+    size += len;
+  }
+
+  protected void spill() throws IOException {
+    file = Files.createTempFile("tinyj-body-", ".bin");
+    file.toFile().deleteOnExit();
+    channel = FileChannel.open(file, READ, WRITE);
+    ByteBuffer src = head.asByteBuffer();
+    while (src.hasRemaining()) {
+      channel.write(src, src.position());
+    }
+  }
+
+  public int getThreshold() {
+    return threshold;
+  }
+
+  public synchronized long size() {
+    return size;
+  }
+
+  public synchronized boolean isSpilled() {
+    return channel != null;
+  }
+
+  public synchronized Path getFile() {
+    return file;
+  }
+
+  /** The first {@code threshold} bytes, or everything if the recording wasn't spilled. */
+  public synchronized ByteBuffer getHead() {
+    return head.asByteBuffer().asReadOnlyBuffer();
+  }
+
+  public synchronized byte[] toByteArray() throws IOException {
+    if (channel == null) {
+      return head.toByteArray();
+    }
+    if (size > Integer.MAX_VALUE - 8) {
+      throw new IllegalStateException("recording too large for an array: " + size + " bytes");
+    }
+    byte[] bytes = new byte[(int) size];
+    ByteBuffer dst = ByteBuffer.wrap(bytes);
+    while (dst.hasRemaining()) {
+      if (channel.read(dst, dst.position()) < 0) {
+        break;
+      }
+    }
+    return bytes;
+  }
+
+  public synchronized InputStream toInputStream() throws IOException {
+    if (channel == null) {
+      return head.toInputStream();
+    }
+    return new ChannelInputStream(channel, size);
+  }
+
+  /**
+   * Read only view on the recording, memory mapped once it was spilled.
+   */
+  public synchronized ByteBuffer toByteBuffer() throws IOException {
+    if (channel == null) {
+      return getHead();
+    }
+    return channel.map(READ_ONLY, 0, size);
+  }
+
+  public synchronized void writeTo(OutputStream output) throws IOException {
+    if (channel == null) {
+      head.writeTo(output);
+    } else {
+      writeTo(Channels.newChannel(output));
+    }
+  }
+
+  public synchronized void writeTo(WritableByteChannel target) throws IOException {
+    if (channel == null) {
+      ByteBuffer src = head.asByteBuffer();
+      while (src.hasRemaining()) {
+        target.write(src);
+      }
+      return;
+    }
+    long position = 0;
+    while (position < size) {
+      position += channel.transferTo(position, size - position, target);
+    }
+  }
+
+  /** Same as {@link #discard()}: releases the temporary file. */
+  @Override
+  public void close() throws IOException {
+    discard();
+  }
+
+  public synchronized void discard() throws IOException {
+    head.reset();
+    size = 0;
+    if (channel != null) {
+      channel.close();
+      Files.deleteIfExists(file);
+      channel = null;
+      file = null;
+    }
+  }
+
+  /** Reads the spilled file with positional reads, so it needs no channel of its own. */
+  static class ChannelInputStream extends InputStream {
+    private final FileChannel channel;
+    private final long size;
+    private long position = 0;
+
+    ChannelInputStream(FileChannel channel, long size) {
+      this.channel = channel;
+      this.size = size;
+    }
+
+    @Override
+    public int read() throws IOException {
+      byte[] b = new byte[1];
+      return read(b, 0, 1) < 0 ? -1 : b[0] & 0xff;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+      if (position >= size) {
+        return -1;
+      }
+      ByteBuffer dst = ByteBuffer.wrap(b, off, (int) Math.min(len, size - position));
+      int read = channel.read(dst, position);
+      if (read > 0) {
+        position += read;
+      }
+      return read;
+    }
+
+    @Override
+    public int available() {
+      return (int) Math.min(Integer.MAX_VALUE, size - position);
+    }
+  }
+}
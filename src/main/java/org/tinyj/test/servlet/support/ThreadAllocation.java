@@ -0,0 +1,70 @@
+/*
+Copyright 2016 Eric Karge <e.karge@struction.de>
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+  http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+*/
+package org.tinyj.test.servlet.support;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+
+/**
+ * Per-thread allocated bytes from HotSpot's
+ * {@code com.sun.management.ThreadMXBean}, enabled on first use.
+ */
+public final class ThreadAllocation {
+
+  private static final com.sun.management.ThreadMXBean THREADS = lookup();
+  private static long counterOverhead = -1;
+
+  private ThreadAllocation() {
+  }
+
+  private static com.sun.management.ThreadMXBean lookup() {
+    ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+    if (!(bean instanceof com.sun.management.ThreadMXBean)) {
+      return null;
+    }
+    com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) bean;
+    if (!threads.isThreadAllocatedMemorySupported()) {
+      return null;
+    }
+    if (!threads.isThreadAllocatedMemoryEnabled()) {
+      threads.setThreadAllocatedMemoryEnabled(true);
+    }
+    return threads;
+  }
+
+  public static boolean isSupported() {
+    return THREADS != null;
+  }
+
+  /** Bytes allocated by the calling thread since it started, -1 if not supported. */
+  public static long currentThread() {
+    return THREADS != null ? THREADS.getThreadAllocatedBytes(Thread.currentThread().getId()) : -1;
+  }
+
+  /** Bytes attributed to the thread by reading the counter twice in a row, calibrated once. */
+  public static long counterOverhead() {
+    if (counterOverhead < 0) {
+      long min = Long.MAX_VALUE;
+      for (int i = 0; i < 32; i++) {
+        long before = currentThread();
+        long after = currentThread();
+        min = Math.min(min, after - before);
+      }
+      counterOverhead = min;
+    }
+    return counterOverhead;
+  }
+}
@@ -0,0 +1,142 @@
+/*
+Copyright 2016 Eric Karge <e.karge@struction.de>
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+  http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+*/
+package org.tinyj.test.servlet.support;
+
+import java.util.function.ObjLongConsumer;
+
+/**
+ * Hierarchical timing wheel with four levels of 64 slots. Scheduling is
+ * O(1), advancing costs one step per elapsed tick (skipped while the wheel is
+ * empty) plus a cascade of one slot whenever a level wraps.
+ */
+public class TimingWheel<T> {
+
+  private static final int BITS = 6;
+  private static final int SLOTS = 1 << BITS;
+  private static final int MASK = SLOTS - 1;
+  private static final int LEVELS = 4;
+
+  protected final long tickMillis;
+  private final Node<T>[][] wheel;
+  private Node<T> due;
+  private long currentTick;
+  private int size = 0;
+
+  public TimingWheel(long tickMillis, long nowMillis) {
+    this.tickMillis = tickMillis;
+    this.wheel = newWheel();
+    this.currentTick = nowMillis / tickMillis;
+  }
+
+  public synchronized void schedule(T item, long deadlineMillis) {
+    place(new Node<>(item, deadlineMillis, (deadlineMillis + tickMillis - 1) / tickMillis));
+    size++;
+  }
+
+  public synchronized int size() {
+    return size;
+  }
+
+  /**
+   * Moves the wheel to {@code nowMillis} and passes every item whose deadline
+   * has been reached to {@code expired}, outside of the wheel's lock.
+   */
+  public void advance(long nowMillis, ObjLongConsumer<T> expired) {
+    Node<T> fired;
+    synchronized (this) {
+      long targetTick = nowMillis / tickMillis;
+      while (currentTick < targetTick) {
+        if (size == 0) {
+          currentTick = targetTick;
+          break;
+        }
+        tick();
+      }
+      fired = due;
+      due = null;
+    }
+    for (Node<T> node = fired; node != null; node = node.next) {
+      expired.accept(node.item, node.deadlineMillis);
+    }
+  }
+
+  private void tick() {
+    currentTick++;
+    for (int level = 1; level < LEVELS; level++) {
+      if ((currentTick & ((1L << (BITS * level)) - 1)) != 0) {
+        break;
+      }
+      int slot = (int) (currentTick >>> (BITS * level)) & MASK;
+      Node<T> node = wheel[level][slot];
+      wheel[level][slot] = null;
+      while (node != null) {
+        Node<T> next = node.next;
+        place(node);
+        node = next;
+      }
+    }
+    int slot = (int) currentTick & MASK;
+    Node<T> node = wheel[0][slot];
+    wheel[0][slot] = null;
+    while (node != null) {
+      Node<T> next = node.next;
+      if (node.deadlineTick <= currentTick) {
+        node.next = due;
+        due = node;
+        size--;
+      } else {
+        place(node);
+      }
+      node = next;
+    }
+  }
+
+  @SuppressWarnings("unchecked")
+  private static <T> Node<T>[][] newWheel() {
+    return (Node<T>[][]) new Node<?>[LEVELS][SLOTS];
+  }
+
+  private void place(Node<T> node) {
+    long delta = node.deadlineTick - currentTick;
+    if (delta <= 0) {
+      node.next = due;
+      due = node;
+      size--;
+      return;
+    }
+    int level = 0;
+    while (level < LEVELS - 1 && delta >= 1L << (BITS * (level + 1))) {
+      level++;
+    }
+    int slot = (int) (node.deadlineTick >>> (BITS * level)) & MASK;
+    node.next = wheel[level][slot];
+    wheel[level][slot] = node;
+  }
+
+  private static class Node<T> {
+
+    final T item;
+    final long deadlineMillis;
+    final long deadlineTick;
+    Node<T> next;
+
+    Node(T item, long deadlineMillis, long deadlineTick) {
+      this.item = item;
+      this.deadlineMillis = deadlineMillis;
+      this.deadlineTick = deadlineTick;
+    }
+  }
+}
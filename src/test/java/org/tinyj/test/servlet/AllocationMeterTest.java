@@ -0,0 +1,97 @@
+/*
+Copyright 2016 Eric Karge <e.karge@struction.de>
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+  http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+*/
+package org.tinyj.test.servlet;
+
+import org.testng.annotations.Test;
+
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import java.io.IOException;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.fail;
+
+public class AllocationMeterTest {
+
+  static volatile Object sink;
+
+  @SuppressWarnings("serial")
+  static class AllocatingServlet extends HttpServlet {
+    @Override
+    protected void doGet(HttpServletRequest req, HttpServletResponse resp) {
+      sink = new byte[Integer.parseInt(req.getParameter("size"))];
+    }
+  }
+
+  static HttpServletRequestMock request(int size) {
+    return new HttpServletRequestMock().withMethod("GET").withQueryString("size=" + size);
+  }
+
+  @Test
+  public void allocations_inside_service_are_counted() throws Exception {
+    // given
+    AllocationMeter meter = new AllocationMeter(new AllocatingServlet())
+        .withWarmup(200)
+        .withIterations(11);
+
+    // when
+    AllocationMeter.Result small = meter.measure(() -> request(16));
+    AllocationMeter.Result large = meter.measure(() -> request(100_000));
+
+    // then
+    assertThat(large.getAllocatedBytes()).isGreaterThanOrEqualTo(100_000);
+    assertThat(large.getAllocatedBytes() - small.getAllocatedBytes()).isBetween(99_000L, 101_000L);
+  }
+
+  @Test
+  public void baseline_allocations_are_subtracted() throws Exception {
+    // given
+    HttpServlet writing = new HttpServlet() {
+      private static final long serialVersionUID = 1L;
+
+      @Override
+      protected void doGet(HttpServletRequest req, HttpServletResponse resp) throws IOException {
+        resp.getWriter().print("hello");
+      }
+    };
+    AllocationMeter meter = new AllocationMeter(writing).withWarmup(200).withIterations(11);
+
+    // when
+    AllocationMeter.Result unadjusted = meter.measure(() -> request(0));
+    AllocationMeter.Result adjusted = meter.withBaseline(writing).measure(() -> request(0));
+
+    // then
+    assertThat(unadjusted.getAllocatedBytes()).isGreaterThan(0);
+    assertThat(adjusted.getBaselineBytes()).isGreaterThan(0);
+    assertThat(adjusted.getAllocatedBytes()).isLessThan(unadjusted.getAllocatedBytes());
+  }
+
+  @Test
+  public void exceeding_the_budget_fails() throws Exception {
+    // given
+    AllocationMeter meter = new AllocationMeter(new AllocatingServlet()).withBudget(50_000);
+
+    try {
+      // when
+      meter.service(request(100_000), new HttpServletResponseMock());
+      fail("budget should be exceeded");
+    } catch (AssertionError e) {
+      // then
+      assertThat(e.getMessage()).contains("budget is 50000 bytes");
+    }
+  }
+}
@@ -0,0 +1,162 @@
+/*
+Copyright 2016 Eric Karge <e.karge@struction.de>
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+  http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+*/
+package org.tinyj.test.servlet;
+
+import org.testng.annotations.Test;
+
+import java.io.PrintWriter;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.tinyj.test.servlet.BodyMatchers.*;
+
+public class BodyMatchersTest {
+
+  @Test
+  public void matchers_are_fed_while_the_body_is_written() throws Exception {
+    // given
+    BodyMatchers.Prefix prefix = startsWith("id;name");
+    BodyMatchers.Contains contains = contains("42;answer\n");
+    BodyMatchers.LineCount lines = lineCount(101);
+    HttpServletResponseMock response = new HttpServletResponseMock()
+        .withBodyRecording(false)
+        .withListener(prefix)
+        .withListener(contains)
+        .withListener(lines);
+
+    // when
+    PrintWriter writer = response.getWriter();
+    writer.append("id;name\n");
+    for (int i = 0; i < 100; i++) {
+      writer.append(Integer.toString(i)).append(i == 42 ? ";answer\n" : ";row\n");
+      writer.flush();
+    }
+    writer.close();
+
+    // then
+    prefix.verify();
+    contains.verify();
+    lines.verify();
+    assertThat(response.getSendBody()).isEmpty();
+    assertThat(response.getSendBodySize()).isEqualTo(0);
+  }
+
+  @Test
+  public void contains_handles_partial_matches() throws Exception {
+    BodyMatchers.Contains contains = contains("aab");
+
+    contains.onWrite("aaaab".getBytes(), 0, 5);
+
+    assertThat(contains.matches()).isTrue();
+    assertThat(contains.getOffset()).isEqualTo(2);
+  }
+
+  @Test
+  public void prefix_mismatch_is_reported() throws Exception {
+    BodyMatchers.Prefix prefix = startsWith("abc");
+
+    prefix.onWrite("abd".getBytes(), 0, 3);
+
+    assertThat(prefix.matches()).isFalse();
+    assertThat(prefix.describe()).contains("offset 2");
+  }
+
+  @Test
+  public void valid_json_is_accepted() throws Exception {
+    BodyMatchers.Json json = json();
+
+    byte[] body = "{\"a\": [1, -2.5e+3, 0, true, null, \"x\\\"\\u00e9\"], \"b\": {}, \"c\": []}".getBytes();
+    for (byte b : body) {
+      json.onWrite(b);
+    }
+
+    assertThat(json.describe()).isEqualTo("valid JSON with 10 values");
+    json.verify();
+  }
+
+  @Test
+  public void unicode_escapes_in_keys_and_values_are_accepted() throws Exception {
+    BodyMatchers.Json json = json();
+
+    byte[] body = "{\"\\u0041\": \"\\u00e9\\u20AC\", \"b\\u0042\": [\"\\u0041\"]}".getBytes();
+    json.onWrite(body, 0, body.length);
+
+    assertThat(json.describe()).isEqualTo("valid JSON with 4 values");
+    json.verify();
+  }
+
+  @Test
+  public void top_level_number_is_accepted() throws Exception {
+    BodyMatchers.Json json = json();
+
+    json.onWrite("12".getBytes(), 0, 2);
+
+    assertThat(json.matches()).isTrue();
+  }
+
+  @Test
+  public void invalid_json_is_reported_with_offset() throws Exception {
+    BodyMatchers.Json json = json();
+
+    json.onWrite("{\"a\": [1, 2}".getBytes(), 0, 12);
+
+    assertThat(json.matches()).isFalse();
+    assertThat(json.describe()).isEqualTo("invalid JSON at offset 11: unbalanced bracket");
+  }
+
+  @Test
+  public void incomplete_json_is_reported() throws Exception {
+    BodyMatchers.Json json = json();
+
+    json.onWrite("[1, [2".getBytes(), 0, 6);
+
+    assertThat(json.matches()).isFalse();
+    assertThat(json.describe()).isEqualTo("incomplete JSON after 6 bytes, 2 unclosed brackets");
+  }
+
+  @Test
+  public void exponents_with_and_without_sign_are_accepted() throws Exception {
+    BodyMatchers.Json json = json();
+
+    json.onWrite("[1e5, 2.5E-3, 3e+1]".getBytes(), 0, 19);
+
+    assertThat(json.matches()).isTrue();
+  }
+
+  @Test
+  public void matchers_only_see_the_body_that_survives_a_reset() throws Exception {
+    // given
+    BodyMatchers.Prefix prefix = startsWith("{\"ok\"");
+    BodyMatchers.Contains contains = contains("stack trace");
+    BodyMatchers.Json json = json();
+    HttpServletResponseMock response = new HttpServletResponseMock()
+        .withListener(prefix)
+        .withListener(contains)
+        .withListener(json);
+
+    // when
+    PrintWriter writer = response.getWriter();
+    writer.append("<html>stack trace");
+    response.resetBuffer();
+    writer.append("{\"ok\": true}");
+    writer.close();
+
+    // then
+    prefix.verify();
+    json.verify();
+    assertThat(contains.matches()).isFalse();
+    assertThat(response.getSendBody()).isEqualTo("{\"ok\": true}");
+  }
+}
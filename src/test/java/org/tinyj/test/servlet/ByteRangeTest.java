@@ -0,0 +1,59 @@
+/*
+Copyright 2016 Eric Karge <e.karge@struction.de>
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+  http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+*/
+package org.tinyj.test.servlet;
+
+import org.testng.annotations.Test;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class ByteRangeTest {
+
+  @Test
+  public void parses_closed_open_and_suffix_ranges() {
+    assertThat(ByteRange.parse("bytes=0-499, 500-, -100", 1000))
+        .containsExactly(new ByteRange(0, 499), new ByteRange(500, 999), new ByteRange(900, 999));
+    assertThat(ByteRange.parse("bytes=900-2000,-5000", 1000))
+        .containsExactly(new ByteRange(900, 999), new ByteRange(0, 999));
+  }
+
+  @Test
+  public void unsatisfiable_ranges_are_dropped() {
+    assertThat(ByteRange.parse("bytes=1000-1100,-0", 1000)).isEmpty();
+    assertThat(ByteRange.parse("bytes=0-10", 0)).isEmpty();
+  }
+
+  @Test
+  public void malformed_headers_are_ignored() {
+    assertThat(ByteRange.parse(null, 1000)).isNull();
+    assertThat(ByteRange.parse("items=0-10", 1000)).isNull();
+    assertThat(ByteRange.parse("bytes=10-5", 1000)).isNull();
+    assertThat(ByteRange.parse("bytes=a-b", 1000)).isNull();
+    assertThat(ByteRange.parse("bytes=10", 1000)).isNull();
+    assertThat(ByteRange.parse("bytes=--5", 1000)).isNull();
+    assertThat(ByteRange.parse("bytes=+1-5", 1000)).isNull();
+    assertThat(ByteRange.parse("bytes=0-5,-", 1000)).isNull();
+  }
+
+  @Test
+  public void request_parses_its_range_header() {
+    // given
+    HttpServletRequestMock request = new HttpServletRequestMock().withRange("bytes=-10");
+
+    // then
+    assertThat(request.getRanges(100)).containsExactly(new ByteRange(90, 99));
+    assertThat(new ByteRange(90, 99).toContentRange(100)).isEqualTo("bytes 90-99/100");
+  }
+}
@@ -0,0 +1,128 @@
+/*
+Copyright 2016 Eric Karge <e.karge@struction.de>
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+  http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+*/
+package org.tinyj.test.servlet;
+
+import org.testng.annotations.Test;
+
+import javax.servlet.ServletOutputStream;
+import java.io.PrintWriter;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class EventStreamConsumerTest {
+
+  @Test
+  public void events_are_parsed_and_timed_per_flush() throws Exception {
+    // given
+    EventStreamConsumer consumer = new EventStreamConsumer();
+    HttpServletResponseMock response = new HttpServletResponseMock().withListener(consumer);
+    response.setContentType("text/event-stream");
+
+    // when
+    PrintWriter writer = response.getWriter();
+    writer.append(": hello\n\nretry: 1000\nid: 1\ndata: first\n\n").flush();
+    writer.append("event: update\r\ndata: second\r\ndata: line\r\n\r\n");
+    writer.append("data: third\n\n").flush();
+    writer.close();
+
+    // then
+    assertThat(consumer.getSegments()).hasSize(2);
+    assertThat(consumer.getEvents()).hasSize(3);
+    assertThat(consumer.getEvents().get(0).data).isEqualTo("first");
+    assertThat(consumer.getEvents().get(0).id).isEqualTo("1");
+    assertThat(consumer.getEvents().get(1).type).isEqualTo("update");
+    assertThat(consumer.getEvents().get(1).data).isEqualTo("second\nline");
+    assertThat(consumer.getEvents().get(2).type).isEqualTo("message");
+    assertThat(consumer.getRetry()).isEqualTo(1000);
+    assertThat(consumer.getMaxEventsPerSegment()).isEqualTo(2);
+    assertThat(consumer.getTimeToFirstEventNanos()).isGreaterThan(0);
+    assertThat(consumer.getInterEventLatenciesNanos()).hasSize(2);
+    assertThat(consumer.getInterEventLatenciesNanos()[1]).isEqualTo(0);
+  }
+
+  @Test
+  public void events_held_back_by_the_writer_are_detected() throws Exception {
+    // given
+    EventStreamConsumer consumer = new EventStreamConsumer();
+    HttpServletResponseMock response = new HttpServletResponseMock().withListener(consumer);
+    PrintWriter writer = response.getWriter();
+
+    // when
+    writer.append("data: first\n\n");
+    sleep(20);
+    writer.append("data: second\n\n");
+    sleep(20);
+    writer.append("data: third\n\n").flush();
+    writer.close();
+
+    // then
+    assertThat(consumer.getSegments()).hasSize(1);
+    assertThat(consumer.getMaxEventsPerSegment()).isEqualTo(3);
+    assertThat(consumer.getMaxDeliveryDelayNanos()).isGreaterThanOrEqualTo(MILLISECONDS.toNanos(40));
+    assertThat(consumer.getEvents().get(2).getDeliveredNanos() - consumer.getEvents().get(2).writtenNanos)
+        .isLessThan(MILLISECONDS.toNanos(20));
+  }
+
+  @Test
+  public void events_held_back_on_the_output_stream_are_detected() throws Exception {
+    // given
+    EventStreamConsumer consumer = new EventStreamConsumer();
+    HttpServletResponseMock response = new HttpServletResponseMock().withListener(consumer);
+    ServletOutputStream out = response.getOutputStream();
+
+    // when
+    out.write("data: first\r\n\r\n".getBytes(UTF_8));
+    sleep(20);
+    out.write("data: second\r\n\r\n".getBytes(UTF_8));
+    out.flush();
+    out.close();
+
+    // then
+    assertThat(consumer.getEvents()).hasSize(2);
+    assertThat(consumer.getMaxDeliveryDelayNanos()).isGreaterThanOrEqualTo(MILLISECONDS.toNanos(20));
+  }
+
+  @Test
+  public void streamed_events_have_no_delivery_delay_to_speak_of() throws Exception {
+    // given
+    EventStreamConsumer consumer = new EventStreamConsumer();
+    HttpServletResponseMock response = new HttpServletResponseMock().withListener(consumer);
+    PrintWriter writer = response.getWriter();
+
+    // when
+    for (int i = 0; i < 3; i++) {
+      writer.append(": keep-alive\n\ndata: ").append(Integer.toString(i)).append("\n\n").flush();
+      sleep(20);
+    }
+    writer.close();
+
+    // then
+    assertThat(consumer.getEvents()).extracting("data").containsExactly("0", "1", "2");
+    assertThat(consumer.getMaxEventsPerSegment()).isEqualTo(1);
+    assertThat(consumer.getMaxDeliveryDelayNanos()).isLessThan(MILLISECONDS.toNanos(20));
+    assertThat(consumer.getMaxInterEventLatencyNanos()).isGreaterThanOrEqualTo(MILLISECONDS.toNanos(20));
+  }
+
+  private static void sleep(long millis) {
+    try {
+      Thread.sleep(millis);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+  }
+}
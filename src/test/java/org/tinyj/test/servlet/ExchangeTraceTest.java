@@ -0,0 +1,89 @@
+/*
+Copyright 2016 Eric Karge <e.karge@struction.de>
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+  http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+*/
+package org.tinyj.test.servlet;
+
+import org.testng.annotations.Test;
+
+import java.io.PrintWriter;
+import java.util.List;
+
+import static java.util.stream.Collectors.toList;
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class ExchangeTraceTest {
+
+  @Test
+  public void exchange_lifecycle_is_recorded_in_order() throws Exception {
+    // given
+    ExchangeTrace trace = new ExchangeTrace();
+    HttpServletRequestMock request = new HttpServletRequestMock().withTrace(trace);
+    HttpServletResponseMock response = new HttpServletResponseMock().withTrace(trace);
+
+    // when
+    request.getSession(true);
+    response.setHeader("X-Test", "1");
+    PrintWriter writer = response.getWriter();
+    writer.write("hello");
+    writer.flush();
+    writer.close();
+
+    // then
+    List<String> names = trace.getEvents().stream().map(event -> event.name).collect(toList());
+    assertThat(names).containsSubsequence("getSession", "setHeader", "getWriter", "writer.write", "write",
+                                          "commit", "flushBuffer", "close");
+    assertThat(names).doesNotContain("getOutputStream");
+    ExchangeTrace.Event flush = trace.getEvents().stream().filter(e -> e.name.equals("flushBuffer")).findFirst().get();
+    assertThat(flush.size).isEqualTo(5);
+    assertThat(flush.durationNanos).isGreaterThanOrEqualTo(0);
+  }
+
+  @Test
+  public void trace_exports_as_chrome_trace_json() throws Exception {
+    // given
+    ExchangeTrace trace = new ExchangeTrace();
+    HttpServletResponseMock response = new HttpServletResponseMock().withTrace(trace);
+
+    // when
+    response.setHeader("X-\"quoted\"", "1");
+    response.getOutputStream().write(new byte[3]);
+    response.close();
+    String json = trace.toChromeTrace();
+
+    // then
+    assertThat(json).startsWith("{\"traceEvents\":[")
+        .contains("{\"name\":\"setHeader\",\"cat\":\"exchange\",\"ph\":\"i\",\"s\":\"t\",\"ts\":")
+        .contains("\"args\":{\"detail\":\"X-\\\"quoted\\\"\"}")
+        .contains("{\"name\":\"close\",\"cat\":\"exchange\",\"ph\":\"X\",\"ts\":")
+        .contains("\"args\":{\"size\":3}")
+        .endsWith("]}\n");
+  }
+
+  @Test
+  public void ring_buffer_keeps_the_latest_events() {
+    // given
+    ExchangeTrace trace = new ExchangeTrace(4);
+
+    // when
+    for (int i = 0; i < 10; i++) {
+      trace.instant("event", Integer.toString(i));
+    }
+
+    // then
+    assertThat(trace.getRecordedCount()).isEqualTo(10);
+    assertThat(trace.getEvents().stream().map(event -> event.detail).collect(toList()))
+        .containsExactly("6", "7", "8", "9");
+  }
+}
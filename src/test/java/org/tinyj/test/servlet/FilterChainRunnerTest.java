@@ -0,0 +1,207 @@
+/*
+Copyright 2016 Eric Karge <e.karge@struction.de>
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+  http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+*/
+package org.tinyj.test.servlet;
+
+import org.testng.annotations.Test;
+
+import javax.servlet.*;
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletRequestWrapper;
+import javax.servlet.http.HttpServletResponse;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class FilterChainRunnerTest {
+
+  static class Recording implements Filter {
+    final String name;
+    final List<String> log;
+    final long sleepMillis;
+
+    Recording(String name, List<String> log, long sleepMillis) {
+      this.name = name;
+      this.log = log;
+      this.sleepMillis = sleepMillis;
+    }
+
+    @Override
+    public void init(FilterConfig filterConfig) {
+    }
+
+    @Override
+    public void doFilter(ServletRequest request, ServletResponse response, FilterChain chain)
+        throws IOException, ServletException {
+      log.add(name + " " + request.getDispatcherType());
+      sleep(sleepMillis);
+      chain.doFilter(new HttpServletRequestWrapper((HttpServletRequest) request) {
+        @Override
+        public String getHeader(String header) {
+          return header.equals("X-Filtered-By") ? name : super.getHeader(header);
+        }
+      }, response);
+    }
+
+    @Override
+    public void destroy() {
+    }
+  }
+
+  @Test
+  public void filters_wrap_the_request_and_are_timed_separately() throws Exception {
+    // given
+    List<String> log = new ArrayList<>();
+    HttpServlet servlet = new HttpServlet() {
+      @Override
+      protected void doGet(HttpServletRequest req, HttpServletResponse resp) throws IOException {
+        sleep(20);
+        resp.getWriter().print("filtered by " + req.getHeader("X-Filtered-By"));
+      }
+    };
+    FilterChainRunner runner = new FilterChainRunner(servlet)
+        .withFilter("slow", new Recording("slow", log, 30))
+        .withFilter("fast", new Recording("fast", log, 0));
+    HttpServletResponseMock response = new HttpServletResponseMock();
+
+    // when
+    runner.run(new HttpServletRequestMock().withMethod("GET"), response);
+
+    // then
+    assertThat(log).containsExactly("slow REQUEST", "fast REQUEST");
+    assertThat(response.getSendBody()).isEqualTo("filtered by fast");
+    assertThat(response.isClosed()).isTrue();
+    List<FilterChainRunner.Stats> stats = runner.getStats();
+    assertThat(stats).extracting("name").containsExactly("slow", "fast", servlet.getClass().getSimpleName());
+    assertThat(stats.get(0).getSelfNanos()).isGreaterThanOrEqualTo(30_000_000L)
+        .isLessThanOrEqualTo(stats.get(0).getTotalNanos() - stats.get(2).getTotalNanos());
+    assertThat(stats.get(0).getTotalNanos()).isGreaterThanOrEqualTo(50_000_000L);
+    assertThat(stats.get(1).getSelfNanos()).isLessThan(stats.get(0).getSelfNanos());
+    assertThat(stats.get(2).getSelfNanos()).isGreaterThanOrEqualTo(20_000_000L);
+    assertThat(stats.get(0).getTotalAllocatedBytes()).isGreaterThanOrEqualTo(stats.get(1).getTotalAllocatedBytes());
+  }
+
+  @Test
+  public void forward_dispatches_through_forward_filters() throws Exception {
+    // given
+    List<String> log = new ArrayList<>();
+    HttpServlet front = new HttpServlet() {
+      @Override
+      protected void doGet(HttpServletRequest req, HttpServletResponse resp) throws IOException, ServletException {
+        resp.getWriter().print("discarded");
+        req.getRequestDispatcher("/target?page=2").forward(req, resp);
+      }
+    };
+    HttpServlet target = new HttpServlet() {
+      @Override
+      protected void doGet(HttpServletRequest req, HttpServletResponse resp) throws IOException {
+        resp.getWriter().print(req.getDispatcherType() + " " + req.getRequestURI() + " page=" + req.getParameter("page")
+                               + " q=" + req.getParameter("q") + " from " + req.getAttribute(RequestDispatcher.FORWARD_REQUEST_URI));
+      }
+    };
+    FilterChainRunner runner = new FilterChainRunner(front)
+        .withFilter("audit", new Recording("audit", log, 0), DispatcherType.REQUEST, DispatcherType.FORWARD)
+        .withDispatchTarget("/target", target);
+    HttpServletResponseMock response = new HttpServletResponseMock();
+
+    // when
+    runner.run(new HttpServletRequestMock().withMethod("GET").withPath("/front").withQueryString("q=x"), response);
+
+    // then
+    assertThat(log).containsExactly("audit REQUEST", "audit FORWARD");
+    assertThat(response.getSendBody()).isEqualTo("FORWARD /target page=2 q=x from /front");
+    assertThat(response.getCommitedHeaders().get("Content-Length")).containsExactly("38");
+  }
+
+  @Test
+  public void include_keeps_status_and_headers_of_the_including_servlet() throws Exception {
+    // given
+    HttpServlet page = new HttpServlet() {
+      @Override
+      protected void doGet(HttpServletRequest req, HttpServletResponse resp) throws IOException, ServletException {
+        resp.setStatus(201);
+        resp.getWriter().print("<header>");
+        req.getRequestDispatcher("/fragment").include(req, resp);
+        resp.getWriter().print("</header>");
+      }
+    };
+    HttpServlet fragment = new HttpServlet() {
+      @Override
+      protected void doGet(HttpServletRequest req, HttpServletResponse resp) throws IOException {
+        resp.setStatus(500);
+        resp.setHeader("X-Fragment", "1");
+        resp.getWriter().print(req.getDispatcherType() + " " + req.getAttribute(RequestDispatcher.INCLUDE_REQUEST_URI));
+      }
+    };
+    FilterChainRunner runner = new FilterChainRunner(page).withDispatchTarget("/fragment", fragment);
+    HttpServletResponseMock response = new HttpServletResponseMock();
+
+    // when
+    runner.run(new HttpServletRequestMock().withMethod("GET"), response);
+
+    // then
+    assertThat(response.getCommitedStatus()).isEqualTo(201);
+    assertThat(response.getCommitedHeaders()).doesNotContainKey("X-Fragment");
+    assertThat(response.getSendBody()).isEqualTo("<header>INCLUDE /fragment</header>");
+  }
+
+  @Test
+  public void included_servlet_cannot_commit_or_close_the_response() throws Exception {
+    // given
+    HttpServlet page = new HttpServlet() {
+      @Override
+      protected void doGet(HttpServletRequest req, HttpServletResponse resp) throws IOException, ServletException {
+        resp.getWriter().print("<body>");
+        req.getRequestDispatcher("/fragment").include(req, resp);
+        resp.setStatus(202);
+        resp.getWriter().print("</body>");
+      }
+    };
+    HttpServlet fragment = new HttpServlet() {
+      @Override
+      protected void doGet(HttpServletRequest req, HttpServletResponse resp) throws IOException {
+        PrintWriter writer = resp.getWriter();
+        writer.print("fragment");
+        writer.flush();
+        resp.flushBuffer();
+        resp.sendError(500);
+        resp.sendRedirect("/elsewhere");
+        writer.close();
+      }
+    };
+    FilterChainRunner runner = new FilterChainRunner(page).withDispatchTarget("/fragment", fragment);
+    HttpServletResponseMock response = new HttpServletResponseMock();
+
+    // when
+    runner.run(new HttpServletRequestMock().withMethod("GET"), response);
+
+    // then
+    assertThat(response.getCommitedStatus()).isEqualTo(202);
+    assertThat(response.getFlushNanos()).isEmpty();
+    assertThat(response.getSendBody()).isEqualTo("<body>fragment</body>");
+  }
+
+  static void sleep(long millis) {
+    try {
+      Thread.sleep(millis);
+    } catch (InterruptedException e) {
+      throw new RuntimeException(e);
+    }
+  }
+}
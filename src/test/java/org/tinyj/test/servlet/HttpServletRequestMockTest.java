@@ -0,0 +1,95 @@
+/*
+Copyright 2016 Eric Karge <e.karge@struction.de>
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+  http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+*/
+package org.tinyj.test.servlet;
+
+import org.testng.annotations.Test;
+
+import javax.servlet.ServletRequestAttributeEvent;
+import javax.servlet.ServletRequestAttributeListener;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import static java.util.Collections.list;
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class HttpServletRequestMockTest {
+
+  @Test
+  public void attributes_are_empty_by_default() throws Exception {
+    HttpServletRequestMock request = new HttpServletRequestMock();
+
+    assertThat(request.getAttribute("missing")).isNull();
+    assertThat(list(request.getAttributeNames())).isEmpty();
+  }
+
+  @Test
+  public void attribute_listeners_are_notified() throws Exception {
+    // given
+    List<String> events = new ArrayList<>();
+    HttpServletRequestMock request = new HttpServletRequestMock().withAttributeListener(
+        new ServletRequestAttributeListener() {
+          @Override
+          public void attributeAdded(ServletRequestAttributeEvent srae) {
+            events.add("added " + srae.getName() + "=" + srae.getValue());
+          }
+
+          @Override
+          public void attributeRemoved(ServletRequestAttributeEvent srae) {
+            events.add("removed " + srae.getName() + "=" + srae.getValue());
+          }
+
+          @Override
+          public void attributeReplaced(ServletRequestAttributeEvent srae) {
+            events.add("replaced " + srae.getName() + "=" + srae.getValue());
+          }
+        });
+
+    // when
+    request.setAttribute("a", 1);
+    request.setAttribute("a", 2);
+    request.setAttribute("a", null);
+    request.removeAttribute("a");
+
+    // then
+    assertThat(events).containsExactly("added a=1", "replaced a=1", "removed a=2");
+  }
+
+  @Test
+  public void concurrent_attributes_can_be_set_from_several_threads() throws Exception {
+    // given
+    HttpServletRequestMock request = new HttpServletRequestMock().withConcurrentAttributes();
+    ExecutorService executor = Executors.newFixedThreadPool(4);
+
+    // when
+    for (int t = 0; t < 4; t++) {
+      int thread = t;
+      executor.execute(() -> {
+        for (int i = 0; i < 1000; i++) {
+          request.setAttribute(thread + "-" + i, i);
+          list(request.getAttributeNames());
+        }
+      });
+    }
+    executor.shutdown();
+    executor.awaitTermination(10, TimeUnit.SECONDS);
+
+    // then
+    assertThat(list(request.getAttributeNames())).hasSize(4000);
+  }
+}
@@ -19,12 +19,18 @@ import org.testng.annotations.BeforeMethod;
 import org.testng.annotations.Test;
 
 import java.io.ByteArrayOutputStream;
+import java.io.InputStream;
 import java.io.OutputStream;
 import java.io.PrintWriter;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
 import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.nio.file.Path;
 import java.util.Locale;
 
 import static java.nio.charset.Charset.defaultCharset;
+import static java.nio.file.StandardOpenOption.WRITE;
 import static org.assertj.core.api.Assertions.assertThat;
 
 public class HttpServletResponseMockTest {
@@ -348,6 +354,101 @@ public class HttpServletResponseMockTest {
     assertThat(response.isCommitted()).isTrue();
   }
 
+  @Test
+  public void response_can_be_written_to_a_channel() throws Exception {
+    // given
+    response = new HttpServletResponseMock(Channels.newChannel(outputStream));
+
+    // when
+    response.getOutputStream().write("message body".getBytes(UTF8));
+    response.flushBuffer();
+    response.getOutputStream().write(" continued".getBytes(UTF8));
+    response.close();
+
+    // then
+    assertThat(toString(outputStream)).isEqualTo("HTTP/1.1 200 OK\r\n" +
+                                                 "\r\n" +
+                                                 "message body continued");
+    assertThat(new String(response.getSendBodyBytes(), UTF8)).isEqualTo("message body continued");
+  }
+
+  @Test
+  public void response_can_be_written_to_a_file_channel() throws Exception {
+    // given
+    Path file = Files.createTempFile("response", ".http");
+    file.toFile().deleteOnExit();
+    response = new HttpServletResponseMock(FileChannel.open(file, WRITE));
+
+    // when
+    response.getWriter().append("message body").close();
+
+    // then
+    assertThat(new String(Files.readAllBytes(file), UTF8)).isEqualTo("HTTP/1.1 200 OK\r\n" +
+                                                                     "Content-Length: 12\r\n" +
+                                                                     "\r\n" +
+                                                                     "message body");
+  }
+
+  @Test
+  public void lifecycle_timestamps_are_recorded() throws Exception {
+    // given
+    assertThat(response.getFirstWriteNanos()).isEqualTo(-1);
+    assertThat(response.getTimeToFirstByteNanos()).isEqualTo(-1);
+    Thread.sleep(5);
+
+    // when
+    PrintWriter writer = response.getWriter();
+    writer.write("first");
+    writer.flush();
+    writer.write("second");
+    writer.flush();
+    writer.close();
+
+    // then
+    long[] flushes = response.getFlushNanos();
+    assertThat(response.getFirstWriteNanos()).isGreaterThanOrEqualTo(5_000_000);
+    assertThat(response.getTimeToFirstByteNanos()).isGreaterThanOrEqualTo(response.getFirstWriteNanos());
+    assertThat(flushes).hasSize(2);
+    assertThat(flushes[0]).isGreaterThanOrEqualTo(response.getCommitNanos());
+    assertThat(flushes[1]).isGreaterThanOrEqualTo(flushes[0]);
+    assertThat(response.getTimeToLastByteNanos()).isGreaterThanOrEqualTo(flushes[1]);
+  }
+
+  @Test
+  public void spilled_body_is_released() throws Exception {
+    // given
+    response = new HttpServletResponseMock().withBodySpillThreshold(8);
+    response.getOutputStream().write("0123456789abcdef".getBytes(UTF8));
+    response.close();
+    Path spilled;
+    try (InputStream in = response.getSendBodyStream()) {
+      spilled = response.bodyRecorder.getFile();
+      assertThat(in.available()).isEqualTo(16);
+    }
+    assertThat(Files.exists(spilled)).isTrue();
+
+    // when
+    response.release();
+
+    // then
+    assertThat(Files.exists(spilled)).isFalse();
+    assertThat(response.getSendBodySize()).isZero();
+  }
+
+  @Test
+  public void writer_text_beyond_the_spill_threshold_is_decoded_from_the_body() throws Exception {
+    // given
+    response = new HttpServletResponseMock().withBodySpillThreshold(8);
+
+    // when
+    response.getWriter().append("short").append(" and then some more").close();
+
+    // then
+    assertThat(response.bodyRecorder.isSpilled()).isTrue();
+    assertThat(response.getSendBody()).isEqualTo("short and then some more");
+    response.release();
+  }
+
   protected String toString(ByteArrayOutputStream output) {
     return new String(output.toByteArray(), UTF8);
   }
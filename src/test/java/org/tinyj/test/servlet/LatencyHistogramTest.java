@@ -0,0 +1,80 @@
+/*
+Copyright 2016 Eric Karge <e.karge@struction.de>
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+  http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+*/
+package org.tinyj.test.servlet;
+
+import org.testng.annotations.Test;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.within;
+
+public class LatencyHistogramTest {
+
+  @Test
+  public void percentiles_are_within_the_configured_precision() {
+    // given
+    LatencyHistogram histogram = new LatencyHistogram();
+
+    // when
+    for (long value = 1; value <= 1_000_000; value++) {
+      histogram.record(value * 1000);
+    }
+
+    // then
+    assertThat(histogram.getCount()).isEqualTo(1_000_000);
+    assertThat(histogram.getMin()).isEqualTo(1000);
+    assertThat(histogram.getMax()).isEqualTo(1_000_000_000);
+    assertThat((double) histogram.getValueAtPercentile(50)).isCloseTo(500_000_000, within(500_000.0));
+    assertThat((double) histogram.getValueAtPercentile(99.9)).isCloseTo(999_000_000, within(999_000.0));
+    assertThat(histogram.getValueAtPercentile(100)).isEqualTo(1_000_000_000);
+    assertThat(histogram.getMean()).isCloseTo(500_000_500, within(1.0));
+  }
+
+  @Test
+  public void correction_back_fills_samples_missed_during_a_stall() {
+    // given
+    LatencyHistogram histogram = new LatencyHistogram();
+    for (int i = 0; i < 99; i++) {
+      histogram.record(1_000);
+    }
+    histogram.record(100_000);
+
+    // when
+    LatencyHistogram corrected = histogram.corrected(1_000);
+
+    // then
+    assertThat(histogram.getValueAtPercentile(90)).isEqualTo(1_000);
+    assertThat(corrected.getCount()).isEqualTo(99 + 100);
+    assertThat(corrected.getValueAtPercentile(90)).isGreaterThan(50_000);
+  }
+
+  @Test
+  public void added_histograms_merge_counts_and_extremes() {
+    // given
+    LatencyHistogram first = new LatencyHistogram();
+    LatencyHistogram second = new LatencyHistogram();
+    first.record(10);
+    second.record(5_000);
+
+    // when
+    first.add(second);
+
+    // then
+    assertThat(first.getCount()).isEqualTo(2);
+    assertThat(first.getMin()).isEqualTo(10);
+    assertThat(first.getMax()).isEqualTo(5_000);
+    assertThat(first.getValueAtPercentile(50)).isEqualTo(10);
+  }
+}
@@ -0,0 +1,191 @@
+/*
+Copyright 2016 Eric Karge <e.karge@struction.de>
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+  http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+*/
+package org.tinyj.test.servlet;
+
+import org.testng.annotations.Test;
+
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class LoadDriverTest {
+
+  @SuppressWarnings("serial")
+  static class HelloServlet extends HttpServlet {
+    final AtomicInteger calls = new AtomicInteger();
+
+    @Override
+    protected void doGet(HttpServletRequest req, HttpServletResponse resp) throws IOException {
+      calls.incrementAndGet();
+      if ("/missing".equals(req.getPathInfo())) {
+        resp.sendError(404);
+        return;
+      }
+      resp.getWriter().write("hello");
+    }
+  }
+
+  @Test
+  public void closed_loop_runs_the_requested_number_of_exchanges() {
+    // given
+    HelloServlet servlet = new HelloServlet();
+    LoadDriver driver = new LoadDriver(servlet)
+        .withThreads(4)
+        .withWarmup(10)
+        .withRequests(seq -> new HttpServletRequestMock()
+            .withMethod("GET")
+            .withPath(seq % 10 == 0 ? "/missing" : "/hello"));
+
+    // when
+    LoadDriver.Report report = driver.run(1000);
+
+    // then
+    assertThat(servlet.calls.get()).isEqualTo(1000 + 4 * 10);
+    assertThat(report.getRequestCount()).isEqualTo(1000);
+    assertThat(report.getErrorCount()).isZero();
+    assertThat(report.getStatusCounts()).containsEntry(200, 900L).containsEntry(404, 100L);
+    assertThat(report.getThroughput()).isPositive();
+    assertThat(report.getResponseTime().getCount()).isGreaterThanOrEqualTo(1000);
+  }
+
+  @Test
+  public void open_loop_charges_a_stall_to_the_queued_requests() {
+    // given
+    AtomicInteger calls = new AtomicInteger();
+    HttpServlet stalling = new HttpServlet() {
+      @Override
+      protected void doGet(HttpServletRequest req, HttpServletResponse resp) throws IOException {
+        if (calls.incrementAndGet() == 10) {
+          sleep(50);
+        }
+      }
+    };
+    LoadDriver driver = new LoadDriver(stalling)
+        .withOpenLoop(1000)
+        .withPooledExchanges(true)
+        .withRequests(seq -> new HttpServletRequestMock().withMethod("GET"));
+
+    // when
+    LoadDriver.Report report = driver.run(100);
+
+    // then
+    assertThat(report.isOpenLoop()).isTrue();
+    assertThat(report.getServiceTime().getValueAtPercentile(90)).isLessThan(TimeUnit.MILLISECONDS.toNanos(10));
+    assertThat(report.getResponseTime().getValueAtPercentile(90)).isGreaterThan(TimeUnit.MILLISECONDS.toNanos(10));
+  }
+
+  @Test
+  public void closed_loop_is_only_corrected_with_an_expected_interval() {
+    // given
+    AtomicInteger calls = new AtomicInteger();
+    HttpServlet stalling = new HttpServlet() {
+      @Override
+      protected void doGet(HttpServletRequest req, HttpServletResponse resp) {
+        if (calls.incrementAndGet() == 10) {
+          sleep(50);
+        }
+      }
+    };
+    LoadDriver driver = new LoadDriver(stalling)
+        .withPooledExchanges(true)
+        .withRequests(seq -> new HttpServletRequestMock().withMethod("GET"));
+
+    // when
+    LoadDriver.Report uncorrected = driver.run(100);
+    calls.set(0);
+    LoadDriver.Report corrected = driver.withExpectedInterval(1, TimeUnit.MILLISECONDS).run(100);
+
+    // then
+    assertThat(uncorrected.isCorrected()).isFalse();
+    assertThat(uncorrected.getResponseTime().getCount()).isEqualTo(100);
+    assertThat(corrected.isCorrected()).isTrue();
+    assertThat(corrected.getResponseTime().getCount()).isGreaterThan(140);
+  }
+
+  @Test
+  public void pooled_exchanges_are_recycled_between_calls() {
+    // given
+    Set<Object> pairs = Collections.newSetFromMap(new IdentityHashMap<>());
+    @SuppressWarnings("serial")
+    HttpServlet servlet = new HttpServlet() {
+      @Override
+      protected void doPost(HttpServletRequest req, HttpServletResponse resp) throws IOException {
+        pairs.add(req);
+        pairs.add(resp);
+        int length = 0;
+        InputStream in = req.getInputStream();
+        while (in.read() >= 0) {
+          length++;
+        }
+        boolean stale = length != 5 || req.getAttribute("seen") != null || req.getSession(false) != null
+                        || resp.isCommitted();
+        req.setAttribute("seen", true);
+        req.getSession().setAttribute("seen", true);
+        resp.setStatus(stale ? 409 : 201);
+        resp.getWriter().print(length);
+      }
+    };
+    LoadDriver driver = new LoadDriver(servlet)
+        .withPooledExchanges(true)
+        .withWarmup(3)
+        .withRequests(seq -> new HttpServletRequestMock().withMethod("POST").withBody("hello".getBytes()));
+
+    // when
+    LoadDriver.Report report = driver.run(20);
+
+    // then
+    assertThat(pairs).hasSize(2);
+    assertThat(report.getErrorCount()).isZero();
+    assertThat(report.getStatusCounts()).containsOnlyKeys(201);
+  }
+
+  @Test
+  public void exceptions_are_counted_as_errors() {
+    // given
+    HttpServlet failing = new HttpServlet() {
+      @Override
+      protected void doGet(HttpServletRequest req, HttpServletResponse resp) {
+        throw new IllegalStateException("boom");
+      }
+    };
+
+    // when
+    LoadDriver.Report report = new LoadDriver(failing)
+        .withRequests(seq -> new HttpServletRequestMock().withMethod("GET"))
+        .run(20, TimeUnit.MILLISECONDS);
+
+    // then
+    assertThat(report.getErrorCount()).isEqualTo(report.getRequestCount()).isPositive();
+    assertThat(report.getFirstError()).hasMessage("boom");
+  }
+
+  static void sleep(long millis) {
+    try {
+      Thread.sleep(millis);
+    } catch (InterruptedException e) {
+      throw new RuntimeException(e);
+    }
+  }
+}
@@ -0,0 +1,268 @@
+/*
+Copyright 2016 Eric Karge <e.karge@struction.de>
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+  http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+*/
+package org.tinyj.test.servlet;
+
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import javax.servlet.http.Cookie;
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.Socket;
+import java.net.URL;
+import java.util.concurrent.CountDownLatch;
+
+import static java.nio.charset.StandardCharsets.ISO_8859_1;
+import static java.util.concurrent.TimeUnit.SECONDS;
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class LoopbackServerTest {
+
+  @SuppressWarnings("serial")
+  static class EchoServlet extends HttpServlet {
+    @Override
+    protected void doGet(HttpServletRequest req, HttpServletResponse resp) throws IOException {
+      resp.getWriter().print(req.getMethod() + " " + req.getPathInfo() + " " + req.getParameter("q"));
+    }
+
+    @Override
+    protected void doPost(HttpServletRequest req, HttpServletResponse resp) throws IOException {
+      ByteArrayOutputStream body = new ByteArrayOutputStream();
+      InputStream in = req.getInputStream();
+      for (int b; (b = in.read()) >= 0; ) {
+        body.write(b);
+      }
+      resp.getWriter().print("POST " + body.size());
+    }
+  }
+
+  private LoopbackServer server;
+
+  @BeforeMethod
+  public void setUp() throws Exception {
+    server = new LoopbackServer(new EchoServlet()).start();
+  }
+
+  @AfterMethod
+  public void tearDown() throws Exception {
+    server.close();
+  }
+
+  @Test
+  public void binds_to_loopback_only() {
+    assertThat(server.getAddress().getAddress().isLoopbackAddress()).isTrue();
+  }
+
+  @Test
+  public void serves_a_standard_http_client() throws Exception {
+    // when
+    HttpURLConnection connection = (HttpURLConnection) new URL(
+        "http://127.0.0.1:" + server.getPort() + "/hello?q=world").openConnection();
+
+    // then
+    assertThat(connection.getResponseCode()).isEqualTo(200);
+    assertThat(read(connection.getInputStream())).isEqualTo("GET /hello world");
+  }
+
+  @Test
+  public void pipelined_requests_are_answered_in_order_on_one_connection() throws Exception {
+    try (Socket socket = new Socket("127.0.0.1", server.getPort())) {
+      // when
+      OutputStream out = socket.getOutputStream();
+      out.write(("GET /first HTTP/1.1\r\nHost: localhost\r\n\r\n"
+                 + "POST /second HTTP/1.1\r\nHost: localhost\r\nContent-Length: 5\r\n\r\nabcde"
+                 + "GET /third?q=3 HTTP/1.1\r\nHost: localhost\r\nConnection: close\r\n\r\n").getBytes(ISO_8859_1));
+      out.flush();
+      String responses = read(socket.getInputStream());
+
+      // then
+      assertThat(responses).isEqualTo("HTTP/1.1 200 OK\r\n"
+                                      + "Content-Length: 15\r\n\r\n"
+                                      + "GET /first null"
+                                      + "HTTP/1.1 200 OK\r\n"
+                                      + "Content-Length: 6\r\n\r\n"
+                                      + "POST 5"
+                                      + "HTTP/1.1 200 OK\r\n"
+                                      + "Connection: close\r\n"
+                                      + "Content-Length: 12\r\n\r\n"
+                                      + "GET /third 3");
+      assertThat(server.getConnectionCount()).isEqualTo(1);
+      assertThat(server.getRequestCount()).isEqualTo(3);
+    }
+  }
+
+  @Test
+  public void cookies_and_sessions_reach_the_servlet() throws Exception {
+    // given
+    @SuppressWarnings("serial")
+    HttpServlet servlet = new HttpServlet() {
+      @Override
+      protected void doGet(HttpServletRequest req, HttpServletResponse resp) throws IOException {
+        Integer visits = (Integer) req.getSession().getAttribute("visits");
+        visits = visits == null ? 1 : visits + 1;
+        req.getSession().setAttribute("visits", visits);
+        StringBuilder cookies = new StringBuilder();
+        for (Cookie cookie : req.getCookies()) {
+          cookies.append(cookie.getName()).append('=').append(cookie.getValue()).append(' ');
+        }
+        resp.getWriter().print(cookies + "visits=" + visits);
+      }
+    };
+    try (LoopbackServer sessions = new LoopbackServer(servlet).withSessionManager(new SessionManager()).start()) {
+      URL url = new URL("http://127.0.0.1:" + sessions.getPort() + "/");
+
+      // when
+      HttpURLConnection first = (HttpURLConnection) url.openConnection();
+      first.setRequestProperty("Cookie", "theme=dark; lang=en");
+      String firstBody = read(first.getInputStream());
+      String sessionCookie = first.getHeaderField("Set-Cookie").split(";")[0];
+      HttpURLConnection second = (HttpURLConnection) url.openConnection();
+      second.setRequestProperty("Cookie", "theme=dark; " + sessionCookie);
+      String secondBody = read(second.getInputStream());
+
+      // then
+      assertThat(firstBody).isEqualTo("theme=dark lang=en visits=1");
+      assertThat(sessionCookie).startsWith("JSESSIONID=");
+      assertThat(secondBody).isEqualTo("theme=dark " + sessionCookie + " visits=2");
+      assertThat(second.getHeaderField("Set-Cookie")).isNull();
+    }
+  }
+
+  @Test
+  public void flushed_output_reaches_the_client_before_the_servlet_returns() throws Exception {
+    // given
+    CountDownLatch received = new CountDownLatch(1);
+    @SuppressWarnings("serial")
+    HttpServlet servlet = new HttpServlet() {
+      @Override
+      protected void doGet(HttpServletRequest req, HttpServletResponse resp) throws IOException {
+        resp.getWriter().print("data: first\n\n");
+        resp.flushBuffer();
+        try {
+          resp.getWriter().print(received.await(5, SECONDS) ? "data: second\n\n" : "data: timeout\n\n");
+        } catch (InterruptedException e) {
+          Thread.currentThread().interrupt();
+        }
+      }
+    };
+    try (LoopbackServer streaming = new LoopbackServer(servlet).start();
+         Socket socket = new Socket("127.0.0.1", streaming.getPort())) {
+      // when
+      socket.getOutputStream().write("GET / HTTP/1.1\r\nHost: localhost\r\n\r\n".getBytes(ISO_8859_1));
+      InputStream in = socket.getInputStream();
+      String head = readUntil(in, "data: first\n\n");
+      received.countDown();
+      String rest = read(in);
+
+      // then
+      assertThat(head).startsWith("HTTP/1.1 200 OK\r\n");
+      assertThat(rest).isEqualTo("data: second\n\n");
+    }
+  }
+
+  @Test
+  public void requests_on_different_connections_are_served_concurrently() throws Exception {
+    // given
+    CountDownLatch bothArrived = new CountDownLatch(2);
+    @SuppressWarnings("serial")
+    HttpServlet servlet = new HttpServlet() {
+      @Override
+      protected void doGet(HttpServletRequest req, HttpServletResponse resp) throws IOException {
+        bothArrived.countDown();
+        try {
+          resp.getWriter().print(bothArrived.await(5, SECONDS) ? "together" : "alone");
+        } catch (InterruptedException e) {
+          Thread.currentThread().interrupt();
+        }
+      }
+    };
+    try (LoopbackServer concurrent = new LoopbackServer(servlet).withWorkers(2).start();
+         Socket first = new Socket("127.0.0.1", concurrent.getPort());
+         Socket second = new Socket("127.0.0.1", concurrent.getPort())) {
+      // when
+      byte[] request = "GET / HTTP/1.1\r\nHost: localhost\r\nConnection: close\r\n\r\n".getBytes(ISO_8859_1);
+      first.getOutputStream().write(request);
+      second.getOutputStream().write(request);
+
+      // then
+      assertThat(read(first.getInputStream())).endsWith("together");
+      assertThat(read(second.getInputStream())).endsWith("together");
+    }
+  }
+
+  @Test
+  public void large_flushed_responses_are_streamed_to_slow_clients() throws Exception {
+    // given
+    byte[] chunk = new byte[64 << 10];
+    @SuppressWarnings("serial")
+    HttpServlet servlet = new HttpServlet() {
+      @Override
+      protected void doGet(HttpServletRequest req, HttpServletResponse resp) throws IOException {
+        OutputStream out = resp.getOutputStream();
+        for (int i = 0; i < 64; i++) {
+          out.write(chunk);
+          out.flush();
+        }
+      }
+    };
+    try (LoopbackServer streaming = new LoopbackServer(servlet).start();
+         Socket socket = new Socket("127.0.0.1", streaming.getPort())) {
+      // when
+      socket.getOutputStream().write("GET / HTTP/1.1\r\nHost: localhost\r\n\r\n".getBytes(ISO_8859_1));
+      Thread.sleep(100);
+      String response = read(socket.getInputStream());
+
+      // then
+      assertThat(response.length() - response.indexOf("\r\n\r\n") - 4).isEqualTo(64 * chunk.length);
+    }
+  }
+
+  @Test
+  public void malformed_requests_are_rejected() throws Exception {
+    try (Socket socket = new Socket("127.0.0.1", server.getPort())) {
+      // when
+      socket.getOutputStream().write("nonsense\r\n\r\n".getBytes(ISO_8859_1));
+      String response = read(socket.getInputStream());
+
+      // then
+      assertThat(response).startsWith("HTTP/1.1 400 Bad Request\r\n");
+    }
+  }
+
+  static String readUntil(InputStream in, String end) throws IOException {
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    for (int b; !new String(out.toByteArray(), ISO_8859_1).endsWith(end) && (b = in.read()) >= 0; ) {
+      out.write(b);
+    }
+    return new String(out.toByteArray(), ISO_8859_1);
+  }
+
+  static String read(InputStream in) throws IOException {
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    byte[] buffer = new byte[4096];
+    for (int n; (n = in.read(buffer)) >= 0; ) {
+      out.write(buffer, 0, n);
+    }
+    return new String(out.toByteArray(), ISO_8859_1);
+  }
+}
@@ -0,0 +1,97 @@
+/*
+Copyright 2016 Eric Karge <e.karge@struction.de>
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+  http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+*/
+package org.tinyj.test.servlet;
+
+import org.testng.annotations.Test;
+
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import java.io.InputStream;
+import java.lang.management.ManagementFactory;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class MockMetricsTest {
+
+  @Test
+  public void exchanges_and_sessions_are_counted() throws Exception {
+    // given
+    MockMetrics metrics = MockMetrics.enable();
+    long requests = metrics.getRequests();
+    long bytesIn = metrics.getBytesIn();
+    long bytesOut = metrics.getBytesOut();
+    long flushes = metrics.getFlushes();
+    long notFound = metrics.getStatusCounts().getOrDefault(404, 0L);
+    long sessions = metrics.getActiveSessions();
+
+    // when
+    HttpServletRequestMock request = new HttpServletRequestMock();
+    request.withBody("0123456789");
+    InputStream in = request.getInputStream();
+    while (in.read(new byte[4]) >= 0) {
+    }
+    request.getSession(true);
+    HttpServletResponseMock response = new HttpServletResponseMock();
+    response.setStatus(404);
+    response.getWriter().print("gone");
+    response.flushBuffer();
+    response.getWriter().close();
+
+    // then
+    assertThat(metrics.getRequests() - requests).isEqualTo(1);
+    assertThat(metrics.getBytesIn() - bytesIn).isEqualTo(10);
+    assertThat(metrics.getBytesOut() - bytesOut).isEqualTo(response.getHeaderBytes().length + 4);
+    assertThat(metrics.getFlushes() - flushes).isEqualTo(1);
+    assertThat(metrics.getStatusCounts().get(404) - notFound).isEqualTo(1);
+    assertThat(metrics.getActiveSessions() - sessions).isEqualTo(1);
+
+    // when
+    request.getSession(false).invalidate();
+
+    // then
+    assertThat(metrics.getActiveSessions() - sessions).isEqualTo(0);
+  }
+
+  @Test
+  public void metrics_are_published_over_jmx() throws Exception {
+    // given
+    MockMetrics.enable();
+    MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+
+    // when
+    Object commits = server.getAttribute(new ObjectName(MockMetrics.OBJECT_NAME), "Commits");
+
+    // then
+    assertThat(commits).isInstanceOf(Long.class);
+  }
+
+  @Test
+  public void mocks_are_not_counted_while_disabled() throws Exception {
+    // given
+    MockMetrics metrics = MockMetrics.enable();
+    long requests = metrics.getRequests();
+    MockMetrics.disable();
+
+    // when
+    new HttpServletResponseMock().close();
+
+    // then
+    assertThat(MockMetrics.get()).isNull();
+    assertThat(metrics.getRequests()).isEqualTo(requests);
+    assertThat(ManagementFactory.getPlatformMBeanServer().isRegistered(new ObjectName(MockMetrics.OBJECT_NAME)))
+        .isFalse();
+  }
+}
@@ -0,0 +1,151 @@
+/*
+Copyright 2016 Eric Karge <e.karge@struction.de>
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+  http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+*/
+package org.tinyj.test.servlet;
+
+import org.testng.annotations.Test;
+
+import javax.servlet.ServletOutputStream;
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+
+import static java.nio.charset.StandardCharsets.ISO_8859_1;
+import static java.nio.file.StandardOpenOption.READ;
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.testng.Assert.fail;
+
+public class RangeVerifierTest {
+
+  static final byte[] RESOURCE = new byte[100_000];
+
+  static {
+    for (int i = 0; i < RESOURCE.length; i++) {
+      RESOURCE[i] = (byte) (i * 31 + (i >> 8));
+    }
+  }
+
+  @SuppressWarnings("serial")
+  static class RangeServlet extends HttpServlet {
+    int skew = 0;
+
+    @Override
+    protected void service(HttpServletRequest req, HttpServletResponse resp) throws IOException {
+      List<ByteRange> ranges = ((HttpServletRequestMock) req).getRanges(RESOURCE.length);
+      ServletOutputStream out = resp.getOutputStream();
+      if (ranges == null) {
+        resp.setStatus(200);
+        out.write(RESOURCE);
+      } else if (ranges.isEmpty()) {
+        resp.setStatus(416);
+        resp.setHeader("Content-Range", "bytes */" + RESOURCE.length);
+      } else if (ranges.size() == 1) {
+        ByteRange range = ranges.get(0);
+        resp.setStatus(206);
+        resp.setHeader("Content-Range", range.toContentRange(RESOURCE.length));
+        out.write(RESOURCE, (int) range.getFirst() + skew, (int) range.length());
+      } else {
+        resp.setStatus(206);
+        resp.setContentType("multipart/byteranges; boundary=THIS_STRING_SEPARATES");
+        for (ByteRange range : ranges) {
+          out.write(("\r\n--THIS_STRING_SEPARATES\r\nContent-Type: video/mp2t\r\nContent-Range: "
+                     + range.toContentRange(RESOURCE.length) + "\r\n\r\n").getBytes(ISO_8859_1));
+          out.write(RESOURCE, (int) range.getFirst() + skew, (int) range.length());
+        }
+        out.write("\r\n--THIS_STRING_SEPARATES--\r\n".getBytes(ISO_8859_1));
+      }
+    }
+  }
+
+  static HttpServletResponseMock exchange(RangeServlet servlet, HttpServletRequestMock request) throws Exception {
+    HttpServletResponseMock response = new HttpServletResponseMock().withBodySpillThreshold(4096);
+    servlet.service(request, response);
+    response.close();
+    return response;
+  }
+
+  @Test
+  public void accepts_correct_partial_responses() throws Exception {
+    // given
+    RangeServlet servlet = new RangeServlet();
+    RangeVerifier verifier = new RangeVerifier(RESOURCE);
+
+    for (String range : new String[]{null, "bytes=100-20099", "bytes=0-9,50000-,-5", "bytes=200000-"}) {
+      // when
+      HttpServletRequestMock request = new HttpServletRequestMock().withRange(range);
+      HttpServletResponseMock response = exchange(servlet, request);
+
+      // then
+      verifier.verify(request, response);
+    }
+  }
+
+  @Test
+  public void reads_the_resource_from_a_file_channel() throws Exception {
+    // given
+    Path file = Files.createTempFile("resource", ".ts");
+    Files.write(file, RESOURCE);
+    HttpServletRequestMock request = new HttpServletRequestMock().withRange("bytes=1000-1999,90000-");
+
+    // when
+    HttpServletResponseMock response = exchange(new RangeServlet(), request);
+
+    // then
+    try (FileChannel channel = FileChannel.open(file, READ)) {
+      new RangeVerifier(channel).verify(request, response);
+    } finally {
+      Files.delete(file);
+    }
+  }
+
+  @Test
+  public void reports_where_a_part_differs() throws Exception {
+    // given
+    RangeServlet servlet = new RangeServlet();
+    servlet.skew = 1;
+    HttpServletRequestMock request = new HttpServletRequestMock().withRange("bytes=0-99,1000-1099");
+    HttpServletResponseMock response = exchange(servlet, request);
+
+    try {
+      // when
+      new RangeVerifier(RESOURCE).verify(request, response);
+      fail("expected a mismatch");
+    } catch (AssertionError e) {
+      // then
+      assertThat(e.getMessage()).contains("part 1 (bytes 0-99/100000) differs from the resource at offset 0");
+    }
+  }
+
+  @Test
+  public void reports_uncovered_ranges() throws Exception {
+    // given
+    HttpServletRequestMock request = new HttpServletRequestMock().withRange("bytes=0-99");
+    HttpServletResponseMock response = exchange(new RangeServlet(), request);
+
+    try {
+      // when
+      new RangeVerifier(RESOURCE).verify(ByteRange.parse("bytes=0-199", RESOURCE.length), response);
+      fail("expected uncovered range");
+    } catch (AssertionError e) {
+      // then
+      assertThat(e.getMessage()).contains("requested range 0-199 is not covered by [0-99]");
+    }
+  }
+}
@@ -0,0 +1,255 @@
+/*
+Copyright 2016 Eric Karge <e.karge@struction.de>
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+  http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+*/
+package org.tinyj.test.servlet;
+
+import org.testng.annotations.Test;
+
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import java.io.IOException;
+import java.time.Instant;
+
+import static java.util.concurrent.TimeUnit.SECONDS;
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class ResponseCacheTest {
+
+  static final Instant START = Instant.parse("2016-03-01T12:00:00Z");
+
+  @SuppressWarnings("serial")
+  static class Origin extends HttpServlet {
+    final String cacheControl;
+    int calls;
+    String etag = "\"v1\"";
+
+    Origin(String cacheControl) {
+      this.cacheControl = cacheControl;
+    }
+
+    @Override
+    protected void service(HttpServletRequest req, HttpServletResponse resp) throws IOException {
+      calls++;
+      if (cacheControl != null) {
+        resp.setHeader("Cache-Control", cacheControl);
+      }
+      resp.setHeader("ETag", etag);
+      if (etag.equals(req.getHeader("If-None-Match"))) {
+        resp.setStatus(304);
+        return;
+      }
+      resp.setStatus(200);
+      resp.getWriter().write("body of " + req.getRequestURI());
+    }
+  }
+
+  static HttpServletRequestMock get(String path) {
+    return new HttpServletRequestMock().withServletPath(path);
+  }
+
+  static HttpServletResponseMock exchange(ResponseCache cache, HttpServletRequestMock request) throws Exception {
+    HttpServletResponseMock response = new HttpServletResponseMock();
+    cache.service(request, response);
+    response.close();
+    return response;
+  }
+
+  @Test
+  public void fresh_responses_are_served_from_the_cache() throws Exception {
+    // given
+    VirtualClock clock = new VirtualClock(START);
+    Origin origin = new Origin("max-age=60");
+    ResponseCache cache = new ResponseCache(origin).withClock(clock);
+    exchange(cache, get("/a"));
+
+    // when
+    clock.advance(30, SECONDS);
+    HttpServletResponseMock response = exchange(cache, get("/a"));
+
+    // then
+    assertThat(origin.calls).isEqualTo(1);
+    assertThat(response.getCommitedStatus()).isEqualTo(200);
+    assertThat(new String(response.getSendBodyBytes(), "UTF-8")).isEqualTo("body of /a");
+    assertThat(response.getHeader("Age")).isEqualTo("30");
+    assertThat(cache.getHitCount()).isEqualTo(1);
+    assertThat(cache.getMissCount()).isEqualTo(1);
+    assertThat(cache.getBytesSaved()).isEqualTo("body of /a".length());
+    assertThat(cache.getHitRatio()).isEqualTo(.5);
+  }
+
+  @Test
+  public void stale_responses_are_revalidated() throws Exception {
+    // given
+    VirtualClock clock = new VirtualClock(START);
+    Origin origin = new Origin("max-age=60");
+    ResponseCache cache = new ResponseCache(origin).withClock(clock);
+    exchange(cache, get("/a"));
+
+    // when
+    clock.advance(61, SECONDS);
+    HttpServletResponseMock notModified = exchange(cache, get("/a"));
+    origin.etag = "\"v2\"";
+    clock.advance(61, SECONDS);
+    HttpServletResponseMock changed = exchange(cache, get("/a"));
+
+    // then
+    assertThat(origin.calls).isEqualTo(3);
+    assertThat(notModified.getCommitedStatus()).isEqualTo(200);
+    assertThat(new String(notModified.getSendBodyBytes(), "UTF-8")).isEqualTo("body of /a");
+    assertThat(notModified.getHeader("Age")).isEqualTo("0");
+    assertThat(changed.getHeader("ETag")).isEqualTo("\"v2\"");
+    assertThat(cache.getRevalidationCount()).isEqualTo(2);
+    assertThat(cache.getNotModifiedCount()).isEqualTo(1);
+    assertThat(cache.getNotModifiedRate()).isEqualTo(.5);
+    assertThat(cache.getMissCount()).isEqualTo(2);
+  }
+
+  @Test
+  public void no_store_private_and_unsafe_methods_are_not_cached() throws Exception {
+    // given
+    Origin noStore = new Origin("no-store");
+    Origin privateOrigin = new Origin("private, max-age=60");
+    ResponseCache noStoreCache = new ResponseCache(noStore);
+    ResponseCache sharedCache = new ResponseCache(privateOrigin);
+    ResponseCache privateCache = new ResponseCache(privateOrigin).withPrivateCache();
+
+    // when
+    exchange(noStoreCache, get("/a"));
+    exchange(sharedCache, get("/a"));
+    exchange(privateCache, get("/a"));
+    exchange(privateCache, get("/a").withMethod("POST"));
+
+    // then
+    assertThat(noStoreCache.getEntryCount()).isZero();
+    assertThat(sharedCache.getEntryCount()).isZero();
+    assertThat(privateCache.getEntryCount()).isZero();
+    assertThat(privateCache.getBypassCount()).isEqualTo(1);
+  }
+
+  @Test
+  public void expires_and_heuristic_freshness() throws Exception {
+    // given
+    VirtualClock clock = new VirtualClock(START);
+    @SuppressWarnings("serial")
+    HttpServlet origin = new HttpServlet() {
+      @Override
+      protected void service(HttpServletRequest req, HttpServletResponse resp) {
+        if (req.getServletPath().equals("/expires")) {
+          resp.setDateHeader("Expires", START.plusSeconds(10).toEpochMilli());
+        } else {
+          resp.setDateHeader("Last-Modified", START.minusSeconds(1000).toEpochMilli());
+        }
+      }
+    };
+    ResponseCache cache = new ResponseCache(origin).withClock(clock);
+    exchange(cache, get("/expires"));
+    exchange(cache, get("/heuristic"));
+
+    // when
+    clock.advance(9, SECONDS);
+    exchange(cache, get("/expires"));
+    exchange(cache, get("/heuristic"));
+    clock.advance(2, SECONDS);
+    exchange(cache, get("/expires"));
+
+    // then
+    assertThat(cache.getHitCount()).isEqualTo(2);
+    assertThat(cache.getMissCount()).isEqualTo(3);
+  }
+
+  @Test
+  public void least_recently_used_entries_are_evicted() throws Exception {
+    // given
+    ResponseCache cache = new ResponseCache(new Origin("max-age=60")).withMaxEntries(2);
+    exchange(cache, get("/a"));
+    exchange(cache, get("/b"));
+    exchange(cache, get("/a"));
+
+    // when
+    exchange(cache, get("/c"));
+    exchange(cache, get("/a"));
+    exchange(cache, get("/b"));
+
+    // then
+    assertThat(cache.getEvictionCount()).isEqualTo(2);
+    assertThat(cache.getHitCount()).isEqualTo(2);
+    assertThat(cache.getMissCount()).isEqualTo(4);
+    assertThat(cache.getEntryCount()).isEqualTo(2);
+  }
+
+  @Test
+  public void entries_are_evicted_by_size() throws Exception {
+    // given
+    ResponseCache cache = new ResponseCache(new Origin("max-age=60"));
+    exchange(cache, get("/a"));
+    long entrySize = cache.getSize();
+    cache.clear();
+    cache.withMaxBytes(entrySize * 2);
+
+    // when
+    exchange(cache, get("/a"));
+    exchange(cache, get("/b"));
+    exchange(cache, get("/c"));
+
+    // then
+    assertThat(cache.getEntryCount()).isEqualTo(2);
+    assertThat(cache.getSize()).isLessThanOrEqualTo(entrySize * 2);
+    assertThat(cache.getEvictionCount()).isEqualTo(1);
+  }
+
+  @Test
+  public void conditional_client_requests_do_not_poison_the_cache() throws Exception {
+    // given
+    Origin origin = new Origin("max-age=60");
+    ResponseCache cache = new ResponseCache(origin);
+
+    // when
+    HttpServletResponseMock conditional = exchange(cache, get("/a").withHeader("If-None-Match", "\"v1\""));
+    HttpServletResponseMock plain = exchange(cache, get("/a"));
+    HttpServletResponseMock revalidating = exchange(cache, get("/a").withHeader("If-None-Match", "W/\"v1\""));
+
+    // then
+    assertThat(conditional.getCommitedStatus()).isEqualTo(304);
+    assertThat(conditional.getSendBodyBytes()).isEmpty();
+    assertThat(conditional.getHeader("ETag")).isEqualTo("\"v1\"");
+    assertThat(plain.getCommitedStatus()).isEqualTo(200);
+    assertThat(new String(plain.getSendBodyBytes(), "UTF-8")).isEqualTo("body of /a");
+    assertThat(revalidating.getCommitedStatus()).isEqualTo(304);
+    assertThat(origin.calls).isEqualTo(1);
+    assertThat(cache.getClientNotModifiedCount()).isEqualTo(2);
+    assertThat(cache.getHitCount()).isEqualTo(2);
+  }
+
+  @Test
+  public void not_modified_responses_are_never_stored() throws Exception {
+    // given
+    @SuppressWarnings("serial")
+    HttpServlet origin = new HttpServlet() {
+      @Override
+      protected void service(HttpServletRequest req, HttpServletResponse resp) {
+        resp.setHeader("Cache-Control", "max-age=60");
+        resp.setStatus(304);
+      }
+    };
+    ResponseCache cache = new ResponseCache(origin);
+
+    // when
+    exchange(cache, get("/a"));
+
+    // then
+    assertThat(cache.getEntryCount()).isZero();
+  }
+}
@@ -0,0 +1,102 @@
+/*
+Copyright 2016 Eric Karge <e.karge@struction.de>
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+  http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+*/
+package org.tinyj.test.servlet;
+
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+import static java.nio.charset.StandardCharsets.US_ASCII;
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.fail;
+import static org.tinyj.test.servlet.ResponseSnapshot.snapshot;
+
+public class ResponseSnapshotTest {
+
+  private Path golden;
+  private HttpServletResponseMock response;
+
+  @BeforeMethod
+  public void setUp() throws Exception {
+    golden = Files.createTempFile("golden", ".http");
+    golden.toFile().deleteOnExit();
+    response = new HttpServletResponseMock();
+    response.getOutputStream().write("message body".getBytes(US_ASCII));
+    response.close();
+  }
+
+  @Test
+  public void update_mode_writes_the_golden_file() throws Exception {
+    // when
+    snapshot(golden).withUpdate(true).assertMatches(response);
+
+    // then
+    assertThat(new String(Files.readAllBytes(golden), US_ASCII)).isEqualTo("HTTP/1.1 200 OK\r\n" +
+                                                                           "Content-Length: 12\r\n" +
+                                                                           "\r\n" +
+                                                                           "message body");
+  }
+
+  @Test
+  public void matching_response_passes() throws Exception {
+    // given
+    snapshot(golden).withUpdate(true).assertMatches(response);
+
+    // expect
+    snapshot(golden).withUpdate(false).assertMatches(response);
+  }
+
+  @Test
+  public void first_difference_is_reported_with_context() throws Exception {
+    // given
+    Files.write(golden, ("HTTP/1.1 200 OK\r\n" +
+                         "Content-Length: 12\r\n" +
+                         "\r\n" +
+                         "massage body").getBytes(US_ASCII));
+
+    try {
+      // when
+      snapshot(golden).withUpdate(false).withContext(4).assertMatches(response);
+      fail("snapshot should not match");
+    } catch (AssertionError e) {
+      // then
+      assertThat(e.getMessage())
+          .contains("at offset 40 (body offset 1)")
+          .contains("expected: \"\\n\\r\\nmassa\"")
+          .contains("actual:   \"\\n\\r\\nmessa\"");
+    }
+  }
+
+  @Test
+  public void truncated_golden_file_is_reported() throws Exception {
+    // given
+    Files.write(golden, ("HTTP/1.1 200 OK\r\n" +
+                         "Content-Length: 12\r\n" +
+                         "\r\n" +
+                         "message").getBytes(US_ASCII));
+
+    try {
+      // when
+      snapshot(golden).withUpdate(false).assertMatches(response);
+      fail("snapshot should not match");
+    } catch (AssertionError e) {
+      // then
+      assertThat(e.getMessage()).contains("at offset 46 (body offset 7)").contains("<EOF>");
+    }
+  }
+}
@@ -0,0 +1,90 @@
+/*
+Copyright 2016 Eric Karge <e.karge@struction.de>
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+  http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+*/
+package org.tinyj.test.servlet;
+
+import org.testng.annotations.Test;
+
+import java.nio.ByteBuffer;
+
+import static java.nio.charset.StandardCharsets.US_ASCII;
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class ResponseViewTest {
+
+  @Test
+  public void status_line_headers_and_body_of_a_recorded_response() throws Exception {
+    // given
+    HttpServletResponseMock response = new HttpServletResponseMock();
+    response.setStatus(404);
+    response.addHeader("X-List", "first");
+    response.addHeader("X-List", "second");
+    response.getOutputStream().write("not here".getBytes(US_ASCII));
+    response.close();
+
+    // when
+    ResponseView view = ResponseView.of(response);
+
+    // then
+    assertThat(view.getProtocol()).isEqualTo("HTTP/1.1");
+    assertThat(view.getStatus()).isEqualTo(404);
+    assertThat(view.getReason()).isEqualTo("Not Found");
+    assertThat(view.getHeaderCount()).isEqualTo(3);
+    assertThat(view.getContentLength()).isEqualTo(8);
+    assertThat(view.getHeader("x-list")).isEqualTo("first");
+    assertThat(view.getHeaders("X-List")).containsExactly("first", "second");
+    assertThat(view.containsHeader("Content-Type")).isFalse();
+    assertThat(toString(view.getBody(4, 4))).isEqualTo("here");
+  }
+
+  @Test
+  public void recorded_header_is_read_in_place_but_not_exposed_writable() throws Exception {
+    // given
+    HttpServletResponseMock response = new HttpServletResponseMock();
+    response.getOutputStream().write("body".getBytes(US_ASCII));
+    response.close();
+
+    // when
+    ResponseView view = ResponseView.of(response);
+
+    // then
+    assertThat(view.header.hasArray()).isTrue();
+    assertThat(view.getBody().isReadOnly()).isTrue();
+    assertThat(view.getBody(1, 2).isReadOnly()).isTrue();
+  }
+
+  @Test
+  public void chunked_body_is_decoded() throws Exception {
+    // given
+    ResponseView view = ResponseView.parse(ByteBuffer.wrap(("HTTP/1.1 200 OK\r\n" +
+                                                            "Transfer-Encoding: chunked\r\n" +
+                                                            "\r\n" +
+                                                            "5\r\nHello\r\n" +
+                                                            "7;ext=1\r\n, World\r\n" +
+                                                            "0\r\n\r\n").getBytes(US_ASCII)));
+
+    // expect
+    assertThat(view.isChunked()).isTrue();
+    assertThat(view.getChunks()).hasSize(2);
+    assertThat(view.getDecodedBodySize()).isEqualTo(12);
+    assertThat(toString(view.getDecodedBody())).isEqualTo("Hello, World");
+  }
+
+  private static String toString(ByteBuffer buffer) {
+    byte[] bytes = new byte[buffer.remaining()];
+    buffer.duplicate().get(bytes);
+    return new String(bytes, US_ASCII);
+  }
+}
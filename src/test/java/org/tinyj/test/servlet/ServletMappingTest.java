@@ -0,0 +1,156 @@
+/*
+Copyright 2016 Eric Karge <e.karge@struction.de>
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+  http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+*/
+package org.tinyj.test.servlet;
+
+import org.testng.annotations.Test;
+import org.tinyj.test.servlet.ServletMapping.Match;
+
+import javax.servlet.GenericServlet;
+import javax.servlet.Servlet;
+import javax.servlet.ServletRequest;
+import javax.servlet.ServletResponse;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.testng.Assert.fail;
+import static org.tinyj.test.servlet.ServletMapping.MatchType.*;
+
+public class ServletMappingTest {
+
+  static final Servlet exact = new NamedServlet();
+  static final Servlet prefix = new NamedServlet();
+  static final Servlet nested = new NamedServlet();
+  static final Servlet jsp = new NamedServlet();
+  static final Servlet welcome = new NamedServlet();
+  static final Servlet fallback = new NamedServlet();
+
+  static ServletMapping mapping() {
+    return new ServletMapping("/catalog")
+        .map("/foo/bar", exact)
+        .map("/foo/*", prefix)
+        .map("/foo/bar/baz/*", nested)
+        .map("*.jsp", jsp)
+        .map("", welcome)
+        .map("/", fallback);
+  }
+
+  @Test
+  public void matches_in_specification_order() {
+    // given
+    ServletMapping mapping = mapping();
+
+    // then
+    assertMatch(mapping.match("/catalog/foo/bar"), EXACT, exact, "/foo/bar", null);
+    assertMatch(mapping.match("/catalog/foo/bar/index.jsp"), PREFIX, prefix, "/foo", "/bar/index.jsp");
+    assertMatch(mapping.match("/catalog/foo"), PREFIX, prefix, "/foo", null);
+    assertMatch(mapping.match("/catalog/foo/bar/baz/qux"), PREFIX, nested, "/foo/bar/baz", "/qux");
+    assertMatch(mapping.match("/catalog/index.jsp"), EXTENSION, jsp, "/index.jsp", null);
+    assertMatch(mapping.match("/catalog/a/b.jsp"), EXTENSION, jsp, "/a/b.jsp", null);
+    assertMatch(mapping.match("/catalog/a.jsp/b"), DEFAULT, fallback, "/a.jsp/b", null);
+    assertMatch(mapping.match("/catalog/"), CONTEXT_ROOT, welcome, "", "/");
+    assertMatch(mapping.match("/catalog"), CONTEXT_ROOT, welcome, "", "/");
+    assertMatch(mapping.match("/catalog/other"), DEFAULT, fallback, "/other", null);
+  }
+
+  @Test
+  public void uris_outside_the_context_do_not_match() {
+    // given
+    ServletMapping mapping = mapping();
+
+    // then
+    assertThat(mapping.match("/catalogue/foo")).isNull();
+    assertThat(mapping.match("/foo/bar")).isNull();
+    assertThat(new ServletMapping().map("/foo", exact).match("/bar")).isNull();
+  }
+
+  @Test
+  public void query_string_is_ignored_when_matching() {
+    // given
+    ServletMapping mapping = mapping();
+
+    // when
+    Match match = mapping.match("/catalog/foo/bar?x=/foo/*.jsp");
+
+    // then
+    assertMatch(match, EXACT, exact, "/foo/bar", null);
+    assertThat(match.getRequestURI()).isEqualTo("/catalog/foo/bar");
+  }
+
+  @Test
+  public void root_prefix_mapping_catches_everything() {
+    // given
+    ServletMapping mapping = new ServletMapping().map("/*", prefix).map("*.jsp", jsp);
+
+    // then
+    assertMatch(mapping.match("/a/b.jsp"), PREFIX, prefix, "", "/a/b.jsp");
+    assertMatch(mapping.match(""), PREFIX, prefix, "", null);
+  }
+
+  @Test
+  public void route_decomposes_the_uri_into_the_request() {
+    // given
+    HttpServletRequestMock request = new HttpServletRequestMock();
+
+    // when
+    Servlet servlet = mapping().route("/catalog/foo/bar/baz/qux?page=2", request);
+
+    // then
+    assertThat(servlet).isSameAs(nested);
+    assertThat(request.getContextPath()).isEqualTo("/catalog");
+    assertThat(request.getServletPath()).isEqualTo("/foo/bar/baz");
+    assertThat(request.getPathInfo()).isEqualTo("/qux");
+    assertThat(request.getRequestURI()).isEqualTo("/catalog/foo/bar/baz/qux");
+    assertThat(request.getQueryString()).isEqualTo("page=2");
+    assertThat(request.getParameter("page")).isEqualTo("2");
+  }
+
+  @Test
+  public void invalid_and_duplicate_patterns_are_rejected() {
+    for (String pattern : new String[]{"foo", "/foo/*/bar", "*.a/b", "/foo*"}) {
+      try {
+        // when
+        new ServletMapping().map(pattern, exact);
+        fail("expected '" + pattern + "' to be rejected");
+      } catch (IllegalArgumentException e) {
+        // then
+        assertThat(e.getMessage()).contains(pattern);
+      }
+    }
+    try {
+      // when
+      mapping().map("*.jsp", exact);
+      fail("expected duplicate mapping to be rejected");
+    } catch (IllegalArgumentException e) {
+      // then
+      assertThat(e.getMessage()).contains("already mapped");
+    }
+  }
+
+  static void assertMatch(Match match, ServletMapping.MatchType type, Servlet servlet,
+                          String servletPath, String pathInfo) {
+    assertThat(match).isNotNull();
+    assertThat(match.getType()).isEqualTo(type);
+    assertThat(match.getServlet()).isSameAs(servlet);
+    assertThat(match.getServletPath()).isEqualTo(servletPath);
+    assertThat(match.getPathInfo()).isEqualTo(pathInfo);
+  }
+
+  @SuppressWarnings("serial")
+  static class NamedServlet extends GenericServlet {
+    @Override
+    public void service(ServletRequest req, ServletResponse res) {
+    }
+  }
+}
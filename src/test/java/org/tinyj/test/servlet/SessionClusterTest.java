@@ -0,0 +1,205 @@
+/*
+Copyright 2016 Eric Karge <e.karge@struction.de>
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+  http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+*/
+package org.tinyj.test.servlet;
+
+import org.testng.annotations.Test;
+
+import static java.util.concurrent.TimeUnit.SECONDS;
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.tinyj.test.servlet.SessionCluster.Mode.DELTA;
+import static org.tinyj.test.servlet.SessionCluster.Mode.FULL;
+
+public class SessionClusterTest {
+
+  @Test
+  public void changes_arrive_on_other_nodes_after_the_latency() throws Exception {
+    // given
+    SessionCluster cluster = new SessionCluster(3, DELTA).withLatency(10);
+    HttpServletRequestMock request = cluster.request(0, null);
+    HttpSessionMock session = request.getSession(true);
+    session.setAttribute("user", "alice");
+
+    // when
+    SessionCluster.Replication replication = cluster.complete(0, request);
+
+    // then
+    assertThat(replication.messages).isEqualTo(2);
+    assertThat(cluster.getNode(1).getSession(session.getId())).isNull();
+
+    // when
+    cluster.advance(10);
+
+    // then
+    HttpSessionMock replica = cluster.getNode(2).getSession(session.getId());
+    assertThat(replica).isNotSameAs(session);
+    assertThat(replica.getAttribute("user")).isEqualTo("alice");
+  }
+
+  @Test
+  public void delta_mode_sends_less_than_full_mode() throws Exception {
+    long delta = replicatedBytes(new SessionCluster(2, DELTA));
+    long full = replicatedBytes(new SessionCluster(2, FULL));
+
+    assertThat(delta).isLessThan(full);
+  }
+
+  @Test
+  public void removals_and_invalidation_are_replicated() throws Exception {
+    // given
+    SessionCluster cluster = new SessionCluster(2, DELTA);
+    HttpServletRequestMock first = cluster.request(0, null);
+    HttpSessionMock session = first.getSession(true);
+    session.setAttribute("a", 1);
+    session.setAttribute("b", 2);
+    cluster.complete(0, first);
+
+    // when
+    HttpServletRequestMock second = cluster.request(1, session.getId());
+    second.getSession(false).removeAttribute("a");
+    cluster.complete(1, second);
+
+    // then
+    assertThat(session.getAttribute("a")).isNull();
+    assertThat(session.getAttribute("b")).isEqualTo(2);
+
+    // when
+    HttpServletRequestMock third = cluster.request(0, session.getId());
+    third.getSession(false).invalidate();
+    cluster.complete(0, third);
+
+    // then
+    assertThat(cluster.getNode(1).size()).isEqualTo(0);
+    assertThat(cluster.getRequestCount()).isEqualTo(3);
+    assertThat(cluster.getMessagesPerRequest()).isEqualTo(1.0);
+  }
+
+  @Test
+  public void access_time_is_replicated_so_replicas_do_not_expire_early() throws Exception {
+    // given
+    VirtualClock clock = new VirtualClock();
+    SessionCluster cluster = new SessionCluster(2, DELTA, clock);
+    cluster.getNode(0).withMaxInactiveInterval(60);
+    cluster.getNode(1).withMaxInactiveInterval(60);
+    HttpServletRequestMock first = cluster.request(0, null);
+    HttpSessionMock session = first.getSession(true);
+    session.setAttribute("user", "alice");
+    cluster.complete(0, first);
+
+    // when
+    clock.advance(50, SECONDS);
+    HttpServletRequestMock reading = cluster.request(0, session.getId());
+    reading.getSession(false).getAttribute("user");
+    SessionCluster.Replication replication = cluster.complete(0, reading);
+    clock.advance(50, SECONDS);
+
+    // then
+    assertThat(replication.messages).isEqualTo(1);
+    HttpSessionMock replica = cluster.getNode(1).getSession(session.getId());
+    assertThat(replica).isNotNull();
+    assertThat(replica.getLastAccessedTime()).isEqualTo(session.getLastAccessedTime());
+    assertThat(replica.getAttribute("user")).isEqualTo("alice");
+  }
+
+  @Test
+  public void full_mode_replicates_sessions_that_were_only_read() throws Exception {
+    // given
+    SessionCluster cluster = new SessionCluster(2, FULL);
+    HttpServletRequestMock first = cluster.request(0, null);
+    HttpSessionMock session = first.getSession(true);
+    session.setAttribute("user", "alice");
+    cluster.complete(0, first);
+    cluster.getNode(1).getSession(session.getId()).setAttribute("user", "stale");
+
+    // when
+    HttpServletRequestMock reading = cluster.request(0, session.getId());
+    reading.getSession(false);
+    cluster.complete(0, reading);
+
+    // then
+    assertThat(cluster.getNode(1).getSession(session.getId()).getAttribute("user")).isEqualTo("alice");
+  }
+
+  @Test
+  public void stale_routing_does_not_invalidate_the_primary() throws Exception {
+    // given
+    SessionCluster cluster = new SessionCluster(2, DELTA).withLatency(10);
+    HttpServletRequestMock first = cluster.request(0, null);
+    HttpSessionMock session = first.getSession(true);
+    session.setAttribute("user", "alice");
+    cluster.complete(0, first);
+
+    // when
+    HttpServletRequestMock stale = cluster.request(1, session.getId());
+    assertThat(stale.getSession(false)).isNull();
+    SessionCluster.Replication replication = cluster.complete(1, stale);
+    cluster.deliverAll();
+
+    // then
+    assertThat(replication.messages).isEqualTo(0);
+    assertThat(session.isValid()).isTrue();
+    assertThat(cluster.getNode(0).getSession(session.getId())).isSameAs(session);
+    assertThat(cluster.getNode(1).getSession(session.getId()).getAttribute("user")).isEqualTo("alice");
+  }
+
+  @Test
+  public void invalidation_followed_by_a_new_session_replicates_both() throws Exception {
+    // given
+    SessionCluster cluster = new SessionCluster(2, DELTA);
+    HttpServletRequestMock first = cluster.request(0, null);
+    HttpSessionMock old = first.getSession(true);
+    cluster.complete(0, first);
+
+    // when
+    HttpServletRequestMock login = cluster.request(0, old.getId());
+    login.getSession(false).invalidate();
+    HttpSessionMock fresh = login.getSession(true);
+    fresh.setAttribute("user", "alice");
+    SessionCluster.Replication replication = cluster.complete(0, login);
+
+    // then
+    assertThat(replication.messages).isEqualTo(2);
+    assertThat(cluster.getNode(1).getSession(old.getId())).isNull();
+    assertThat(cluster.getNode(1).getSession(fresh.getId()).getAttribute("user")).isEqualTo("alice");
+  }
+
+  @Test
+  public void max_inactive_interval_is_replicated() throws Exception {
+    // given
+    SessionCluster cluster = new SessionCluster(2, DELTA);
+    HttpServletRequestMock request = cluster.request(0, null);
+    HttpSessionMock session = request.getSession(true);
+
+    // when
+    session.setMaxInactiveInterval(42);
+    cluster.complete(0, request);
+
+    // then
+    assertThat(cluster.getNode(1).getSession(session.getId()).getMaxInactiveInterval()).isEqualTo(42);
+  }
+
+  private long replicatedBytes(SessionCluster cluster) throws Exception {
+    HttpServletRequestMock first = cluster.request(0, null);
+    HttpSessionMock session = first.getSession(true);
+    session.setAttribute("payload", new byte[10_000]);
+    cluster.complete(0, first);
+    long initial = cluster.getReplicatedBytes();
+
+    HttpServletRequestMock second = cluster.request(0, session.getId());
+    second.getSession(false).setAttribute("counter", 1);
+    cluster.complete(0, second);
+    return cluster.getReplicatedBytes() - initial;
+  }
+}
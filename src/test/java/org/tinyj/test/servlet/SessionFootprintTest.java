@@ -0,0 +1,90 @@
+/*
+Copyright 2016 Eric Karge <e.karge@struction.de>
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+  http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+*/
+package org.tinyj.test.servlet;
+
+import org.testng.annotations.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.fail;
+
+public class SessionFootprintTest {
+
+  @Test
+  public void attribute_sizes_and_high_water_mark_are_tracked() throws Exception {
+    // given
+    SessionFootprint footprint = new SessionFootprint();
+    HttpSessionMock session = new HttpSessionMock().withFootprint(footprint);
+
+    // when
+    session.setAttribute("small", 42);
+    session.putValue("large", new byte[10_000]);
+    session.removeAttribute("large");
+
+    // then
+    assertThat(footprint.getAttributes()).containsOnlyKeys("small");
+    assertThat(footprint.getAttributes().get("small").retainedSize).isEqualTo(16);
+    assertThat(footprint.getRetainedSize()).isEqualTo(16);
+    assertThat(footprint.getHighWaterMark()).isGreaterThan(10_000);
+  }
+
+  @Test
+  public void object_graphs_are_walked() throws Exception {
+    // given
+    SessionFootprint footprint = new SessionFootprint();
+    List<Node> graph = new ArrayList<>();
+    for (int i = 0; i < 100; i++) {
+      graph.add(new Node("node " + i, new long[16]));
+    }
+
+    // when
+    footprint.measure("graph", graph);
+
+    // then
+    SessionFootprint.Entry entry = footprint.getAttributes().get("graph");
+    assertThat(entry.retainedSize).isGreaterThan(100 * (16 * 8));
+    assertThat(entry.serializedSize).isEqualTo(-1);
+  }
+
+  @Test
+  public void exceeding_the_budget_fails() throws Exception {
+    // given
+    HttpSessionMock session = new SessionManager().withFootprintBudget(1000).createSession();
+    session.setAttribute("fits", "small");
+
+    try {
+      // when
+      session.setAttribute("too large", new int[1000]);
+      fail("budget should be exceeded");
+    } catch (AssertionError e) {
+      // then
+      assertThat(e.getMessage()).contains("after setting 'too large', budget is 1000 bytes");
+    }
+  }
+
+  static class Node {
+
+    final String name;
+    final long[] values;
+
+    Node(String name, long[] values) {
+      this.name = name;
+      this.values = values;
+    }
+  }
+}
@@ -0,0 +1,179 @@
+/*
+Copyright 2016 Eric Karge <e.karge@struction.de>
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+  http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+*/
+package org.tinyj.test.servlet;
+
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import javax.servlet.http.*;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class SessionManagerTest {
+
+  private SessionManager manager;
+  private List<String> events;
+
+  @BeforeMethod
+  public void setUp() throws Exception {
+    events = new ArrayList<>();
+    manager = new SessionManager().withMaxInactiveInterval(60).withListener(new HttpSessionListener() {
+      @Override
+      public void sessionCreated(HttpSessionEvent se) {
+        events.add("created " + se.getSession().getId());
+      }
+
+      @Override
+      public void sessionDestroyed(HttpSessionEvent se) {
+        events.add("destroyed " + se.getSession().getId());
+      }
+    });
+  }
+
+  @Test
+  public void session_is_created_once_per_request_and_found_by_later_requests() throws Exception {
+    // given
+    HttpServletRequestMock first = new HttpServletRequestMock().withSessionManager(manager);
+
+    // when
+    HttpSessionMock session = first.getSession(true);
+
+    // then
+    assertThat(first.getSession(true)).isSameAs(session);
+    assertThat(session.isNew()).isTrue();
+    assertThat(session.getId()).hasSize(32);
+    assertThat(manager.size()).isEqualTo(1);
+    assertThat(events).containsExactly("created " + session.getId());
+
+    // when
+    HttpServletRequestMock second = new HttpServletRequestMock()
+        .withSessionManager(manager)
+        .withRequestedSessionId(session.getId());
+
+    // then
+    assertThat(second.isRequestedSessionIdValid()).isTrue();
+    assertThat(second.getSession(false)).isSameAs(session);
+    assertThat(session.isNew()).isFalse();
+  }
+
+  @Test
+  public void idle_sessions_expire() throws Exception {
+    // given
+    HttpSessionMock idle = manager.createSession();
+    HttpSessionMock busy = manager.createSession();
+    busy.setMaxInactiveInterval(3600);
+    long now = System.currentTimeMillis();
+
+    // when
+    manager.expireSessions(now + 30_000);
+
+    // then
+    assertThat(manager.size()).isEqualTo(2);
+
+    // when
+    manager.expireSessions(now + 61_000);
+
+    // then
+    assertThat(idle.isValid()).isFalse();
+    assertThat(busy.isValid()).isTrue();
+    assertThat(manager.getSessions()).containsExactly(busy);
+    assertThat(manager.getExpiredCount()).isEqualTo(1);
+    assertThat(events).endsWith("destroyed " + idle.getId());
+
+    // when
+    manager.expireSessions(now + 3_601_000);
+
+    // then
+    assertThat(busy.isValid()).isFalse();
+    assertThat(manager.size()).isEqualTo(0);
+  }
+
+  @Test
+  public void session_id_can_be_changed() throws Exception {
+    // given
+    HttpServletRequestMock request = new HttpServletRequestMock().withSessionManager(manager);
+    HttpSessionMock session = request.getSession(true);
+    String oldId = session.getId();
+
+    // when
+    String newId = request.changeSessionId();
+
+    // then
+    assertThat(newId).isNotEqualTo(oldId);
+    assertThat(manager.getSession(oldId)).isNull();
+    assertThat(manager.getSession(newId)).isSameAs(session);
+  }
+
+  @Test
+  public void invalidated_session_is_removed() throws Exception {
+    // given
+    HttpSessionMock session = manager.createSession();
+
+    // when
+    session.invalidate();
+
+    // then
+    assertThat(manager.getSession(session.getId())).isNull();
+    assertThat(events).containsExactly("created " + session.getId(), "destroyed " + session.getId());
+  }
+
+  @Test
+  public void attribute_and_binding_listeners_are_notified() throws Exception {
+    // given
+    manager.withAttributeListener(new HttpSessionAttributeListener() {
+      @Override
+      public void attributeAdded(HttpSessionBindingEvent event) {
+        events.add("added " + event.getName());
+      }
+
+      @Override
+      public void attributeRemoved(HttpSessionBindingEvent event) {
+        events.add("removed " + event.getName());
+      }
+
+      @Override
+      public void attributeReplaced(HttpSessionBindingEvent event) {
+        events.add("replaced " + event.getName());
+      }
+    });
+    HttpSessionMock session = manager.createSession();
+    events.clear();
+
+    // when
+    session.setAttribute("bound", new HttpSessionBindingListener() {
+      @Override
+      public void valueBound(HttpSessionBindingEvent event) {
+        events.add("bound " + event.getName());
+      }
+
+      @Override
+      public void valueUnbound(HttpSessionBindingEvent event) {
+        events.add("unbound " + event.getName());
+      }
+    });
+    session.setAttribute("plain", "x");
+    session.setAttribute("plain", "y");
+    session.invalidate();
+
+    // then
+    assertThat(events.subList(0, 5)).containsExactly(
+        "bound bound", "added bound", "added plain", "replaced plain", "destroyed " + session.getId());
+    assertThat(events.subList(5, events.size())).containsOnly("unbound bound", "removed bound", "removed plain");
+    assertThat(events.indexOf("unbound bound")).isLessThan(events.indexOf("removed bound"));
+  }
+}
@@ -0,0 +1,159 @@
+/*
+Copyright 2016 Eric Karge <e.karge@struction.de>
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+  http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+*/
+package org.tinyj.test.servlet;
+
+import org.testng.annotations.DataProvider;
+import org.testng.annotations.Test;
+import org.tinyj.test.servlet.support.OffHeapStore;
+
+import javax.servlet.http.HttpSessionActivationListener;
+import javax.servlet.http.HttpSessionBindingEvent;
+import javax.servlet.http.HttpSessionBindingListener;
+import javax.servlet.http.HttpSessionEvent;
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class SessionPassivatorTest {
+
+  static final List<String> events = new ArrayList<>();
+
+  @DataProvider
+  public Object[][] stores() throws Exception {
+    return new Object[][]{
+        {OffHeapStore.direct(64)},
+        {OffHeapStore.mapped(64)}};
+  }
+
+  @Test(dataProvider = "stores")
+  public void idle_sessions_are_passivated_and_activated_on_access(OffHeapStore store) throws Exception {
+    // given
+    events.clear();
+    SessionPassivator passivator = new SessionPassivator(store);
+    SessionManager manager = new SessionManager().withPassivation(passivator, 60);
+    HttpSessionMock session = manager.createSession();
+    session.setAttribute("cart", new Cart("1234"));
+    session.setAttribute("payload", new byte[1000]);
+
+    // when
+    int passivated = manager.passivateIdleSessions(System.currentTimeMillis() + 61_000);
+
+    // then
+    assertThat(passivated).isEqualTo(1);
+    assertThat(session.isPassivated()).isTrue();
+    assertThat(events).containsExactly("passivate 1234");
+    assertThat(passivator.getSerializedSize(session.getId())).isGreaterThan(1000);
+    assertThat(store.count()).isEqualTo(1);
+
+    // when
+    HttpSessionMock accessed = new HttpServletRequestMock()
+        .withSessionManager(manager)
+        .withRequestedSessionId(session.getId())
+        .getSession(false);
+
+    // then
+    assertThat(accessed).isSameAs(session);
+    assertThat(session.isPassivated()).isFalse();
+    assertThat(((Cart) session.getAttribute("cart")).id).isEqualTo("1234");
+    assertThat((byte[]) session.getAttribute("payload")).hasSize(1000);
+    assertThat(events).containsExactly("passivate 1234", "activate 1234");
+    assertThat(store.count()).isEqualTo(0);
+  }
+
+  @Test
+  public void sessions_with_non_serializable_attributes_stay_in_memory() throws Exception {
+    // given
+    SessionPassivator passivator = new SessionPassivator(OffHeapStore.direct(64));
+    HttpSessionMock session = new SessionManager().withPassivation(passivator, 0).createSession();
+    session.setAttribute("lock", new Object());
+
+    // when
+    int size = passivator.passivate(session);
+
+    // then
+    assertThat(size).isEqualTo(-1);
+    assertThat(session.isPassivated()).isFalse();
+    assertThat(passivator.getRejectedCount()).isEqualTo(1);
+  }
+
+  @Test
+  public void unmanaged_sessions_are_activated_on_access() throws Exception {
+    // given
+    events.clear();
+    SessionPassivator passivator = new SessionPassivator(OffHeapStore.direct(64));
+    HttpSessionMock session = new HttpSessionMock();
+    session.setAttribute("cart", new Cart("5678"));
+    passivator.passivate(session);
+
+    // when
+    Object cart = session.getAttribute("cart");
+
+    // then
+    assertThat(((Cart) cart).id).isEqualTo("5678");
+    assertThat(session.isPassivated()).isFalse();
+    assertThat(events).containsExactly("passivate 5678", "activate 5678");
+  }
+
+  @Test
+  public void invalidating_a_passivated_session_unbinds_its_attributes() throws Exception {
+    // given
+    events.clear();
+    OffHeapStore store = OffHeapStore.direct(64);
+    SessionPassivator passivator = new SessionPassivator(store);
+    HttpSessionMock session = new SessionManager().withPassivation(passivator, 0).createSession();
+    session.setAttribute("cart", new Cart("9012"));
+    passivator.passivate(session);
+
+    // when
+    session.invalidate();
+
+    // then
+    assertThat(events).containsExactly("passivate 9012", "activate 9012", "unbound 9012");
+    assertThat(store.count()).isEqualTo(0);
+  }
+
+  static class Cart implements Serializable, HttpSessionActivationListener, HttpSessionBindingListener {
+
+    private static final long serialVersionUID = 1L;
+
+    final String id;
+
+    Cart(String id) {
+      this.id = id;
+    }
+
+    @Override
+    public void sessionWillPassivate(HttpSessionEvent se) {
+      events.add("passivate " + id);
+    }
+
+    @Override
+    public void sessionDidActivate(HttpSessionEvent se) {
+      events.add("activate " + id);
+    }
+
+    @Override
+    public void valueBound(HttpSessionBindingEvent event) {
+    }
+
+    @Override
+    public void valueUnbound(HttpSessionBindingEvent event) {
+      events.add("unbound " + id);
+    }
+  }
+}
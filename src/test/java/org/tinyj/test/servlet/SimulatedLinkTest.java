@@ -0,0 +1,90 @@
+/*
+Copyright 2016 Eric Karge <e.karge@struction.de>
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+  http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+*/
+package org.tinyj.test.servlet;
+
+import org.testng.annotations.Test;
+
+import javax.servlet.ServletOutputStream;
+import java.nio.ByteBuffer;
+
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class SimulatedLinkTest {
+
+  static final long MS = 1_000_000;
+
+  @Test
+  public void download_time_is_bandwidth_plus_latency_without_slow_start() throws Exception {
+    // given
+    SimulatedLink link = new SimulatedLink()
+        .withBandwidth(1_000_000)
+        .withRoundTrip(100, MILLISECONDS)
+        .withSendBuffer(1 << 20)
+        .withoutSlowStart();
+
+    // when
+    link.write(ByteBuffer.allocate(1_000_000));
+    link.close();
+
+    // then
+    assertThat(link.getDownloadNanos()).isBetween(1049 * MS, 1051 * MS);
+    assertThat(link.getBlockedNanos()).isZero();
+  }
+
+  @Test
+  public void slow_start_doubles_the_window_each_round_trip() throws Exception {
+    // given
+    SimulatedLink link = new SimulatedLink()
+        .withBandwidth(1_000_000_000)
+        .withRoundTrip(100, MILLISECONDS)
+        .withSendBuffer(1 << 20);
+
+    // when
+    link.write(ByteBuffer.allocate(100_000));
+    link.close();
+
+    // then
+    assertThat(link.getRoundCount()).isEqualTo(3);
+    assertThat(link.getCongestionWindow()).isEqualTo(10 * SimulatedLink.MSS + 100_000);
+    assertThat(link.getFirstByteNanos()).isBetween(49 * MS, 51 * MS);
+    assertThat(link.getDownloadNanos()).isBetween(249 * MS, 251 * MS);
+  }
+
+  @Test
+  public void full_send_buffer_blocks_the_servlet_in_virtual_time() throws Exception {
+    // given
+    SimulatedLink link = SimulatedLink.slow3G().withSendBuffer(16 << 10);
+    HttpServletResponseMock response = new HttpServletResponseMock(link);
+    ServletOutputStream out = response.getOutputStream();
+    long started = System.nanoTime();
+
+    // when
+    for (int i = 0; i < 10; i++) {
+      out.write(new byte[10_000]);
+      out.flush();
+    }
+    out.close();
+
+    // then
+    assertThat(System.nanoTime() - started).isLessThan(1000 * MS);
+    assertThat(link.getBytesWritten()).isEqualTo(100_000 + response.getHeaderBytes().length);
+    assertThat(link.getBlockedWriteCount()).isPositive();
+    assertThat(link.getBlockedNanos()).isGreaterThan(1000 * MS);
+    assertThat(link.getDownloadNanos()).isGreaterThan(2000 * MS);
+    assertThat(link.isOpen()).isFalse();
+  }
+}
@@ -0,0 +1,84 @@
+/*
+Copyright 2016 Eric Karge <e.karge@struction.de>
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+  http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+*/
+package org.tinyj.test.servlet;
+
+import org.testng.annotations.Test;
+import org.tinyj.test.servlet.support.CookieFormatter;
+
+import javax.servlet.http.Cookie;
+import java.time.Duration;
+import java.time.Instant;
+
+import static java.util.concurrent.TimeUnit.MINUTES;
+import static java.util.concurrent.TimeUnit.SECONDS;
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class VirtualClockTest {
+
+  static final Instant START = Instant.parse("2016-03-01T12:00:00Z");
+
+  @Test
+  public void sessions_expire_when_virtual_time_passes() {
+    // given
+    VirtualClock clock = new VirtualClock(START);
+    SessionManager manager = new SessionManager(clock).withMaxInactiveInterval(60);
+    HttpSessionMock session = manager.createSession();
+
+    // when
+    clock.advance(59, SECONDS);
+    manager.expireSessions();
+
+    // then
+    assertThat(session.getCreationTime()).isEqualTo(START.toEpochMilli());
+    assertThat(session.isValid()).isTrue();
+
+    // when
+    clock.advance(Duration.ofSeconds(2));
+    manager.expireSessions();
+
+    // then
+    assertThat(session.isValid()).isFalse();
+    assertThat(manager.getExpiredCount()).isEqualTo(1);
+  }
+
+  @Test
+  public void cookie_expiry_is_relative_to_the_clock() {
+    // given
+    VirtualClock clock = new VirtualClock(START);
+
+    // when
+    Cookie cookie = CookieFormatter.parseCookie("id=1; Expires=Tue, 1 Mar 2016 13:00:00 GMT", clock);
+
+    // then
+    assertThat(cookie.getMaxAge()).isEqualTo(3600);
+  }
+
+  @Test
+  public void date_header_and_standalone_sessions_use_the_clock() throws Exception {
+    // given
+    VirtualClock clock = new VirtualClock(START).advance(1, MINUTES);
+    HttpServletResponseMock response = new HttpServletResponseMock().withDateHeader(clock);
+    HttpServletRequestMock request = new HttpServletRequestMock().withClock(clock);
+
+    // when
+    response.close();
+    HttpSessionMock session = request.getSession(true);
+
+    // then
+    assertThat(response.getCommitedHeaders().get("Date")).containsExactly("Tue, 1 Mar 2016 12:01:00 GMT");
+    assertThat(session.getCreationTime()).isEqualTo(START.plusSeconds(60).toEpochMilli());
+  }
+}
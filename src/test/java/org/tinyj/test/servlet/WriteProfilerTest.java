@@ -0,0 +1,91 @@
+/*
+Copyright 2016 Eric Karge <e.karge@struction.de>
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+  http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+*/
+package org.tinyj.test.servlet;
+
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import javax.servlet.ServletOutputStream;
+import java.io.PrintWriter;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.fail;
+
+public class WriteProfilerTest {
+
+  private WriteProfiler profiler;
+  private HttpServletResponseMock response;
+
+  @BeforeMethod
+  public void setUp() {
+    profiler = new WriteProfiler();
+    response = new HttpServletResponseMock().withListener(profiler);
+  }
+
+  @Test
+  public void buffered_writes_pass() throws Exception {
+    // when
+    PrintWriter writer = response.getWriter();
+    for (int i = 0; i < 100; i++) {
+      writer.println("line " + i);
+    }
+    writer.close();
+
+    // then
+    profiler.verify();
+    assertThat(profiler.getWriterWriteCount()).isEqualTo(200);
+    assertThat(profiler.getWriteCount()).isEqualTo(1);
+    assertThat(profiler.getWriteSizeHistogram()[9]).isEqualTo(1);
+    assertThat(profiler.getFlushCount()).isZero();
+    assertThat(profiler.isClosed()).isTrue();
+  }
+
+  @Test
+  public void per_byte_writes_are_flagged() throws Exception {
+    // given
+    ServletOutputStream out = response.getOutputStream();
+    for (byte b : "a body written one byte at a time".getBytes("UTF-8")) {
+      out.write(b);
+    }
+    out.close();
+
+    // then
+    assertThat(profiler.getWriteSizeHistogram()[0]).isEqualTo(33);
+    assertThat(profiler.getFindings()).containsExactly("33 of 33 output stream writes are single bytes");
+  }
+
+  @Test
+  public void flushing_every_line_is_flagged() throws Exception {
+    // given
+    PrintWriter writer = response.getWriter();
+    for (int i = 0; i < 10; i++) {
+      writer.print("line " + i + "\n");
+      writer.flush();
+    }
+    writer.flush();
+    writer.close();
+
+    try {
+      // when
+      profiler.verify();
+      fail("flush per line should be flagged");
+    } catch (AssertionError e) {
+      // then
+      assertThat(e.getMessage()).contains("10 of 11 flushes send a single line");
+      assertThat(profiler.getEmptyFlushCount()).isEqualTo(1);
+    }
+  }
+}
@@ -0,0 +1,84 @@
+/*
+Copyright 2016 Eric Karge <e.karge@struction.de>
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+  http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+*/
+package org.tinyj.test.servlet.support;
+
+import org.testng.annotations.DataProvider;
+import org.testng.annotations.Test;
+
+import java.nio.ByteBuffer;
+
+import static java.nio.charset.StandardCharsets.US_ASCII;
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class OffHeapStoreTest {
+
+  @DataProvider
+  public static Object[][] stores() throws Exception {
+    return new Object[][]{
+        {OffHeapStore.direct(32)},
+        {OffHeapStore.mapped(32)}};
+  }
+
+  @Test(dataProvider = "stores")
+  public void records_survive_compaction(OffHeapStore store) throws Exception {
+    store.put("a", ascii("aaaaaaaaaa"));
+    store.put("b", ascii("bbbbbbbbbb"));
+    store.put("c", ascii("cccccccccc"));
+    ByteBuffer before = store.get("c");
+    store.remove("a");
+    store.remove("b");
+
+    store.put("d", ascii("dddddddddddd"));
+
+    assertThat(store.capacity()).isEqualTo(32);
+    assertThat(toString(store.get("c"))).isEqualTo("cccccccccc");
+    assertThat(toString(store.get("d"))).isEqualTo("dddddddddddd");
+    assertThat(toString(before)).isEqualTo("cccccccccc");
+    store.close();
+  }
+
+  @Test(dataProvider = "stores")
+  public void rename_moves_the_record_without_copying(OffHeapStore store) throws Exception {
+    store.put("old", ascii("record"));
+
+    assertThat(store.rename("old", "new")).isTrue();
+    assertThat(store.rename("missing", "other")).isFalse();
+
+    assertThat(store.get("old")).isNull();
+    assertThat(toString(store.get("new"))).isEqualTo("record");
+    assertThat(store.size()).isEqualTo(6);
+    store.close();
+  }
+
+  @Test
+  public void zero_capacity_store_grows() throws Exception {
+    OffHeapStore store = OffHeapStore.direct(0);
+
+    store.put("a", ascii("record"));
+
+    assertThat(toString(store.get("a"))).isEqualTo("record");
+  }
+
+  static ByteBuffer ascii(String s) {
+    return ByteBuffer.wrap(s.getBytes(US_ASCII));
+  }
+
+  static String toString(ByteBuffer buffer) {
+    byte[] bytes = new byte[buffer.remaining()];
+    buffer.duplicate().get(bytes);
+    return new String(bytes, US_ASCII);
+  }
+}
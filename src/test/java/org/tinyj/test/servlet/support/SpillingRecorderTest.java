@@ -0,0 +1,94 @@
+/*
+Copyright 2016 Eric Karge <e.karge@struction.de>
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+  http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+*/
+package org.tinyj.test.servlet.support;
+
+import org.testng.annotations.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.file.Path;
+
+import static java.nio.charset.StandardCharsets.US_ASCII;
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class SpillingRecorderTest {
+
+  @Test
+  public void small_recordings_stay_in_memory() throws Exception {
+    SpillingRecorder recorder = new SpillingRecorder(16);
+
+    recorder.write("0123456789".getBytes(US_ASCII));
+
+    assertThat(recorder.isSpilled()).isFalse();
+    assertThat(recorder.size()).isEqualTo(10);
+    assertThat(new String(recorder.toByteArray(), US_ASCII)).isEqualTo("0123456789");
+  }
+
+  @Test
+  public void large_recordings_are_spilled_to_disk() throws Exception {
+    SpillingRecorder recorder = new SpillingRecorder(16);
+
+    recorder.write("0123456789".getBytes(US_ASCII));
+    recorder.write("abcdefghij".getBytes(US_ASCII));
+    recorder.write('k');
+
+    assertThat(recorder.isSpilled()).isTrue();
+    assertThat(recorder.size()).isEqualTo(21);
+    assertThat(recorder.getFile().toFile().length()).isEqualTo(21);
+    assertThat(new String(recorder.toByteArray(), US_ASCII)).isEqualTo("0123456789abcdefghijk");
+    assertThat(toString(recorder.getHead())).isEqualTo("0123456789abcdef");
+  }
+
+  @Test
+  public void spilled_recordings_can_be_streamed_mapped_and_transferred() throws Exception {
+    SpillingRecorder recorder = new SpillingRecorder(4);
+    recorder.write("0123456789".getBytes(US_ASCII));
+
+    ByteArrayOutputStream streamed = new ByteArrayOutputStream();
+    try (InputStream in = recorder.toInputStream()) {
+      int b;
+      while ((b = in.read()) >= 0) {
+        streamed.write(b);
+      }
+    }
+    ByteArrayOutputStream transferred = new ByteArrayOutputStream();
+    recorder.writeTo(Channels.newChannel(transferred));
+
+    assertThat(new String(streamed.toByteArray(), US_ASCII)).isEqualTo("0123456789");
+    assertThat(toString(recorder.toByteBuffer())).isEqualTo("0123456789");
+    assertThat(new String(transferred.toByteArray(), US_ASCII)).isEqualTo("0123456789");
+  }
+
+  @Test
+  public void discard_removes_the_spill_file() throws Exception {
+    SpillingRecorder recorder = new SpillingRecorder(4);
+    recorder.write("0123456789".getBytes(US_ASCII));
+    Path file = recorder.getFile();
+
+    recorder.discard();
+
+    assertThat(file.toFile().exists()).isFalse();
+    assertThat(recorder.size()).isEqualTo(0);
+  }
+
+  private static String toString(ByteBuffer buffer) {
+    byte[] bytes = new byte[buffer.remaining()];
+    buffer.get(bytes);
+    return new String(bytes, US_ASCII);
+  }
+}